@@ -2085,12 +2085,13 @@ function parallel4Array(anArray, aFunction, numberOfThreads, threads) {
 
 /** 
  * <odoc>
- * <key>compress(anObject) : ArrayOfBytes</key>
+ * <key>compress(anObject, aLevel) : ArrayOfBytes</key>
  * Compresses a JSON object into an array of bytes suitable to be uncompressed using the uncompress function.
+ * Optionally aLevel can be provided to favor speed ("fast") or size ("small") (or a map with level, strategy and engine, see more in io.gzip).
  * </odoc>
  */
-function compress(anObject) {
-	return io.gzip(af.fromString2Bytes(stringify(anObject)));
+function compress(anObject, aLevel) {
+	return io.gzip(af.fromString2Bytes(stringify(anObject)), aLevel);
 }
 
 /**
@@ -3878,6 +3879,60 @@ var $doFirst = function(anArray) {
     return new oPromise().race(anArray);
 };
 
+/**
+ * <odoc>
+ * <key>$doFuture(aJavaFuture) : oPromise</key>
+ * Returns an oPromise that will be resolved with the result of aJavaFuture (e.g. returned by DB.qsAsync) once
+ * available. If aJavaFuture fails the oPromise will be rejected with the original exception.
+ * </odoc>
+ */
+var $doFuture = function(aJavaFuture) {
+    return new oPromise(function(resolve, reject) {
+        try {
+            resolve(aJavaFuture.get());
+        } catch(e) {
+            if (isDef(e.javaException) && e.javaException instanceof java.util.concurrent.ExecutionException) 
+                reject(e.javaException.getCause());
+            else
+                reject(e);
+        }
+    });
+};
+
+/**
+ * <odoc>
+ * <key>DB.qsPromise(aQuery, arrayOfBindVariables) : oPromise</key>
+ * Executes DB.qs(aQuery, arrayOfBindVariables) asynchronously (see DB.qsAsync) returning an oPromise resolved 
+ * with the query results.
+ * </odoc>
+ */
+DB.prototype.qsPromise = function(aQuery, aBinds) { return $doFuture(this.qsAsync(aQuery, aBinds)); };
+/**
+ * <odoc>
+ * <key>DB.usPromise(aSQL, anArray) : oPromise</key>
+ * Executes, and commits, DB.us(aSQL, anArray) asynchronously (see DB.usAsync) returning an oPromise resolved 
+ * with the number of rows affected.
+ * </odoc>
+ */
+DB.prototype.usPromise = function(aSQL, aBinds) { return $doFuture(this.usAsync(aSQL, aBinds)); };
+
+/**
+ * <odoc>
+ * <key>CSV.readFile2Channel(aFilename, aChannel, anArrayOfKeys, aOptions) : Number</key>
+ * Reads the CSV aFilename in parallel (see CSV.readFileParallel for aOptions) setting each record on aChannel
+ * (a channel name) using anArrayOfKeys (defaults to the first field of each record). Records are set, chunk by chunk,
+ * as soon as each chunk is parsed unless aOptions.ordered = true. Returns the number of records read.
+ * </odoc>
+ */
+CSV.prototype.readFile2Channel = function(aFile, aChannel, aKeys, aOptions) {
+    if (isUnDef(aOptions)) aOptions = {};
+    if (isUnDef(aOptions.ordered)) aOptions.ordered = false;
+    return this.readFileParallel(aFile, function(aRecords) {
+        if (aRecords.length <= 0) return;
+        $ch(aChannel).setAll((isDef(aKeys) ? aKeys : [ Object.keys(aRecords[0])[0] ]), aRecords);
+    }, aOptions);
+};
+
 /**
  * <odoc>
  * <key>$doWait(aPromise, aWaitTimeout, aTimeout) : oPromise</key>
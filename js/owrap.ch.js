@@ -17,7 +17,7 @@ OpenWrap.ch.prototype.__types = {
 	//
 	big: {
 		__channels: {},
-		create : function(aName, shouldCompress) { this.__channels[aName] = ow.loadObj().big.create(shouldCompress); },
+		create : function(aName, shouldCompress, options) { this.__channels[aName] = ow.loadObj().big.create(shouldCompress, (isDef(options) ? options.compression : undefined)); },
 		destroy: function(aName) { delete this.__channels[aName]; },
 		size   : function(aName) { return this.__channels[aName].getSize(); },
 		forEach: function(aName, aFunction) { 
@@ -762,7 +762,8 @@ OpenWrap.ch.prototype.__types = {
  * <key>ow.ch.create(aName, shouldCompress, type, options) : ow.ch</key>
  * Creates a channel of key/values with aName. Optionally you can specify if keys should also 
  * be compressed in memory (shouldCompress = true), a channels implementation type and corresponding
- * options in a map.
+ * options in a map (for the default "big" type options.compression = "fast" uses less CPU than the default gzip
+ * compression, see ow.obj.big.create).
  * </odoc>
  */
 OpenWrap.ch.prototype.create = function(aName, shouldCompress, type, options) {
@@ -1554,12 +1555,13 @@ OpenWrap.ch.prototype.comms = {
 OpenWrap.ch.prototype.persistence = {
 	/**
 	 * <odoc>
-	 * <key>ow.ch.persistence.getSubscriberFunc(aFilename)</key>
+	 * <key>ow.ch.persistence.getSubscriberFunc(aFilename, aLevel)</key>
 	 * Returns a function to be used with ow.ch.subscribe persisting any existing or new data into
-	 * aFilename provided. 
+	 * aFilename provided. Optionally aLevel of compression can be provided (e.g. "fast" for channels 
+	 * changing often or "small"; see more in io.gzip).
 	 * </odoc>
 	 */
-	getSubscribeFunc: function(aFilename) {
+	getSubscribeFunc: function(aFilename, aLevel) {
 		function recordError(_ch, _op, _k, _v, _e) {
 			var ct = nowUTC();
 			
@@ -1579,7 +1581,7 @@ OpenWrap.ch.prototype.persistence = {
 		
 		return function(ch, op, k, v, ar) {
 			try {
-				io.writeFileBytes(aFilename, compress(ar.getAll(ch)));
+				io.writeFileBytes(aFilename, compress(ar.getAll(ch), aLevel));
 			} catch(e) {
 				recordError(ch, op, k, v, e);
 			}
@@ -719,9 +719,10 @@ OpenWrap.obj.prototype.pool = {
 OpenWrap.obj.prototype.big = {
 	/**
 	 * <odoc>
-	 * <key>ow.obj.big.create(shouldCompressKeys) : Object</key>
+	 * <key>ow.obj.big.create(shouldCompressKeys, aCompression) : Object</key>
 	 * Creates a "big" map object that compresses contents in memory. Optionally if shouldCompressKeys = true
-	 * the key map will also be compressed. See also:\
+	 * the key map will also be compressed. aCompression can be "gzip" (the default) or "fast" (uses io.compressFast,
+	 * much less CPU per operation but more memory). See also:\
 	 * \
 	 * ow.obj.big.set\
 	 * ow.obj.big.setAll\
@@ -730,11 +731,22 @@ OpenWrap.obj.prototype.big = {
 	 * \
 	 * </odoc>
 	 */
-	create: function(shoudCompress) {
+	create: function(shoudCompress, aCompression) {
 		var res = {
 			internalData: {},
 			internalIndex: {},
 			compressKeys: shoudCompress,
+			compression: (isUnDef(aCompression)) ? "gzip" : aCompression,
+
+			__compress: function(anObject) {
+				if (this.compression == "fast") return io.compressFast(af.fromString2Bytes(stringify(anObject, undefined, "")));
+				return compress(anObject);
+			},
+
+			__uncompress: function(aCompressed) {
+				if (this.compression == "fast") return JSON.parse(af.fromBytes2String(io.decompressFast(aCompressed)));
+				return uncompress(aCompressed);
+			},
 
 			/**
 			 * <odoc>
@@ -762,12 +774,12 @@ OpenWrap.obj.prototype.big = {
 					uuid = genUUID();
 				}
 			
-				this.internalData[uuid] = compress(aColumns);
+				this.internalData[uuid] = this.__compress(aColumns);
 			    if (isUndefined(this.internalIndex[hash])) { this.internalIndex[hash] = []; }
 			
 			    var k;
 			    if (this.compressKeys) {
-			    	k = compress(aKeys);
+			    	k = this.__compress(aKeys);
 			    } else {
 			    	k = aKeys;
 			    }
@@ -879,7 +891,7 @@ OpenWrap.obj.prototype.big = {
 				var keys = this.__getIndex()[this.__genHash(aKeys)];
 				for(var i in keys) {
 					if (this.compressKeys) {
-						if (compare(uncompress(keys[i].k), aKeys)) {
+						if (compare(this.__uncompress(keys[i].k), aKeys)) {
 							return keys[i].u;
 						}
 					} else {
@@ -893,7 +905,7 @@ OpenWrap.obj.prototype.big = {
 		
 			getColsByID: function(anId) {
 				if (isUndefined(anId)) return undefined;
-				return uncompress(this.__getData()[anId]);
+				return this.__uncompress(this.__getData()[anId]);
 			},
 		
 			getAllByIDs: function(anArrayOfIds) {
@@ -959,7 +971,7 @@ OpenWrap.obj.prototype.big = {
 						var keys = parent.__getIndex()[aValue];
 						for(var i in keys) {
 							var key;
-							if (parent.compressKeys) key = uncompress(keys[i].k);
+							if (parent.compressKeys) key = parent.__uncompress(keys[i].k);
 							else key = keys[i].k;
 			
 							if (aFunction(key)) {
@@ -989,7 +1001,7 @@ OpenWrap.obj.prototype.big = {
 						var keys = parent.__getIndex()[aValue];
 						for(var i in keys) {
 							var key;
-							if (parent.compressKeys) key = uncompress(keys[i].k);
+							if (parent.compressKeys) key = parent.__uncompress(keys[i].k);
 							else key = keys[i].k;
 			
 							if (aFunction(key)) {
@@ -2,13 +2,23 @@ package wedo.openaf;
 
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.mozilla.javascript.ConsString;
+import org.mozilla.javascript.Context;
 import org.mozilla.javascript.NativeArray;
+import org.mozilla.javascript.NativeFunction;
 import org.mozilla.javascript.NativeObject;
 import org.mozilla.javascript.Scriptable;
 import org.mozilla.javascript.ScriptableObject;
 import org.mozilla.javascript.Undefined;
+import org.mozilla.javascript.Wrapper;
 import org.mozilla.javascript.annotations.JSConstructor;
 import org.mozilla.javascript.annotations.JSFunction;
 
@@ -31,6 +41,90 @@ public class CSV extends ScriptableObject {
 		return "CSV";
 	}
 
+	/**
+	 * Converts a value of the core CSV into a javascript value (longs become numbers if they can be represented
+	 * exactly and dates javascript dates).
+	 */
+	protected static Object toJS(Context cx, Scriptable scope, Object value) {
+		if (value instanceof Long && Math.abs((Long) value) <= 9007199254740992L) return ((Long) value).doubleValue();
+		if (value instanceof Date) return cx.newObject(scope, "Date", new Object[] { (double) ((Date) value).getTime() });
+		return value;
+	}
+
+	/**
+	 * Converts a javascript value into a value for the core CSV.
+	 */
+	protected static Object fromJS(Object value) {
+		if (value instanceof Undefined) return null;
+		if (value instanceof ConsString) return value.toString();
+		if (value instanceof Scriptable && "Date".equals(((Scriptable) value).getClassName())) return Context.jsToJava(value, Date.class);
+		if (value instanceof Wrapper) return ((Wrapper) value).unwrap();
+		return value;
+	}
+
+	protected Scriptable toRecord(Context cx, Scriptable scope, String[] header, int row) {
+		Scriptable record = cx.newObject(scope);
+		for(int i = 0; i < header.length; i++) {
+			record.put(header[i], record, toJS(cx, scope, csv.getValue(row, i)));
+		}
+		return record;
+	}
+
+	/**
+	 * Array like view of the internal CSV representation converting each record to a javascript map only when accessed.
+	 */
+	public static class LazyRecords extends ScriptableObject {
+		private static final long serialVersionUID = 1L;
+		protected CSV csv;
+		protected String[] header;
+
+		public LazyRecords(CSV csv, Scriptable scope) {
+			this.csv = csv;
+			this.header = csv.csv.getHeader();
+			setParentScope(scope);
+			setPrototype(ScriptableObject.getClassPrototype(scope, "Array"));
+		}
+
+		@Override
+		public String getClassName() {
+			return "CSVRecords";
+		}
+
+		@Override
+		public boolean has(int index, Scriptable start) {
+			return index >= 0 && index < csv.csv.size();
+		}
+
+		@Override
+		public Object get(int index, Scriptable start) {
+			if (!has(index, start)) return NOT_FOUND;
+			Context cx = (Context) AFCmdBase.jse.enterContext();
+			try {
+				return csv.toRecord(cx, getParentScope(), header, index);
+			} finally {
+				AFCmdBase.jse.exitContext();
+			}
+		}
+
+		@Override
+		public boolean has(String name, Scriptable start) {
+			return name.equals("length") || super.has(name, start);
+		}
+
+		@Override
+		public Object get(String name, Scriptable start) {
+			if (name.equals("length")) return csv.csv.size();
+			return super.get(name, start);
+		}
+
+		@Override
+		public Object[] getIds() {
+			Object[] ids = new Object[csv.csv.size()];
+			for(int i = 0; i < ids.length; i++) ids[i] = i;
+			return ids;
+		}
+	}
+
 	@JSFunction
 	public void clear() {
 	     csv.clear();
@@ -69,7 +163,7 @@ public class CSV extends ScriptableObject {
 			if (obj instanceof NativeObject) {
 				HashMap<String, Object> record = new HashMap<String, Object>();
 				for(Object key : ((NativeObject) obj).keySet()) {
-					record.put((String) key, ((NativeObject) obj).get(key));
+					record.put((String) key, fromJS(((NativeObject) obj).get(key)));
 				}
 				records.add(record);
 			}
@@ -101,23 +195,203 @@ public class CSV extends ScriptableObject {
 		return csv.readFile(aFile);
 	}
 
+	/**
+	 * Calls a javascript function with a map for each record read by the core CSV.stream.
+	 */
+	protected wedo.openaf.core.CSV.RowHandler newRowHandler(final NativeFunction aFunction) {
+		return new wedo.openaf.core.CSV.RowHandler() {
+			public boolean handle(long line, String[] header, Object[] values) {
+				Context cx = (Context) AFCmdBase.jse.enterContext();
+				try {
+					Scriptable scope = (Scriptable) AFCmdBase.jse.getGlobalscope();
+					Scriptable record = cx.newObject(scope);
+					for(int i = 0; i < header.length; i++) {
+						record.put(header[i], record, toJS(cx, scope, values[i]));
+					}
+					Object res = aFunction.call(cx, scope, cx.newObject(scope), new Object[] { record, line });
+					return !(res instanceof Boolean && !((Boolean) res));
+				} finally {
+					AFCmdBase.jse.exitContext();
+				}
+			}
+		};
+	}
+	
 	@JSFunction
-	public Object csv()	{
-		ArrayList<HashMap<String, Object>> al = csv.csv();
-		ArrayList<Scriptable> records = new ArrayList<Scriptable>();
+	public long readStream(Object aStream, NativeFunction aFunction, Object encoding) throws Exception {
+		if (aStream instanceof Wrapper) aStream = ((Wrapper) aStream).unwrap();
 		
-		for(HashMap<String, Object> alRecord : al) {
-			Scriptable record = (Scriptable) AFCmdBase.jse.newObject(AFCmdBase.jse.getGlobalscope());
-			
-			for(String key : alRecord.keySet()) {
-				record.put(key, record, alRecord.get(key));
-			}
-			
-			records.add(record);
+		Reader reader;
+		if (aStream instanceof Reader) {
+			reader = (Reader) aStream;
+		} else if (aStream instanceof InputStream) {
+			reader = new InputStreamReader((InputStream) aStream, (encoding instanceof String) ? (String) encoding : "UTF-8");
+		} else {
+			throw new IOException("Expecting a java InputStream or Reader.");
 		}
 		
-		return AFCmdBase.jse.newArray(AFCmdBase.jse.getGlobalscope(), records.toArray());
-	}	
+		return csv.stream(reader, newRowHandler(aFunction));
+	}
+	
+	@JSFunction
+	public long readFileStream(String aFile, NativeFunction aFunction, Object encoding) throws Exception {
+		return csv.streamFile(aFile, (encoding instanceof String) ? (String) encoding : null, newRowHandler(aFunction));
+	}
+	
+	@JSFunction
+	public long readFileParallel(String aFile, Object aFunction, Object options) throws Exception {
+		if (aFunction instanceof NativeObject && !(options instanceof NativeObject)) {
+			options = aFunction;
+			aFunction = null;
+		}
+
+		int threads = 0, chunkSize = 0;
+		boolean ordered = true;
+		String encoding = null;
+		if (options instanceof NativeObject) {
+			NativeObject opts = (NativeObject) options;
+			if (opts.get("threads") instanceof Number) threads = ((Number) opts.get("threads")).intValue();
+			if (opts.get("chunkSize") instanceof Number) chunkSize = ((Number) opts.get("chunkSize")).intValue();
+			if (opts.get("ordered") instanceof Boolean) ordered = (Boolean) opts.get("ordered");
+			if (opts.get("encoding") != null && !(opts.get("encoding") instanceof Undefined)) encoding = opts.get("encoding").toString();
+		}
+
+		if (!(aFunction instanceof NativeFunction)) return csv.readFileParallel(aFile, encoding, threads, chunkSize);
+
+		final NativeFunction fn = (NativeFunction) aFunction;
+		return csv.streamFileParallel(aFile, encoding, threads, chunkSize, ordered, new wedo.openaf.core.CSV.ChunkHandler() {
+			public boolean handle(long chunk, String[] header, List<Object[]> rows) {
+				Context cx = (Context) AFCmdBase.jse.enterContext();
+				try {
+					Scriptable scope = (Scriptable) AFCmdBase.jse.getGlobalscope();
+					Object[] records = new Object[rows.size()];
+					for(int r = 0; r < records.length; r++) {
+						Object[] values = rows.get(r);
+						Scriptable record = cx.newObject(scope);
+						for(int i = 0; i < header.length; i++) {
+							record.put(header[i], record, toJS(cx, scope, values[i]));
+						}
+						records[r] = record;
+					}
+					Object res = fn.call(cx, scope, cx.newObject(scope), new Object[] { cx.newArray(scope, records), chunk });
+					return !(res instanceof Boolean && !((Boolean) res));
+				} finally {
+					AFCmdBase.jse.exitContext();
+				}
+			}
+		});
+	}
+
+	@JSFunction
+	public Object csv()	{
+		Context cx = (Context) AFCmdBase.jse.enterContext();
+		try {
+			Scriptable scope = (Scriptable) AFCmdBase.jse.getGlobalscope();
+			String[] header = csv.getHeader();
+			Object[] records = new Object[csv.size()];
+			for(int row = 0; row < records.length; row++) {
+				records[row] = toRecord(cx, scope, header, row);
+			}
+			return cx.newArray(scope, records);
+		} finally {
+			AFCmdBase.jse.exitContext();
+		}
+	}
+
+	@JSFunction
+	public Object records() {
+		return new LazyRecords(this, (Scriptable) AFCmdBase.jse.getGlobalscope());
+	}
+
+	@JSFunction
+	public int size() {
+		return csv.size();
+	}
+
+	@JSFunction
+	public Object getRecord(int aIndex) {
+		if (aIndex < 0 || aIndex >= csv.size()) throw new IndexOutOfBoundsException("Record " + aIndex + " doesn't exist (" + csv.size() + " records).");
+		Context cx = (Context) AFCmdBase.jse.enterContext();
+		try {
+			return toRecord(cx, (Scriptable) AFCmdBase.jse.getGlobalscope(), csv.getHeader(), aIndex);
+		} finally {
+			AFCmdBase.jse.exitContext();
+		}
+	}
+
+	@JSFunction
+	public Object getColumn(String aField) {
+		Context cx = (Context) AFCmdBase.jse.enterContext();
+		try {
+			Scriptable scope = (Scriptable) AFCmdBase.jse.getGlobalscope();
+			Object[] values = csv.getColumn(aField);
+			for(int i = 0; i < values.length; i++) {
+				values[i] = toJS(cx, scope, values[i]);
+			}
+			return cx.newArray(scope, values);
+		} finally {
+			AFCmdBase.jse.exitContext();
+		}
+	}
+
+	@JSFunction
+	public void setSchema(Object aSchema) {
+		HashMap<String, String> schema = new HashMap<String, String>();
+		if (aSchema instanceof NativeObject) {
+			NativeObject o = (NativeObject) aSchema;
+			for(Object key : o.keySet()) {
+				Object v = o.get(key);
+				if (v instanceof NativeObject) {
+					Object type = ((NativeObject) v).get("type"), format = ((NativeObject) v).get("format");
+					schema.put(key.toString(), String.valueOf(type) + ((format instanceof String || format instanceof ConsString) ? ":" + format : ""));
+				} else {
+					schema.put(key.toString(), String.valueOf(v));
+				}
+			}
+		}
+		csv.setSchema(schema);
+	}
+
+	@JSFunction
+	public Object getSchema() {
+		JSEngine.JSMap map = AFCmdBase.jse.getNewMap(AFCmdBase.jse.getGlobalscope());
+		for(Map.Entry<String, String> entry : csv.getSchema().entrySet()) {
+			map.put(entry.getKey(), entry.getValue());
+		}
+		return map.getMap();
+	}
+
+	@JSFunction
+	public Object writer(Object aOutput, Object aHeader, Object options) throws IOException {
+		if (aOutput instanceof Wrapper) aOutput = ((Wrapper) aOutput).unwrap();
+		if (aHeader instanceof NativeObject && !(options instanceof NativeObject)) {
+			options = aHeader;
+			aHeader = null;
+		}
+
+		String[] header = null;
+		if (aHeader instanceof NativeArray) {
+			NativeArray a = (NativeArray) aHeader;
+			header = new String[(int) a.getLength()];
+			for(int i = 0; i < header.length; i++) {
+				header[i] = String.valueOf(a.get(i));
+			}
+		}
+
+		NativeObject opts = (options instanceof NativeObject) ? (NativeObject) options : new NativeObject();
+		wedo.openaf.core.CSVWriter w = csv.writer(aOutput, header, (opts.get("encoding") instanceof String) ? (String) opts.get("encoding") : null, 
+			Boolean.TRUE.equals(opts.get("gzip")));
+		if (opts.get("separator") instanceof String) w.setSeparator((String) opts.get("separator"));
+		if (opts.get("quote") instanceof String) w.setQuote((String) opts.get("quote"));
+		if (opts.get("lineSeparator") instanceof String) w.setLineSeparator((String) opts.get("lineSeparator"));
+		if (opts.get("dateFormat") instanceof String) w.setDateFormat((String) opts.get("dateFormat"));
+		if (opts.get("flushThreshold") instanceof Number) w.setFlushThreshold(((Number) opts.get("flushThreshold")).intValue());
+		return w;
+	}
+
+	@JSFunction
+	public void setTypeInference(int aSampleSize, boolean inferAll) {
+		csv.setTypeInference(aSampleSize, inferAll);
+	}
 
 }
- 
\ No newline at end of file
@@ -9,7 +9,10 @@ package wedo.openaf;
 import java.io.IOException;
 import java.sql.SQLException;
 import org.mozilla.javascript.NativeArray;
+import org.mozilla.javascript.NativeObject;
 import org.mozilla.javascript.ScriptableObject;
+import org.mozilla.javascript.Undefined;
+import org.mozilla.javascript.Wrapper;
 import org.mozilla.javascript.annotations.JSConstructor;
 import org.mozilla.javascript.annotations.JSFunction;
 
@@ -25,9 +28,9 @@ public class DB extends ScriptableObject {
 	}
 	
 	@JSConstructor
-	public void newDB(String driver, String url, String login, String pass) throws Exception {
+	public void newDB(String driver, String url, String login, String pass, Object options) throws Exception {
 		coreDB = new wedo.openaf.core.DB();
-		coreDB.newDB(driver, url, login, pass);
+		coreDB.newDB(driver, url, login, pass, (options instanceof NativeObject) ? (NativeObject) options : null);
 	}
 
 	@JSFunction
@@ -41,10 +44,45 @@ public class DB extends ScriptableObject {
 	}
 	
 	@JSFunction
-	public Object getConnect() {
+	public Object getConnect() throws SQLException {
 		return coreDB.getConnect();
 	}
 	
+	@JSFunction
+	public Object getPoolStats() {
+		return coreDB.getPoolStats();
+	}
+	
+	@JSFunction
+	public void setStatementCache(int size, int idleTimeout) {
+		coreDB.setStatementCache(size, idleTimeout);
+	}
+	
+	@JSFunction
+	public Object getStatementCacheStats() {
+		return coreDB.getStatementCacheStats();
+	}
+	
+	@JSFunction
+	public Object getStats() {
+		return coreDB.getStats();
+	}
+	
+	@JSFunction
+	public void resetStats() {
+		coreDB.resetStats();
+	}
+	
+	@JSFunction
+	public void setSlowQueryThreshold(int ms) {
+		coreDB.setSlowQueryThreshold(ms);
+	}
+	
+	@JSFunction
+	public Object getStatsBean() {
+		return coreDB.getStatsBean();
+	}
+	
 	@JSFunction
 	public void closeStatement(String aQuery) throws SQLException {
 		coreDB.closeStatement(aQuery);
@@ -60,6 +98,16 @@ public class DB extends ScriptableObject {
 		System.out.println(p);
 	}
 
+	@JSFunction
+	public void setNumericMode(String aMode) throws Exception {
+		coreDB.setNumericMode(aMode);
+	}
+	
+	@JSFunction
+	public String getNumericMode() {
+		return coreDB.getNumericMode();
+	}
+
 	@JSFunction
 	public Object q(String query) throws IOException, SQLException {
 		return coreDB.q(query);
@@ -93,6 +141,63 @@ public class DB extends ScriptableObject {
 			return coreDB.qsRS(query, AFCmdBase.jse.getNewList(AFCmdBase.jse.getGlobalscope()));
 	}
 
+	@JSFunction
+	public Object qsCursor(String query, Object objs, int fetchSize) throws SQLException {
+		if (objs instanceof NativeArray) {
+			NativeArray lines = (NativeArray) objs;
+			JSEngine.JSList jslist = AFCmdBase.jse.getNewList(AFCmdBase.jse.getGlobalscope());
+			for(Object line : lines) {
+				jslist.add(line);
+			}
+			
+			return coreDB.qsCursor(query, jslist, fetchSize);
+		} else
+			return coreDB.qsCursor(query, AFCmdBase.jse.getNewList(AFCmdBase.jse.getGlobalscope()), fetchSize);
+	}
+
+	@JSFunction
+	public Object qsAsync(String query, Object objs) throws SQLException {
+		JSEngine.JSList jslist = AFCmdBase.jse.getNewList(AFCmdBase.jse.getGlobalscope());
+		if (objs instanceof NativeArray) {
+			for(Object line : (NativeArray) objs) {
+				jslist.add(line);
+			}
+		}
+		
+		return coreDB.qsAsync(query, jslist);
+	}
+	
+	@JSFunction
+	public Object usAsync(String sql, Object objs) throws SQLException {
+		JSEngine.JSList jslist = AFCmdBase.jse.getNewList(AFCmdBase.jse.getGlobalscope());
+		if (objs instanceof NativeArray) {
+			for(Object line : (NativeArray) objs) {
+				jslist.add(line);
+			}
+		}
+		
+		return coreDB.usAsync(sql, jslist);
+	}
+	
+	@JSFunction
+	public void setAsyncThreads(int threads) {
+		coreDB.setAsyncThreads(threads);
+	}
+
+	@JSFunction
+	public Object qsColumnar(String query, Object objs, int fetchSize) throws IOException, SQLException {
+		if (objs instanceof NativeArray) {
+			NativeArray lines = (NativeArray) objs;
+			JSEngine.JSList jslist = AFCmdBase.jse.getNewList(AFCmdBase.jse.getGlobalscope());
+			for(Object line : lines) {
+				jslist.add(line);
+			}
+			
+			return coreDB.qsColumnar(query, jslist, fetchSize);
+		} else
+			return coreDB.qsColumnar(query, AFCmdBase.jse.getNewList(AFCmdBase.jse.getGlobalscope()), fetchSize);
+	}
+
 	@JSFunction 
 	public Object qLob(String sql) throws Exception {
 		return coreDB.qLob(sql);	}
@@ -138,6 +243,39 @@ public class DB extends ScriptableObject {
 		}
 	}
 	
+	@JSFunction
+	public Object bulkLoad(String sql, Object rowSource, Object options) throws Exception {
+		if (rowSource instanceof Wrapper) rowSource = ((Wrapper) rowSource).unwrap();
+		return coreDB.bulkLoad(sql, rowSource, (options instanceof NativeObject) ? (NativeObject) options : null);
+	}
+	
+	@JSFunction
+	public Object qLobStream(String sql, Object objs, Object output) throws IOException, SQLException {
+		if (output instanceof Wrapper) output = ((Wrapper) output).unwrap();
+		if (output instanceof Undefined) output = null;
+		JSEngine.JSList jslist = AFCmdBase.jse.getNewList(AFCmdBase.jse.getGlobalscope());
+		if (objs instanceof NativeArray) {
+			for(Object line : (NativeArray) objs) {
+				jslist.add(line);
+			}
+		}
+		
+		return coreDB.qLobStream(sql, jslist, output);
+	}
+	
+	@JSFunction
+	public int uLobStream(String sql, Object lob, Object objs, Object lobType) throws IOException, SQLException {
+		if (lob instanceof Wrapper) lob = ((Wrapper) lob).unwrap();
+		JSEngine.JSList jslist = AFCmdBase.jse.getNewList(AFCmdBase.jse.getGlobalscope());
+		if (objs instanceof NativeArray) {
+			for(Object line : (NativeArray) objs) {
+				jslist.add(line);
+			}
+		}
+		
+		return coreDB.uLobStream(sql, lob, jslist, (lobType == null || lobType instanceof Undefined) ? null : lobType.toString());
+	}
+	
 	@JSFunction
 	public int uLob(String sql, Object lob) throws SQLException {
 		return coreDB.uLob(sql, lob);
@@ -14,6 +14,7 @@ import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 import org.mozilla.javascript.Context;
 import org.mozilla.javascript.NativeArray;
+import org.mozilla.javascript.NativeFunction;
 import org.mozilla.javascript.NativeJavaObject;
 import org.mozilla.javascript.NativeObject;
 import org.mozilla.javascript.Scriptable;
@@ -144,13 +145,13 @@ public class IOBase extends wedo.openaf.core.IO {
 	}	
 
 	@JSFunction
-	public static Object gzip(Object dataIn) throws IOException {
-		return wedo.openaf.core.IO.gzip(dataIn);
+	public static Object gzip(Object dataIn, Object options) throws IOException {
+		return wedo.openaf.core.IO.gzip(dataIn, options);
 	}
 
 	@JSFunction
-	public static Object gunzip(Object dataIn) throws IOException {
-		return wedo.openaf.core.IO.gunzip(dataIn);
+	public static Object gunzip(Object dataIn, Object engine) throws IOException {
+		return wedo.openaf.core.IO.gunzip(dataIn, engine);
 	}
 
 	@JSFunction
@@ -177,4 +178,54 @@ public class IOBase extends wedo.openaf.core.IO {
 	public static Object writeFileStream(String filename) throws IOException {
 		return wedo.openaf.core.IO.writeFileStream(filename);
 	}
-}
+	
+	@JSFunction
+	public static Object mapFile(String filename, String mode, Object position, Object length) throws IOException {
+		return wedo.openaf.core.IO.mapFile(filename, mode, position, length);
+	}
+	
+	@JSFunction
+	public static long readLinesNIO(String filename, NativeFunction aFunction, String encoding) throws Exception {
+		return wedo.openaf.core.IO.readLinesNIO(filename, aFunction, encoding);
+	}
+	
+	@JSFunction
+	public static long readFileLines(String filename, NativeFunction aFunction, Object options) throws Exception {
+		return wedo.openaf.core.IO.readFileLines(filename, aFunction, options);
+	}
+	
+	@JSFunction
+	public static long walk(String filepath, NativeFunction aFunction, Object options) throws Exception {
+		return wedo.openaf.core.IO.walk(filepath, aFunction, options);
+	}
+	
+	@JSFunction
+	public static Object compressFast(Object dataIn) {
+		return wedo.openaf.core.IO.compressFast(dataIn);
+	}
+	
+	@JSFunction
+	public static Object decompressFast(Object dataIn) throws IOException {
+		return wedo.openaf.core.IO.decompressFast(dataIn);
+	}
+	
+	@JSFunction
+	public static Object readFileBytesAsync(String filename) {
+		return wedo.openaf.core.IO.readFileBytesAsync(filename);
+	}
+	
+	@JSFunction
+	public static Object writeFileBytesAsync(String filename, Object data, boolean append) {
+		return wedo.openaf.core.IO.writeFileBytesAsync(filename, data, append);
+	}
+	
+	@JSFunction
+	public static Object copyAsync(String source, String target) {
+		return wedo.openaf.core.IO.copyAsync(source, target);
+	}
+	
+	@JSFunction
+	public static void setAsyncThreads(int threads) {
+		wedo.openaf.core.IO.setAsyncThreads(threads);
+	}
+}
\ No newline at end of file
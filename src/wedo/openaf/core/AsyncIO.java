@@ -0,0 +1,286 @@
+package wedo.openaf.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import wedo.openaf.SimpleLog;
+
+/**
+ * Asynchronous file operations used by io.readFileBytesAsync, io.writeFileBytesAsync and io.copyAsync. Each
+ * operation uses an AsynchronousFileChannel, chaining reads/writes through completion handlers on a shared pool
+ * of daemon threads, and returns immediately a java Future. A channel stays bound to the pool it was opened
+ * with so, when the number of threads changes, the previous pool is only shut down once its channels are closed.
+ *
+ * @author Nuno Aguiar <nuno.aguiar@wedotechnologies.com>
+ *
+ */
+public class AsyncIO {
+	protected static final int COPY_CHUNK = 1024 * 1024;
+
+	protected static Pool pool;
+	protected static int threads = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+	protected static final IdentityHashMap<AsynchronousFileChannel, Pool> channels = new IdentityHashMap<AsynchronousFileChannel, Pool>();
+
+	/**
+	 * A thread pool and the number of open channels bound to it.
+	 */
+	protected static class Pool {
+		protected ExecutorService executor;
+		protected int open = 0;
+		protected boolean retired = false;
+
+		protected Pool(ExecutorService executor) {
+			this.executor = executor;
+		}
+	}
+
+	/**
+	 * A future completed by the completion handlers.
+	 */
+	public static class Result<T> extends FutureTask<T> {
+		public Result() {
+			super(new Callable<T>() {
+				public T call() {
+					return null;
+				}
+			});
+		}
+
+		@Override
+		public void set(T v) {
+			super.set(v);
+		}
+
+		@Override
+		public void setException(Throwable e) {
+			super.setException(e);
+		}
+	}
+
+	protected static synchronized Pool getPool() {
+		if (pool == null) {
+			pool = new Pool(Executors.newFixedThreadPool(threads, new ThreadFactory() {
+				protected AtomicInteger count = new AtomicInteger(0);
+
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "IO async " + count.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}
+			}));
+		}
+		return pool;
+	}
+
+	/**
+	 * Sets the number of threads executing the asynchronous operations (operations already running keep the
+	 * previous threads until they finish).
+	 */
+	public static synchronized void setThreads(int n) {
+		threads = (n <= 0) ? Math.max(4, Runtime.getRuntime().availableProcessors() * 2) : n;
+		if (pool != null) {
+			pool.retired = true;
+			if (pool.open == 0) pool.executor.shutdown();
+			pool = null;
+		}
+	}
+
+	protected static synchronized AsynchronousFileChannel open(Path path, OpenOption... options) throws IOException {
+		Pool p = getPool();
+		AsynchronousFileChannel ch = AsynchronousFileChannel.open(path, new HashSet<OpenOption>(Arrays.asList(options)), p.executor);
+		p.open++;
+		channels.put(ch, p);
+		return ch;
+	}
+
+	/**
+	 * Shuts down the pool of a closed channel if it was retired and this was its last open channel.
+	 */
+	protected static synchronized void release(AsynchronousFileChannel ch) {
+		Pool p = channels.remove(ch);
+		if (p != null && --p.open == 0 && p.retired) p.executor.shutdown();
+	}
+
+	protected static AsynchronousFileChannel openForWrite(Path path, boolean append) throws IOException {
+		if (path.toAbsolutePath().getParent() != null) Files.createDirectories(path.toAbsolutePath().getParent());
+		if (append) return open(path, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+		return open(path, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+	}
+
+	protected static void close(AsynchronousFileChannel ch) {
+		if (ch == null) return;
+		try {
+			ch.close();
+		} catch (IOException e) {
+			SimpleLog.log(SimpleLog.logtype.DEBUG, "Error closing async file channel: " + e.getMessage(), e);
+		} finally {
+			release(ch);
+		}
+	}
+
+	/**
+	 * Reads all the bytes of file.
+	 */
+	public static Future<byte[]> readFileBytes(String file) {
+		final Result<byte[]> res = new Result<byte[]>();
+		AsynchronousFileChannel ch = null;
+		try {
+			final AsynchronousFileChannel in = ch = open(Paths.get(file), StandardOpenOption.READ);
+			long size = in.size();
+			if (size > Integer.MAX_VALUE - 8) throw new IOException("File too big to be read into an array: " + file);
+
+			final ByteBuffer buf = ByteBuffer.allocate((int) size);
+			in.read(buf, 0, null, new CompletionHandler<Integer, Void>() {
+				public void completed(Integer n, Void a) {
+					if (n >= 0 && buf.hasRemaining()) {
+						in.read(buf, buf.position(), null, this);
+						return;
+					}
+					close(in);
+					// The file might have been truncated meanwhile
+					res.set(buf.hasRemaining() ? Arrays.copyOf(buf.array(), buf.position()) : buf.array());
+				}
+
+				public void failed(Throwable e, Void a) {
+					close(in);
+					res.setException(e);
+				}
+			});
+		} catch (Throwable e) {
+			close(ch);
+			res.setException(e);
+		}
+		return res;
+	}
+
+	/**
+	 * Writes data to file (replacing it or appending to it) returning the number of bytes written.
+	 */
+	public static Future<Long> writeFileBytes(String file, final byte[] data, boolean append) {
+		final Result<Long> res = new Result<Long>();
+		AsynchronousFileChannel ch = null;
+		try {
+			final AsynchronousFileChannel out = ch = openForWrite(Paths.get(file), append);
+			// AsynchronousFileChannel doesn't support APPEND, so write after the current end
+			final long start = append ? out.size() : 0;
+
+			final ByteBuffer buf = ByteBuffer.wrap(data);
+			out.write(buf, start, null, new CompletionHandler<Integer, Void>() {
+				public void completed(Integer n, Void a) {
+					if (buf.hasRemaining()) {
+						out.write(buf, start + buf.position(), null, this);
+						return;
+					}
+					close(out);
+					res.set((long) data.length);
+				}
+
+				public void failed(Throwable e, Void a) {
+					close(out);
+					res.setException(e);
+				}
+			});
+		} catch (Throwable e) {
+			close(ch);
+			res.setException(e);
+		}
+		return res;
+	}
+
+	/**
+	 * Copies a file, chunk by chunk, alternating reads from the source with writes to the target.
+	 */
+	protected static class Copier {
+		protected AsynchronousFileChannel in, out;
+		protected ByteBuffer buf = ByteBuffer.allocateDirect(COPY_CHUNK);
+		protected long pos = 0;
+		protected Path source, target;
+		protected Result<Long> res = new Result<Long>();
+
+		protected CompletionHandler<Integer, Void> reader = new CompletionHandler<Integer, Void>() {
+			public void completed(Integer n, Void a) {
+				if (n < 0) {
+					finish(null);
+					return;
+				}
+				buf.flip();
+				out.write(buf, pos, null, writer);
+			}
+
+			public void failed(Throwable e, Void a) {
+				finish(e);
+			}
+		};
+
+		protected CompletionHandler<Integer, Void> writer = new CompletionHandler<Integer, Void>() {
+			public void completed(Integer n, Void a) {
+				pos += n;
+				if (buf.hasRemaining()) {
+					out.write(buf, pos, null, this);
+				} else {
+					buf.clear();
+					in.read(buf, pos, null, reader);
+				}
+			}
+
+			public void failed(Throwable e, Void a) {
+				finish(e);
+			}
+		};
+
+		public Copier(String source, String target) {
+			this.source = Paths.get(source);
+			this.target = Paths.get(target);
+		}
+
+		public Future<Long> start() {
+			try {
+				in = open(source, StandardOpenOption.READ);
+				out = openForWrite(target, false);
+				in.read(buf, 0, null, reader);
+			} catch (Throwable e) {
+				finish(e);
+			}
+			return res;
+		}
+
+		protected void finish(Throwable e) {
+			close(in);
+			close(out);
+			if (e == null) {
+				try {
+					Files.setLastModifiedTime(target, Files.getLastModifiedTime(source));
+				} catch (IOException e1) {
+					SimpleLog.log(SimpleLog.logtype.DEBUG, "Can't preserve the modified time on " + target + ": " + e1.getMessage(), e1);
+				}
+				res.set(pos);
+			} else {
+				res.setException(e);
+			}
+		}
+	}
+
+	/**
+	 * Copies source to target (replacing it) returning the number of bytes copied.
+	 */
+	public static Future<Long> copy(String source, String target) {
+		return new Copier(source, target).start();
+	}
+}
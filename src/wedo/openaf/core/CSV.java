@@ -1,17 +1,22 @@
 package wedo.openaf.core;
 
 import java.io.BufferedReader;
+import java.io.FileInputStream;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.io.PrintWriter;
+import java.io.Reader;
 import java.io.StringReader;
 import java.io.StringWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
 
 import wedo.openaf.SimpleLog;
 
@@ -21,14 +26,44 @@ import wedo.openaf.SimpleLog;
  * @author Nuno Aguiar <nuno.aguiar@wedotechnologies.com>
  */
 public class CSV {
-	protected enum valuetypes { STRING, NUMBER };
-	protected Map<Long, String> header = new ConcurrentHashMap<Long, String>();
-	//protected Map<String, String> value = new HashMap<String, String>();
-	protected Map<Long, valuetypes> headerType = new ConcurrentHashMap<Long, valuetypes>();
-	protected List<Map<String, String>> values = Collections.synchronizedList(new ArrayList<Map<String, String>>());
-	protected boolean isDetermineTypesComplete = false;
+	protected List<String> header = Collections.synchronizedList(new ArrayList<String>());
+	protected List<CSVColumn> columns = Collections.synchronizedList(new ArrayList<CSVColumn>());
+	protected int size = 0;
 	protected String separator = ";";
 	protected String stringDelimeter = "\"";
+	protected Map<String, String> schema = new HashMap<String, String>();
+	protected int sampleSize = 100;
+	protected boolean inferExtended = false;
+
+	/**
+	 * Receives each record read by CSV.stream.
+	 */
+	public interface RowHandler {
+		/**
+		 * Handles a record.
+		 * 
+		 * @param line The record number (starting on 1 for the first record after the header)
+		 * @param header The field names
+		 * @param values The field values (of the type set by CSV.setSchema or doubles for number fields, strings otherwise and null if missing or empty)
+		 * @return false to stop reading
+		 */
+		public boolean handle(long line, String[] header, Object[] values) throws Exception;
+	}
+
+	/**
+	 * Receives each chunk of records read by CSV.streamFileParallel.
+	 */
+	public interface ChunkHandler {
+		/**
+		 * Handles a chunk of records.
+		 *
+		 * @param chunk The chunk number (starting on 0, in file order)
+		 * @param header The field names
+		 * @param rows The records (each with the field values as in RowHandler)
+		 * @return false to stop reading
+		 */
+		public boolean handle(long chunk, String[] header, List<Object[]> rows) throws Exception;
+	}
 
 	/**
 	 * <odoc>
@@ -38,8 +73,56 @@ public class CSV {
 	 */
 	public void clear() {
 		this.header.clear();
-		this.values.clear();
-		this.headerType.clear();
+		this.columns.clear();
+		this.size = 0;
+	}
+
+	/**
+	 * <odoc>
+	 * <key>CSV.setSchema(aSchema)</key>
+	 * Sets the type of fields on the next reads using aSchema, a map of field name to type: "string", "long", "double" 
+	 * (or "number"), "boolean" or "date" (optionally with a java date pattern, e.g. "date:dd/MM/yyyy", or using a map
+	 * { type: "date", format: "dd/MM/yyyy" }; without pattern ISO 8601 dates are expected). Fields not on aSchema will have
+	 * their type inferred (see CSV.setTypeInference). Values that don't match the field type are kept as strings.
+	 * </odoc>
+	 */
+	public void setSchema(Map<String, String> aSchema) {
+		schema.clear();
+		if (aSchema == null) return;
+		for (Map.Entry<String, String> entry : aSchema.entrySet()) {
+			CSVColumn.parseType(entry.getValue());
+			schema.put(entry.getKey(), entry.getValue());
+		}
+	}
+
+	/**
+	 * <odoc>
+	 * <key>CSV.getSchema() : Map</key>
+	 * Returns a map with the type of each field of the internal CSV representation (see CSV.setSchema).
+	 * </odoc>
+	 */
+	public Map<String, String> getSchema() {
+		LinkedHashMap<String, String> res = new LinkedHashMap<String, String>();
+		for (int i = 0; i < header.size(); i++) {
+			res.put(header.get(i), (i < columns.size()) ? columns.get(i).getSpec() : null);
+		}
+		return res;
+	}
+
+	/**
+	 * <odoc>
+	 * <key>CSV.setTypeInference(aSampleSize, inferAll)</key>
+	 * Sets the number of records (aSampleSize, defaults to 100) used to infer the type of fields not defined with 
+	 * CSV.setSchema when reading into the internal CSV representation. Unquoted fields with all values integer will be
+	 * long, numbers double and otherwise string. Numbers are only inferred if written as they would be written back 
+	 * (e.g. not 007, +1, 1.50 or 1e3) and such values found after the sample are kept as strings. If inferAll = true 
+	 * booleans (true/false) and ISO 8601 dates (e.g. 2017-01-31, 2017-01-31 10:00:00, 2017-01-31T10:00:00.000Z) will 
+	 * also be inferred.
+	 * </odoc>
+	 */
+	public void setTypeInference(int aSampleSize, boolean inferAll) {
+		sampleSize = (aSampleSize <= 0) ? 1 : aSampleSize;
+		inferExtended = inferAll;
 	}
 
 	/**
@@ -52,6 +135,40 @@ public class CSV {
 		separator = sep;
 	}
 
+	/**
+	 * <odoc>
+	 * <key>CSV.writer(aFilenameOrStream, anArrayOfFields, aOptions) : CSVWriter</key>
+	 * Returns a java writer to write records incrementally to aFilenameOrStream (a file name or a java OutputStream)
+	 * without keeping them in memory. The header is anArrayOfFields or, if not provided, the keys of the first map written.
+	 * Records are buffered and written whenever aOptions.flushThreshold characters (default 65536) are reached, so
+	 * a slow output will slow down who is writing. aOptions can also include: gzip (true to compress the output),
+	 * encoding (defaults to UTF-8), separator and quote (default to the ones of this CSV object), lineSeparator and 
+	 * dateFormat (a java date pattern, defaults to ISO 8601). Binary values (arrays of bytes or BLOBs) are written 
+	 * in base64. The writer methods are:\
+	 * \
+	 *   write(aMapOrArray)   - writes a record (a map or an array of values in the header order)\
+	 *   writeAll(aSource)    - writes all records of a DB.qsCursor (values as in DB.q but without building maps), a java Iterator\
+	 *                          or a function returning a record per call and undefined at the end\
+	 *   flush()              - writes the buffered records\
+	 *   close()              - flushes and closes the output (must be called)\
+	 *   getRecords()         - the number of records written\
+	 * \
+	 * Example:\
+	 * \
+	 * var w = (new CSV()).writer("out.csv.gz", [ "ID", "NAME" ], { gzip: true });\
+	 * w.writeAll(db.qsCursor("select id, name from a"));\
+	 * $ch("names").forEach(function(k, v) { w.write(v); });\
+	 * w.close();\
+	 * \
+	 * </odoc>
+	 */
+	public CSVWriter writer(Object output, String[] header, String encoding, boolean gzip) throws IOException {
+		CSVWriter w = new CSVWriter(output, header, encoding, gzip);
+		w.setSeparator(separator);
+		w.setQuote(stringDelimeter);
+		return w;
+	}
+
 	/**
 	 * <odoc>
 	 * <key>CSV.setStringDelimiter(aDelimiter)</key>
@@ -69,16 +186,7 @@ public class CSV {
 		FileReader fr = null;
 		try {
 			fr = new FileReader(aFile);
-			BufferedReader br = new BufferedReader(fr);
-
-			String line = br.readLine();
-
-			if (line != null) readHeader(line);
-			while ((line = br.readLine()) != null) {
-				readValue(line);
-			}
-
-			br.close();
+			read(fr);
 		} catch (IOException e) {
 			//SimpleLog.log(SimpleLog.logtype.ERROR, "Error reading file: " + aFile + ": "+ e.getMessage(),e);
 			throw e;
@@ -101,92 +209,182 @@ public class CSV {
 	 * </odoc>
 	 */
 	public CSV(String csv) throws IOException {
-		isDetermineTypesComplete = false;
 		if (csv.length() > 0) {
 			readString(csv);
 		}
 	}
 
-	protected void readHeader(String line) {
-		int pos = 0;
-		for(String h : line.split(separator)) {
-			header.put(new Long(pos), h);
-			pos++;
+	protected CSVTokenizer newTokenizer(Reader reader) {
+		return new CSVTokenizer(reader, separator, stringDelimeter);
+	}
+
+	/**
+	 * Creates the value converters for streaming, one per field, from the schema (null for the fields whose type
+	 * will be determined from the first value).
+	 */
+	protected CSVColumn[] newConverters(String[] names) {
+		CSVColumn[] converters = new CSVColumn[names.length];
+		for (int i = 0; i < names.length; i++) {
+			String spec = schema.get(names[i]);
+			if (spec != null) converters[i] = CSVColumn.newColumn(CSVColumn.parseType(spec), CSVColumn.parseFormat(spec));
 		}
+		return converters;
 	}
 
-	protected void determineTypes(String line) {
-		int pos = 0;
-		for(String v : line.split(separator)) {
-			if (v.startsWith(stringDelimeter) && v.endsWith(stringDelimeter)) {
-				headerType.put(new Long(pos), valuetypes.STRING);
+	/**
+	 * Creates the converters, for streaming, not created yet from the first non empty value: quoted values are 
+	 * strings, unquoted values that can be parsed as numbers are doubles.
+	 * 
+	 * @return true if the converters of all fields are created
+	 */
+	protected static boolean determineConverters(CSVColumn[] converters, CSVTokenizer tokenizer) {
+		List<String> fields = tokenizer.getFields();
+
+		boolean complete = true;
+		for (int pos = 0; pos < converters.length; pos++) {
+			if (converters[pos] != null) continue;
+			
+			String v = (pos < fields.size()) ? fields.get(pos) : null;
+			if (tokenizer.isQuoted(pos)) {
+				converters[pos] = CSVColumn.newColumn(CSVColumn.Type.STRING, null);
+			} else if (v != null && v.length() > 0) {
+				converters[pos] = CSVColumn.newColumn((CSVColumn.isNumber(v)) ? CSVColumn.Type.DOUBLE : CSVColumn.Type.STRING, null);
 			} else {
-				if (v.length()>0) {
-					try {
-						Double.valueOf(v);
-						headerType.put(new Long(pos), valuetypes.NUMBER);
-					} catch (Exception e) {
-						headerType.put(new Long(pos), valuetypes.STRING);
-					}
-				}
+				complete = false;
 			}
-			pos++;
 		}
+		return complete;
+	}
 
-		if (headerType.size() == header.size()) {
-			isDetermineTypesComplete = true;
-		}
+	/**
+	 * Converts a value using the field converter (the string is kept if there isn't one yet).
+	 */
+	protected static Object toValue(String v, CSVColumn converter) {
+		return (converter == null) ? v : converter.convert(v);
 	}
 
-	protected void readValue(String line) {
-		long pos = 0;
-		Map<String, String> value = new HashMap<String, String>();
+	/**
+	 * Adds records to the internal representation. The first records are kept as a sample until the type of each field
+	 * is inferred and the columns created.
+	 */
+	protected class Loader {
+		protected int nFields;
+		protected String[] specs;
+		protected boolean[] quoted, undetermined;
+		protected ArrayList<String[]> sample = new ArrayList<String[]>();
+
+		public Loader(List<String> names) {
+			header.addAll(names);
+			nFields = names.size();
+			specs = new String[nFields];
+			quoted = new boolean[nFields];
+			for (int i = 0; i < nFields; i++) {
+				specs[i] = schema.get(names.get(i));
+			}
+		}
 
-		if (!isDetermineTypesComplete) determineTypes(line);
+		/**
+		 * Determines if the quoted flags of the next record will be used.
+		 */
+		public boolean needsQuoted() {
+			return undetermined == null || undetermined.length > 0;
+		}
 
-		for(String v : line.split(separator)) {
-			if (headerType.get(new Long(pos)) != null &&
-					headerType.get(new Long(pos)).equals(valuetypes.STRING)) {
-				if (v != null)
-					if (v.equals("\"\"")) {
-						v = "";
-					} else {
-						if (v.length() > 2) {
-							if (v.indexOf(stringDelimeter) == 0) v = v.substring(1, v.length() -1);
-							if (v.indexOf(stringDelimeter) == (v.length() -1)) v = v.substring(0, v.length() - 2);
-						}
-					}
+		public void add(String[] fields, boolean[] fieldsQuoted) {
+			if (undetermined == null) {
+				sample.add(fields);
+				if (fieldsQuoted != null) {
+					for (int i = 0; i < nFields && i < fieldsQuoted.length; i++) quoted[i] |= fieldsQuoted[i];
+				}
+				if (sample.size() >= sampleSize) createColumns();
+			} else {
+				append(fields, fieldsQuoted);
 			}
-			value.put(header.get(new Long(pos)), v);
-			pos++;
 		}
 
-		values.add(value);
-	}
+		protected void createColumns() {
+			ArrayList<Integer> pending = new ArrayList<Integer>();
+			for (int i = 0; i < nFields; i++) {
+				String spec = specs[i];
+				if (spec == null) {
+					ArrayList<String> values = new ArrayList<String>(sample.size());
+					for (String[] fields : sample) {
+						if (i < fields.length && fields[i] != null && fields[i].length() > 0) values.add(fields[i]);
+					}
+					spec = CSVColumn.infer(values, quoted[i], inferExtended);
+					if (spec == null && !quoted[i]) pending.add(i);
+				}
+				CSVColumn column = (spec == null) ? CSVColumn.newColumn(CSVColumn.Type.STRING, null) : CSVColumn.newColumn(CSVColumn.parseType(spec), CSVColumn.parseFormat(spec));
+				// Values after the sample not written as inferred are kept as is
+				column.setExact(specs[i] == null);
+				columns.add(column);
+			}
 
-	protected long readString(String c) throws IOException {
-		StringReader sr = new StringReader(c);
-		BufferedReader br = new BufferedReader(sr);
+			undetermined = new boolean[(pending.isEmpty()) ? 0 : nFields];
+			for (int i : pending) undetermined[i] = true;
+			for (String[] fields : sample) {
+				append(fields, null);
+			}
+			sample = null;
+		}
 
-		clear();
-		long numberOfLines = -1;
+		protected void append(String[] fields, boolean[] fieldsQuoted) {
+			for (int i = 0; i < nFields; i++) {
+				String v = (i < fields.length) ? fields[i] : null;
+				if (undetermined.length > 0 && undetermined[i] && v != null && (v.length() > 0 || (fieldsQuoted != null && i < fieldsQuoted.length && fieldsQuoted[i]))) {
+					// First value of a field without values on the sample
+					String spec = (fieldsQuoted != null && i < fieldsQuoted.length && fieldsQuoted[i]) ? "string" : CSVColumn.infer(Collections.singletonList(v), false, inferExtended);
+					CSVColumn column = columns.get(i).convertTo(CSVColumn.parseType(spec), CSVColumn.parseFormat(spec));
+					column.setExact(true);
+					columns.set(i, column);
+					undetermined[i] = false;
+					boolean any = false;
+					for (boolean u : undetermined) any |= u;
+					if (!any) undetermined = new boolean[0];
+				}
+				columns.get(i).add(v);
+			}
+			size++;
+		}
 
-		try {	 
-			String line = br.readLine();
-			numberOfLines = 1;
-			if (line != null) readHeader(line);
+		public void finish() {
+			if (undetermined == null) createColumns();
+		}
+	}
 
-			while ((line = br.readLine()) != null) {
-				readValue(line);
-				numberOfLines++;
+	/**
+	 * Reads all records from reader into the internal representation.
+	 * 
+	 * @return The number of lines read (including the header)
+	 */
+	protected long read(Reader reader) throws IOException {
+		CSVTokenizer tokenizer = newTokenizer(reader);
+
+		if (!tokenizer.next()) return 0;
+		Loader loader = new Loader(tokenizer.getFields());
+
+		long numberOfLines = 1;
+		while (tokenizer.next()) {
+			boolean[] quoted = null;
+			if (loader.needsQuoted()) {
+				quoted = new boolean[tokenizer.getFields().size()];
+				for (int i = 0; i < quoted.length; i++) quoted[i] = tokenizer.isQuoted(i);
 			}
+			loader.add(tokenizer.getFieldsArray(), quoted);
+			numberOfLines++;
+		}
+		loader.finish();
+		return numberOfLines;
+	}
 
-			br.close();
+	protected long readString(String c) throws IOException {
+		clear();
+		try {	 
+			return read(new StringReader(c));
 		} catch (IOException e) {
 			//SimpleLog.log(SimpleLog.logtype.ERROR, "Error reading string representation: " + e.getMessage(), e);
 			throw e;
 		} 
-		return numberOfLines;
 	}
 
 	/**
@@ -199,6 +397,53 @@ public class CSV {
 		readString(csv);
 	}
 	
+	/**
+	 * <odoc>
+	 * <key>CSV.readStream(aStream, aFunction, anEncoding) : Number</key>
+	 * Reads the CSV from aStream (a java InputStream, decoded using anEncoding (defaults to UTF-8), or a java Reader)
+	 * calling aFunction(aMap, aLineNumber) for each record without keeping them in memory (so it can be used for
+	 * files of any size). Quoted fields can include separators and line breaks (RFC 4180). If aFunction returns false 
+	 * the reading will stop. Returns the number of records read. The internal CSV representation isn't changed.
+	 * </odoc>
+	 */
+	public long stream(Reader reader, RowHandler handler) throws Exception {
+		CSVTokenizer tokenizer = newTokenizer(reader);
+		if (!tokenizer.next()) return 0;
+
+		String[] names = tokenizer.getFieldsArray();
+		CSVColumn[] converters = newConverters(names);
+		boolean complete = false;
+		long count = 0;
+		Object[] row = new Object[names.length];
+		while (tokenizer.next()) {
+			if (!complete) complete = determineConverters(converters, tokenizer);
+
+			List<String> fields = tokenizer.getFields();
+			for (int i = 0; i < names.length; i++) {
+				row[i] = (i < fields.size()) ? toValue(fields.get(i), converters[i]) : null;
+			}
+			count++;
+			if (!handler.handle(count, names, row)) break;
+		}
+		return count;
+	}
+
+	/**
+	 * <odoc>
+	 * <key>CSV.readFileStream(aFilename, aFunction, anEncoding) : Number</key>
+	 * Reads the CSV aFilename (using anEncoding, defaults to UTF-8) calling aFunction(aMap, aLineNumber) for each 
+	 * record without keeping them in memory (see CSV.readStream). Returns the number of records read.
+	 * </odoc>
+	 */
+	public long streamFile(String aFile, String encoding, RowHandler handler) throws Exception {
+		Reader reader = new InputStreamReader(new FileInputStream(aFile), (encoding == null) ? "UTF-8" : encoding);
+		try {
+			return stream(reader, handler);
+		} finally {
+			reader.close();
+		}
+	}
+	
 	/**
 	 * <odoc>
 	 * <key>CSV.toCsv(anArrayOfMaps, anArrayOfKeys)</key>
@@ -209,43 +454,34 @@ public class CSV {
 	 */
 	public void toCsv(ArrayList<HashMap<String, Object>> o, Object[] heads) {
 		clear();
-		HashMap<String, String> value = null;
-
-		long pos = -1;
-
-		if (o == null) return;
-
-		for (int l = 0; l < o.size(); l++) {
-			HashMap<String, Object> obj = o.get(l);
-			if(heads == null)
-				heads = obj.keySet().toArray();
-
-			pos = 0;
-			value = new HashMap<String, String>();
-
-			for (int i = 0; i < ((Object[]) heads).length; i++) {
-				String key = (String) ((Object[]) heads)[i];
-				if (l == 0) {
-					header.put(new Long(pos), key.toString());
-					if ((obj.get(key) instanceof Double) || 
-							(obj.get(key) instanceof Integer) || 
-							(obj.get(key) instanceof Long))
-						headerType.put(new Long(pos), valuetypes.NUMBER);
-					else {
-						headerType.put(new Long(pos), valuetypes.STRING);
-					}
-				}
 
-				if (obj.get(key) != null) 
-					value.put(key.toString(), obj.get(key).toString());
-				else 
-					value.put(key.toString(), null);
+		if (o == null || o.isEmpty()) return;
+
+		if (heads == null) heads = o.get(0).keySet().toArray();
+		for (Object key : heads) {
+			header.add(key.toString());
+
+			Object v = o.get(0).get(key.toString());
+			String spec = schema.get(key.toString());
+			CSVColumn.Type type;
+			if (spec != null) 
+				type = CSVColumn.parseType(spec);
+			else if (v instanceof Number)
+				type = CSVColumn.Type.DOUBLE;
+			else if (v instanceof Boolean)
+				type = CSVColumn.Type.BOOLEAN;
+			else if (v instanceof Date)
+				type = CSVColumn.Type.DATE;
+			else
+				type = CSVColumn.Type.STRING;
+			columns.add(CSVColumn.newColumn(type, (spec != null) ? CSVColumn.parseFormat(spec) : null));
+		}
 
-				pos++;
+		for (HashMap<String, Object> obj : o) {
+			for (int i = 0; i < heads.length; i++) {
+				columns.get(i).addValue(obj.get(heads[i].toString()));
 			}
-
-			if (value.size() > 0)
-				values.add(value);
+			size++;
 		}
 	}
 
@@ -256,6 +492,27 @@ public class CSV {
 		System.out.println(s);
 	}
 
+	/**
+	 * Appends a record with the separator and quoting strings (escaping delimiters inside them).
+	 */
+	protected void appendRecord(StringBuilder sb, int row, boolean isHeader) {
+		for (int i = 0; i < header.size(); i++) {
+			CSVColumn column = (isHeader) ? null : columns.get(i);
+			String s = (isHeader) ? header.get(i) : column.getString(row);
+			if (isHeader || column.getType() != CSVColumn.Type.STRING) {
+				if (s != null) sb.append(s);
+			} else {
+				sb.append(stringDelimeter);
+				if (s != null) sb.append((stringDelimeter.length() > 0) ? s.replace(stringDelimeter, stringDelimeter + stringDelimeter) : s);
+				sb.append(stringDelimeter);
+			}
+
+			if (i < header.size() - 1) {
+				sb.append(separator);
+			}
+		}
+	}
+
 	/**
 	 * <odoc>
 	 * <key>CSV.writeFile(aFilename) : Number</key>
@@ -269,34 +526,17 @@ public class CSV {
 
 		try {
 			pw = new PrintWriter(aFile);
-			String line = "";
-
-			for (long i = 0; i < this.header.keySet().size(); i++) {
-				line = line + header.get(Long.valueOf(i));
-				if (i < this.header.keySet().size() - 1) {
-					line = line + separator;
-				}
-			}
+			StringBuilder line = new StringBuilder();
 
+			appendRecord(line, -1, true);
 			pw.println(line);
 			numberOfLines = 1;
 
-			for (Map<?, ?> v : values) {
-				line = "";
-
-				for (long i = 0; i < header.keySet().size(); i++) {
-					if (headerType.get(new Long(i)) == valuetypes.NUMBER) {
-						line = line + ((String) v.get(header.get(new Long(i))));
-					} else {
-						line = line + stringDelimeter + ((String)v.get(this.header.get(new Long(i)))) + stringDelimeter;
-					}
+			for (int row = 0; row < size; row++) {
+				line.setLength(0);
+				appendRecord(line, row, false);
 
-					if (i < this.header.keySet().size() - 1) {
-						line = line + separator;
-					}
-				}
-
-				if (numberOfLines == this.values.size()) {
+				if (numberOfLines == size) {
 					pw.print(line);
 				} else {
 					pw.println(line);
@@ -330,30 +570,14 @@ public class CSV {
 
 		sw = new StringWriter();
 		pw = new PrintWriter(sw);
-		String line = "";
-
-		for (long i = 0; i < header.keySet().size(); i++) {
-			line = line + ((String) header.get(Long.valueOf(i)));
-			if (i < header.keySet().size() - 1) {
-				line = line + separator;
-			}
-		}
+		StringBuilder line = new StringBuilder();
 
+		appendRecord(line, -1, true);
 		pw.println(line);
 
-		for (Map<String, String> v : values) {
-			line = "";
-			for (long i = 0; i < header.keySet().size(); i++) {
-				if (headerType.get(new Long(i)) == valuetypes.NUMBER)
-					line = line + ((String)v.get(header.get(new Long(i))));
-				else {
-					line = line + stringDelimeter + ((String)v.get(header.get(new Long(i)))) + stringDelimeter;
-				}
-
-				if (i < header.keySet().size() - 1) {
-					line = line + separator;
-				}
-			}
+		for (int row = 0; row < size; row++) {
+			line.setLength(0);
+			appendRecord(line, row, false);
 			pw.println(line);
 		}
 
@@ -385,18 +609,7 @@ public class CSV {
 
 		try {
 			fr = new FileReader(aFile);
-			BufferedReader br = new BufferedReader(fr);
-
-			String line = br.readLine();
-			numberOfLines = 1;
-			if (line != null) readHeader(line);
-
-			while ((line = br.readLine()) != null) {
-				readValue(line);
-				numberOfLines++;
-			}
-
-			br.close();
+			numberOfLines = read(new BufferedReader(fr));
 		} catch (IOException e) {
 			//SimpleLog.log(SimpleLog.logtype.ERROR, "Error reading file: " + aFile + ": " + e.getMessage(), e);
 			throw e;
@@ -412,6 +625,51 @@ public class CSV {
 		return numberOfLines;
 	}
 
+	/**
+	 * <odoc>
+	 * <key>CSV.readFileParallel(aFilename, aFunction, aOptions) : Number</key>
+	 * Reads the CSV aFilename splitting it in chunks (of aOptions.chunkSize bytes, default 4MB, ending on a record
+	 * boundary) parsed in parallel by aOptions.threads (defaults to the number of processors). The file is memory mapped
+	 * and its encoding (aOptions.encoding, defaults to UTF-8) must be ASCII compatible (e.g. UTF-8, ISO-8859-1). If aFunction
+	 * is provided it will be called, always on the current thread, with aFunction(anArrayOfMaps, aChunkNumber) for each
+	 * chunk in file order or, if aOptions.ordered = false, as soon as each chunk is parsed. Returning false from aFunction
+	 * stops the reading. Without aFunction all records are read into the internal CSV representation, in file order.
+	 * Returns the number of records read (excluding the header). See also CSV.readFile2Channel.
+	 * </odoc>
+	 */
+	public long streamFileParallel(String aFile, String encoding, int parallelism, int chunkSize, boolean ordered, final ChunkHandler handler) throws Exception {
+		final CSVParallelReader reader = new CSVParallelReader(aFile, encoding, separator, stringDelimeter, parallelism, chunkSize, true);
+		reader.setSchema(schema);
+		return reader.read(new CSVParallelReader.ChunkConsumer() {
+			public boolean accept(CSVParallelReader.Chunk chunk) throws Exception {
+				return handler.handle(chunk.index, reader.getHeader(), chunk.rows);
+			}
+		}, ordered);
+	}
+
+	/**
+	 * Reads aFile in parallel (see streamFileParallel) into the internal representation.
+	 *
+	 * @return The number of records read (excluding the header)
+	 */
+	public long readFileParallel(String aFile, String encoding, int parallelism, int chunkSize) throws Exception {
+		clear();
+		final CSVParallelReader reader = new CSVParallelReader(aFile, encoding, separator, stringDelimeter, parallelism, chunkSize, false);
+		final Loader[] loader = new Loader[1];
+		long count = reader.read(new CSVParallelReader.ChunkConsumer() {
+			public boolean accept(CSVParallelReader.Chunk chunk) {
+				if (loader[0] == null) loader[0] = new Loader(Arrays.asList(reader.getHeader()));
+				for (Object[] row : chunk.rows) {
+					loader[0].add((String[]) row, chunk.quoted);
+				}
+				return true;
+			}
+		}, true);
+
+		if (loader[0] != null) loader[0].finish();
+		return count;
+	}
+
 	/**
 	 * <odoc>
 	 * <key>CSV.csv() : Array</key>
@@ -419,46 +677,66 @@ public class CSV {
 	 * </odoc>
 	 */
 	public ArrayList<HashMap<String, Object>> csv() {
-		ArrayList<HashMap<String, Object>> records = new ArrayList<HashMap<String, Object>>();
-
-		for (Map<String, String> v : values) {
-			// jsong.writeStartObject();
-			HashMap<String, Object> record = new HashMap<String, Object>();
-
-			for (long i = 0; i < header.keySet().size(); i++) {
-				if (this.headerType.get(new Long(i)) == valuetypes.NUMBER)
-					try {
-						Long l = Long.getLong((String) v.get(header.get(new Long(i))));
-						// jsong.writeNumberField((String)
-						// header.get(Long.valueOf(i)), l.longValue());
-						record.put((String) header.get(Long.valueOf(i)), l.longValue());
-					} catch (Exception e) {
-						try {
-							Double d = Double.valueOf((String) v.get(header.get(new Long(i))));
-							// jsong.writeNumberField((String)header.get(Long.valueOf(i)),
-							// d.doubleValue());
-							record.put((String) header.get(Long.valueOf(i)), d.doubleValue());
-						} catch (Exception e1) {
-							// jsong.writeStringField((String)header.get(Long.valueOf(i)),
-							// (String)v.get(header.get(new Long(i))));
-							record.put((String) header.get(Long.valueOf(i)), (String) v.get(header.get(new Long(i))));
-						}
-					}
-				else {
-					// jsong.writeStringField((String)header.get(Long.valueOf(i)),
-					// (String)v.get(header.get(new Long(i))));
-					record.put((String) header.get(Long.valueOf(i)), (String) v.get(header.get(new Long(i))));
-				}
-			}
-			// jsong.writeEndObject();
-			records.add(record);
+		ArrayList<HashMap<String, Object>> records = new ArrayList<HashMap<String, Object>>(size);
+		for (int row = 0; row < size; row++) {
+			records.add(getRecord(row));
 		}
-
-		// return AFCmd.cx.evaluateString(AFCmd.globalscope, "JSON.parse('" +
-		// out.toString() + "');", "<csv>" + System.currentTimeMillis(), 1,
-		// null);
 		return records;
 	}
 
+	/**
+	 * <odoc>
+	 * <key>CSV.size() : Number</key>
+	 * Returns the number of records on the internal CSV representation.
+	 * </odoc>
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Returns the field names.
+	 */
+	public String[] getHeader() {
+		return header.toArray(new String[header.size()]);
+	}
+
+	/**
+	 * Returns the value of a field of a record (Long, Double, Boolean, Date, String or null).
+	 */
+	public Object getValue(int row, int field) {
+		return columns.get(field).get(row);
+	}
+
+	/**
+	 * <odoc>
+	 * <key>CSV.getRecord(aIndex) : Map</key>
+	 * Returns the record aIndex (starting on 0) of the internal CSV representation.
+	 * </odoc>
+	 */
+	public HashMap<String, Object> getRecord(int row) {
+		if (row < 0 || row >= size) throw new IndexOutOfBoundsException("Record " + row + " doesn't exist (" + size + " records).");
+		HashMap<String, Object> record = new HashMap<String, Object>();
+		for (int i = 0; i < header.size(); i++) {
+			record.put(header.get(i), columns.get(i).get(row));
+		}
+		return record;
+	}
 
-}
+	/**
+	 * <odoc>
+	 * <key>CSV.getColumn(aFieldName) : Array</key>
+	 * Returns an array with all the values of aFieldName on the internal CSV representation.
+	 * </odoc>
+	 */
+	public Object[] getColumn(String name) {
+		int field = header.indexOf(name);
+		if (field < 0) throw new IllegalArgumentException("Field " + name + " doesn't exist.");
+		CSVColumn column = columns.get(field);
+		Object[] res = new Object[size];
+		for (int row = 0; row < size; row++) {
+			res[row] = column.get(row);
+		}
+		return res;
+	}
+}
\ No newline at end of file
@@ -0,0 +1,499 @@
+package wedo.openaf.core;
+
+import java.text.ParsePosition;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Column storage for the CSV internal representation. Values are kept in primitive arrays according to the
+ * column type (long, double, boolean, date as epoch ms or dictionary encoded strings). Values that can't be
+ * converted to the column type are kept as the original string.
+ *
+ * @author Nuno Aguiar <nuno.aguiar@wedotechnologies.com>
+ *
+ */
+public abstract class CSVColumn {
+	public enum Type { STRING, LONG, DOUBLE, BOOLEAN, DATE };
+
+	public static final String DEFAULT_DATE_FORMAT = "yyyy-MM-dd'T'HH:mm:ss.SSSXXX";
+	protected static final Pattern DATE = Pattern.compile("\\d{4}-\\d{2}-\\d{2}(([T ])\\d{2}:\\d{2}(:\\d{2}(\\.\\d{3})?)?(Z|[+-]\\d{2}:?\\d{2})?)?");
+	protected static final byte TYPED = 0, NULL = 1, RAW = 2;
+
+	protected int size = 0;
+	protected boolean exact = false;
+	protected byte[] states;
+	protected HashMap<Integer, String> raw;
+
+	/**
+	 * Creates a new empty column.
+	 *
+	 * @param type The column type
+	 * @param format The date pattern (for DATE columns, if null determined from the first value)
+	 */
+	public static CSVColumn newColumn(Type type, String format) {
+		switch(type) {
+		case LONG: return new LongColumn();
+		case DOUBLE: return new DoubleColumn();
+		case BOOLEAN: return new BooleanColumn();
+		case DATE: return new DateColumn(format);
+		default: return new StringColumn();
+		}
+	}
+
+	/**
+	 * Parses a type specification ("string", "long", "double", "number", "boolean" or "date" optionally followed by
+	 * ":" and a date pattern).
+	 */
+	public static Type parseType(String spec) {
+		String name = (spec.indexOf(':') > 0) ? spec.substring(0, spec.indexOf(':')) : spec;
+		name = name.trim().toUpperCase();
+		if (name.equals("NUMBER")) return Type.DOUBLE;
+		try {
+			return Type.valueOf(name);
+		} catch (IllegalArgumentException e) {
+			throw new IllegalArgumentException("Unknown CSV field type '" + spec + "' (expected string, long, double, number, boolean or date)");
+		}
+	}
+
+	/**
+	 * Returns the date pattern of a type specification (e.g. "date:yyyy-MM-dd") or null.
+	 */
+	public static String parseFormat(String spec) {
+		return (spec.indexOf(':') > 0) ? spec.substring(spec.indexOf(':') + 1) : null;
+	}
+
+	/**
+	 * Checks if v is an integer that fits a long.
+	 */
+	public static boolean isLong(String v) {
+		int len = v.length(), i = 0;
+		if (len == 0) return false;
+		if (v.charAt(0) == '-' || v.charAt(0) == '+') i++;
+		if (i == len || len - i > 19) return false;
+		for (; i < len; i++) {
+			char c = v.charAt(i);
+			if (c < '0' || c > '9') return false;
+		}
+		if (len < 19) return true;
+		try {
+			Long.parseLong(v);
+			return true;
+		} catch (NumberFormatException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Checks if v can be parsed as a double without relying on exceptions for the usual cases.
+	 */
+	public static boolean isNumber(String v) {
+		int len = v.length();
+		boolean digits = false;
+		for (int i = 0; i < len; i++) {
+			char c = v.charAt(i);
+			if (c >= '0' && c <= '9') {
+				digits = true;
+			} else if (!(c == '.' || c == '-' || c == '+' || c == 'e' || c == 'E')) {
+				// Other valid forms (e.g. Infinity) are rare so use the parser
+				try {
+					Double.valueOf(v);
+					return true;
+				} catch (NumberFormatException e) {
+					return false;
+				}
+			}
+		}
+		if (!digits) return false;
+		try {
+			Double.valueOf(v);
+			return true;
+		} catch (NumberFormatException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Checks if a number is written exactly as it would be formatted back (e.g. not "007", "+1", "1.50" or "1e3"), so
+	 * inferring a numeric type doesn't change the text of values like identifiers, codes or amounts.
+	 */
+	public static boolean isCanonical(String v) {
+		if (isLong(v)) return Long.toString(Long.parseLong(v)).equals(v);
+		return isNumber(v) && formatDouble(Double.parseDouble(v)).equals(v);
+	}
+
+	public static boolean isBoolean(String v) {
+		return v.equalsIgnoreCase("true") || v.equalsIgnoreCase("false");
+	}
+
+	/**
+	 * Returns the pattern of an ISO 8601 like date (e.g. 2017-01-31, 2017-01-31 10:00:00 or 2017-01-31T10:00:00.000Z) or null.
+	 */
+	public static String datePattern(String v) {
+		Matcher m = DATE.matcher(v);
+		if (!m.matches()) return null;
+		if (m.group(1) == null) return "yyyy-MM-dd";
+
+		StringBuilder sb = new StringBuilder("yyyy-MM-dd");
+		sb.append((m.group(2).equals("T")) ? "'T'" : " ").append("HH:mm");
+		if (m.group(3) != null) sb.append(":ss");
+		if (m.group(4) != null) sb.append(".SSS");
+		if (m.group(5) != null) sb.append((m.group(5).equals("Z") || m.group(5).indexOf(':') > 0) ? "XXX" : "XX");
+		return sb.toString();
+	}
+
+	/**
+	 * Infers the type of a column from a sample of its non empty values (null if there are no values). Numbers with
+	 * text that wouldn't be written back the same (e.g. leading zeros, "+", trailing decimal zeros or exponents) keep 
+	 * the column as a string.
+	 *
+	 * @param values The sample values
+	 * @param quoted If any of the values was quoted (making it a string)
+	 * @param extended If booleans and dates should also be inferred
+	 * @return The type and, for dates, the pattern (as a type specification, e.g. "date:yyyy-MM-dd")
+	 */
+	public static String infer(List<String> values, boolean quoted, boolean extended) {
+		if (values.isEmpty()) return null;
+		if (quoted) return "string";
+
+		boolean isLong = true, isDouble = true, isBool = extended, isDate = extended;
+		String pattern = null;
+		for (String v : values) {
+			if (isDouble && !isCanonical(v)) isLong = isDouble = false;
+			if (isLong && !isLong(v)) isLong = false;
+			if (!isLong && isDouble && !isNumber(v)) isDouble = false;
+			if (isBool && !isBoolean(v)) isBool = false;
+			if (isDate) {
+				String p = datePattern(v);
+				if (p == null || (pattern != null && !pattern.equals(p))) isDate = false; else pattern = p;
+			}
+			if (!isDouble && !isBool && !isDate) return "string";
+		}
+		if (isLong) return "long";
+		if (isDouble) return "double";
+		if (isBool) return "boolean";
+		return "date:" + pattern;
+	}
+
+	/**
+	 * Formats a double without exponent or decimal part if it's an integer.
+	 */
+	public static String formatDouble(double d) {
+		if (d == Math.rint(d) && Math.abs(d) < 1e15) return Long.toString((long) d);
+		return Double.toString(d);
+	}
+
+	public abstract Type getType();
+
+	/**
+	 * If exact numbers whose text wouldn't be written back the same (see isCanonical) are kept as the original
+	 * string (used for inferred types).
+	 */
+	public void setExact(boolean exact) {
+		this.exact = exact;
+	}
+
+	/**
+	 * Returns the type specification (e.g. "long" or "date:yyyy-MM-dd").
+	 */
+	public String getSpec() {
+		return getType().name().toLowerCase();
+	}
+
+	public int size() {
+		return size;
+	}
+
+	protected abstract void grow(int capacity);
+	protected abstract boolean parse(int row, String v);
+	protected abstract boolean set(int row, Object o);
+	protected abstract Object value(int row);
+	protected abstract String text(int row);
+
+	protected void ensure() {
+		if (states != null && size >= states.length) states = Arrays.copyOf(states, Math.max(16, states.length * 2));
+		grow(size + 1);
+	}
+
+	protected void setState(int row, byte state) {
+		if (states == null) {
+			if (state == TYPED) return;
+			states = new byte[Math.max(16, size * 2)];
+		}
+		states[row] = state;
+	}
+
+	protected void setRaw(int row, String v) {
+		if (raw == null) raw = new HashMap<Integer, String>();
+		raw.put(row, v);
+		setState(row, RAW);
+	}
+
+	/**
+	 * Adds a string value (null or, for non string columns, empty values are stored as null).
+	 */
+	public void add(String v) {
+		ensure();
+		int row = size++;
+		if (v == null || (v.length() == 0 && getType() != Type.STRING)) {
+			setState(row, NULL);
+		} else if (parse(row, v)) {
+			setState(row, TYPED);
+		} else {
+			setRaw(row, v);
+		}
+	}
+
+	/**
+	 * Adds a java value (converted to the column type if needed).
+	 */
+	public void addValue(Object o) {
+		if (o == null || !set(size, o)) {
+			add((o == null) ? null : o.toString());
+		} else {
+			ensure();
+			setState(size++, TYPED);
+		}
+	}
+
+	/**
+	 * Converts a string to the column type without storing it (returns the string if not possible).
+	 */
+	public Object convert(String v) {
+		if (v == null || (v.length() == 0 && getType() != Type.STRING)) return null;
+		ensure();
+		if (!parse(size, v)) return v;
+		return value(size);
+	}
+
+	protected byte state(int row) {
+		return (states == null) ? TYPED : states[row];
+	}
+
+	/**
+	 * Returns the value of row (Long, Double, Boolean, Date, String or null).
+	 */
+	public Object get(int row) {
+		switch(state(row)) {
+		case NULL: return null;
+		case RAW : return raw.get(row);
+		default  : return value(row);
+		}
+	}
+
+	/**
+	 * Returns the value of row as text (null if null).
+	 */
+	public String getString(int row) {
+		switch(state(row)) {
+		case NULL: return null;
+		case RAW : return raw.get(row);
+		default  : return text(row);
+		}
+	}
+
+	/**
+	 * Returns a new column of the given type with the current values converted.
+	 */
+	public CSVColumn convertTo(Type type, String format) {
+		CSVColumn col = newColumn(type, format);
+		for (int i = 0; i < size; i++) {
+			col.add(getString(i));
+		}
+		return col;
+	}
+
+	protected static int capacity(int current, int needed) {
+		return (needed <= current) ? current : Math.max(needed, Math.max(16, current + (current >> 1)));
+	}
+
+	public static class LongColumn extends CSVColumn {
+		protected long[] values = new long[16];
+
+		public Type getType() { return Type.LONG; }
+		protected void grow(int capacity) { if (capacity > values.length) values = Arrays.copyOf(values, capacity(values.length, capacity)); }
+		protected Object value(int row) { return values[row]; }
+		protected String text(int row) { return Long.toString(values[row]); }
+
+		public long getLong(int row) { return values[row]; }
+
+		protected boolean parse(int row, String v) {
+			if (!isLong(v) || (exact && !isCanonical(v))) return false;
+			values[row] = Long.parseLong((v.charAt(0) == '+') ? v.substring(1) : v);
+			return true;
+		}
+
+		protected boolean set(int row, Object o) {
+			if (!(o instanceof Long || o instanceof Integer || o instanceof Short || o instanceof Byte)) return false;
+			grow(row + 1);
+			values[row] = ((Number) o).longValue();
+			return true;
+		}
+	}
+
+	public static class DoubleColumn extends CSVColumn {
+		protected double[] values = new double[16];
+
+		public Type getType() { return Type.DOUBLE; }
+		protected void grow(int capacity) { if (capacity > values.length) values = Arrays.copyOf(values, capacity(values.length, capacity)); }
+		protected Object value(int row) { return values[row]; }
+		protected String text(int row) { return formatDouble(values[row]); }
+
+		public double getDouble(int row) { return values[row]; }
+
+		protected boolean parse(int row, String v) {
+			if (!isNumber(v) || (exact && !isCanonical(v))) return false;
+			values[row] = Double.parseDouble(v);
+			return true;
+		}
+
+		protected boolean set(int row, Object o) {
+			if (!(o instanceof Number)) return false;
+			grow(row + 1);
+			values[row] = ((Number) o).doubleValue();
+			return true;
+		}
+	}
+
+	public static class BooleanColumn extends CSVColumn {
+		protected boolean[] values = new boolean[16];
+
+		public Type getType() { return Type.BOOLEAN; }
+		protected void grow(int capacity) { if (capacity > values.length) values = Arrays.copyOf(values, capacity(values.length, capacity)); }
+		protected Object value(int row) { return values[row]; }
+		protected String text(int row) { return (values[row]) ? "true" : "false"; }
+
+		protected boolean parse(int row, String v) {
+			if (!isBoolean(v)) return false;
+			values[row] = v.equalsIgnoreCase("true");
+			return true;
+		}
+
+		protected boolean set(int row, Object o) {
+			if (!(o instanceof Boolean)) return false;
+			grow(row + 1);
+			values[row] = (Boolean) o;
+			return true;
+		}
+	}
+
+	public static class DateColumn extends CSVColumn {
+		protected long[] values = new long[16];
+		protected String format;
+		protected SimpleDateFormat df;
+		protected ParsePosition pp = new ParsePosition(0);
+
+		public DateColumn(String format) {
+			if (format != null) setFormat(format);
+		}
+
+		protected void setFormat(String format) {
+			this.format = format;
+			this.df = new SimpleDateFormat(format);
+			this.df.setLenient(false);
+		}
+
+		public Type getType() { return Type.DATE; }
+		public String getSpec() { return "date:" + ((format == null) ? DEFAULT_DATE_FORMAT : format); }
+		protected void grow(int capacity) { if (capacity > values.length) values = Arrays.copyOf(values, capacity(values.length, capacity)); }
+		protected Object value(int row) { return new Date(values[row]); }
+
+		protected String text(int row) {
+			if (df == null) setFormat(DEFAULT_DATE_FORMAT);
+			return df.format(new Date(values[row]));
+		}
+
+		protected boolean parse(int row, String v) {
+			if (df == null) {
+				String p = datePattern(v);
+				if (p == null) return false;
+				setFormat(p);
+			}
+			pp.setIndex(0);
+			pp.setErrorIndex(-1);
+			Date d = df.parse(v, pp);
+			if (d == null || pp.getIndex() != v.length()) return false;
+			values[row] = d.getTime();
+			return true;
+		}
+
+		protected boolean set(int row, Object o) {
+			if (!(o instanceof Date)) return false;
+			grow(row + 1);
+			values[row] = ((Date) o).getTime();
+			return true;
+		}
+	}
+
+	/**
+	 * Strings are dictionary encoded while the number of distinct values is small (otherwise kept as is).
+	 */
+	public static class StringColumn extends CSVColumn {
+		protected static final int MAX_DICTIONARY = 65536;
+
+		protected int[] codes = new int[16];
+		protected HashMap<String, Integer> dictionary = new HashMap<String, Integer>();
+		protected ArrayList<String> words = new ArrayList<String>();
+		protected String[] plain;
+
+		public Type getType() { return Type.STRING; }
+		public Object convert(String v) { return v; }
+
+		protected void grow(int capacity) {
+			if (plain != null) {
+				if (capacity > plain.length) plain = Arrays.copyOf(plain, capacity(plain.length, capacity));
+			} else {
+				if (capacity > codes.length) codes = Arrays.copyOf(codes, capacity(codes.length, capacity));
+			}
+		}
+
+		protected Object value(int row) { return text(row); }
+		protected String text(int row) { return (plain != null) ? plain[row] : words.get(codes[row]); }
+
+		protected boolean parse(int row, String v) {
+			if (plain != null) {
+				plain[row] = v;
+				return true;
+			}
+
+			Integer code = dictionary.get(v);
+			if (code == null) {
+				if (words.size() >= MAX_DICTIONARY && words.size() > row / 2) {
+					// Too many distinct values for the dictionary to pay off
+					plain = new String[codes.length];
+					for (int i = 0; i < row; i++) {
+						if (state(i) == TYPED) plain[i] = words.get(codes[i]);
+					}
+					codes = null;
+					dictionary = null;
+					words = null;
+					plain[row] = v;
+					return true;
+				}
+				code = words.size();
+				words.add(v);
+				dictionary.put(v, code);
+			}
+			codes[row] = code;
+			return true;
+		}
+
+		protected boolean set(int row, Object o) {
+			if (!(o instanceof String)) return false;
+			grow(row + 1);
+			return parse(row, (String) o);
+		}
+
+		/**
+		 * Returns the number of distinct values (or -1 if not dictionary encoded).
+		 */
+		public int getDictionarySize() {
+			return (words == null) ? -1 : words.size();
+		}
+	}
+}
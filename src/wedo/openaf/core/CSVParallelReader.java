@@ -0,0 +1,306 @@
+package wedo.openaf.core;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Parallel CSV file reader used by CSV.readFileParallel. The file is memory mapped and split into byte ranges
+ * ending on record boundaries (a line feed outside a quoted field) which are parsed by the workers of a fork/join
+ * pool. Parsed chunks are handed to a consumer on the calling thread, in file order or as soon as they are
+ * ready, keeping at most two chunks per worker in memory.
+ *
+ * @author Nuno Aguiar <nuno.aguiar@wedotechnologies.com>
+ *
+ */
+public class CSVParallelReader {
+	protected static final int WINDOW = 64 * 1024 * 1024;
+	protected static final int DEFAULT_CHUNK = 4 * 1024 * 1024;
+
+	protected String file;
+	protected Charset charset;
+	protected String separator, quote;
+	protected int parallelism, chunkSize;
+	protected boolean convert;
+
+	protected String[] header;
+	protected Map<String, String> schema;
+	protected String[] baseSpecs;
+
+	/**
+	 * A parsed chunk: the records (strings or, if converting, typed values), the field types found and, if 
+	 * not converting, the fields with quoted values.
+	 */
+	protected static class Chunk {
+		public long index;
+		public List<Object[]> rows;
+		public String[] specs;
+		public boolean[] quoted;
+	}
+
+	/**
+	 * Receives each parsed chunk (always on the thread calling read).
+	 */
+	protected interface ChunkConsumer {
+		public boolean accept(Chunk chunk) throws Exception;
+	}
+
+	/**
+	 * Creates a new parallel reader.
+	 *
+	 * @param file The CSV file
+	 * @param encoding The file encoding (must encode line feeds and the quote as single bytes like UTF-8 or ISO-8859-1)
+	 * @param separator The field separator
+	 * @param quote The string delimiter
+	 * @param parallelism The number of workers (if <= 0 the number of available processors)
+	 * @param chunkSize The approximate size, in bytes, of each chunk (if <= 0 4MB)
+	 * @param convert If true numeric fields are converted to doubles on the workers
+	 */
+	public CSVParallelReader(String file, String encoding, String separator, String quote, int parallelism, int chunkSize, boolean convert) {
+		this.file = file;
+		this.charset = Charset.forName((encoding == null) ? "UTF-8" : encoding);
+		this.separator = separator;
+		this.quote = quote;
+		this.parallelism = (parallelism <= 0) ? Runtime.getRuntime().availableProcessors() : parallelism;
+		this.chunkSize = (chunkSize <= 0) ? DEFAULT_CHUNK : chunkSize;
+		this.convert = convert;
+	}
+
+	/**
+	 * Sets the type of each field when converting (see CSV.setSchema).
+	 */
+	public void setSchema(Map<String, String> schema) {
+		this.schema = schema;
+	}
+
+	/**
+	 * Determines if records can be split at byte level (line feed and quote encoded as the corresponding ASCII byte).
+	 */
+	protected boolean isSplittable() {
+		ByteBuffer bb = charset.encode("\n" + ((quote == null || quote.length() == 0) ? "" : quote.substring(0, 1)));
+		if (bb.remaining() != ((quote == null || quote.length() == 0) ? 1 : 2) || bb.get(0) != '\n') return false;
+		return bb.remaining() == 1 || (quote.charAt(0) < 128 && bb.get(1) == quote.charAt(0));
+	}
+
+	/**
+	 * Walks the file sequentially, through mapped windows, finding record boundaries. Only bytes are looked at
+	 * (no decoding) tracking if the current position is inside a quoted field like CSVTokenizer does.
+	 */
+	protected class BoundaryScanner {
+		protected FileChannel fc;
+		protected long size, pos = 0, windowStart = 0, windowEnd = 0;
+		protected MappedByteBuffer window;
+		protected int quoteByte, sepByte;
+		protected boolean fieldStart = true;
+
+		public BoundaryScanner(FileChannel fc) throws IOException {
+			this.fc = fc;
+			this.size = fc.size();
+			this.quoteByte = (quote == null || quote.length() == 0) ? -1 : quote.charAt(0);
+			String sep = CSVTokenizer.unescape(separator);
+			this.sepByte = sep.charAt(sep.length() - 1);
+		}
+
+		protected int get(long p) throws IOException {
+			if (p < windowStart || p >= windowEnd) {
+				windowStart = p;
+				windowEnd = Math.min(size, p + WINDOW);
+				window = fc.map(FileChannel.MapMode.READ_ONLY, windowStart, windowEnd - windowStart);
+			}
+			return window.get((int) (p - windowStart));
+		}
+
+		public boolean hasMore() {
+			return pos < size;
+		}
+
+		/**
+		 * Returns the position after the first record end found at or after target (or the file size).
+		 */
+		public long next(long target) throws IOException {
+			boolean inQuotes = false;
+			while (pos < size) {
+				int b = get(pos++);
+				if (inQuotes) {
+					if (b == quoteByte) {
+						if (pos < size && get(pos) == quoteByte) pos++; else inQuotes = false;
+					}
+				} else if (b == '\n') {
+					fieldStart = true;
+					if (pos >= target) return pos;
+				} else if (b == quoteByte && fieldStart) {
+					inQuotes = true;
+					fieldStart = false;
+				} else {
+					fieldStart = (b == sepByte || b == '\r');
+				}
+			}
+			return size;
+		}
+	}
+
+	/**
+	 * Parses the byte range [start, end[ of the file.
+	 */
+	protected Chunk parse(FileChannel fc, long index, long start, long end) throws IOException {
+		if (end - start > Integer.MAX_VALUE) throw new IOException("CSV record too big to be split (at byte " + start + " of " + file + ")");
+
+		MappedByteBuffer mbb = fc.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+		CharsetDecoder decoder = charset.newDecoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+		CharBuffer cb = decoder.decode(mbb);
+		CSVTokenizer tokenizer = new CSVTokenizer(cb.array(), cb.arrayOffset() + cb.position(), cb.remaining(), separator, quote);
+
+		Chunk chunk = new Chunk();
+		chunk.index = index;
+		chunk.rows = new ArrayList<Object[]>();
+		if (header == null) {
+			if (tokenizer.next()) header = tokenizer.getFieldsArray();
+			return chunk;
+		}
+
+		int nFields = header.length;
+		CSVColumn[] converters = new CSVColumn[nFields];
+		boolean complete = true;
+		if (convert) {
+			// Each chunk has its own converters as they aren't thread safe
+			for (int i = 0; i < nFields; i++) {
+				String spec = (baseSpecs != null) ? baseSpecs[i] : ((schema != null) ? schema.get(header[i]) : null);
+				if (spec != null) converters[i] = CSVColumn.newColumn(CSVColumn.parseType(spec), CSVColumn.parseFormat(spec));
+				complete &= (spec != null);
+			}
+		} else {
+			chunk.quoted = new boolean[nFields];
+		}
+
+		while (tokenizer.next()) {
+			List<String> fields = tokenizer.getFields();
+			if (convert) {
+				if (!complete) complete = CSV.determineConverters(converters, tokenizer);
+			} else {
+				for (int i = 0; i < nFields && i < fields.size(); i++) chunk.quoted[i] |= tokenizer.isQuoted(i);
+			}
+
+			String[] value = new String[nFields];
+			for (int i = 0; i < nFields && i < fields.size(); i++) {
+				value[i] = fields.get(i);
+			}
+			chunk.rows.add(value);
+		}
+
+		if (convert) {
+			chunk.specs = new String[nFields];
+			for (int i = 0; i < nFields; i++) {
+				if (converters[i] != null) chunk.specs[i] = converters[i].getSpec();
+			}
+
+			// Types are only determined from non empty values so converting after parsing gives the same result
+			for (int r = 0; r < chunk.rows.size(); r++) {
+				String[] value = (String[]) chunk.rows.get(r);
+				Object[] row = new Object[nFields];
+				for (int i = 0; i < nFields; i++) {
+					row[i] = CSV.toValue(value[i], converters[i]);
+				}
+				chunk.rows.set(r, row);
+			}
+		}
+		return chunk;
+	}
+
+	/**
+	 * Reads the file handing each chunk to consumer.
+	 *
+	 * @param ordered If true chunks are handed in file order, otherwise as soon as they are parsed
+	 * @return The number of records read
+	 */
+	public long read(ChunkConsumer consumer, boolean ordered) throws Exception {
+		if (!isSplittable()) throw new IOException("The encoding " + charset.name() + " doesn't allow splitting " + file + " in chunks.");
+
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		ForkJoinPool pool = null;
+		try {
+			final FileChannel fc = raf.getChannel();
+			BoundaryScanner scanner = new BoundaryScanner(fc);
+
+			// The header and the first chunk are read on the calling thread to determine the field types
+			while (header == null && scanner.hasMore()) {
+				parse(fc, -1, scanner.pos, scanner.next(scanner.pos + 1));
+			}
+			if (header == null) return 0;
+			Chunk first = parse(fc, 0, scanner.pos, scanner.next(scanner.pos + chunkSize));
+			baseSpecs = first.specs;
+			long count = first.rows.size();
+			if (!consumer.accept(first)) return count;
+
+			pool = new ForkJoinPool(parallelism);
+			final LinkedBlockingQueue<Object> done = new LinkedBlockingQueue<Object>();
+			HashMap<Long, Chunk> pending = new HashMap<Long, Chunk>();
+			long submitted = 1, delivered = 1;
+			int maxOutstanding = parallelism * 2;
+
+			while (true) {
+				while (scanner.hasMore() && submitted - delivered < maxOutstanding) {
+					final long index = submitted++, start = scanner.pos, end = scanner.next(scanner.pos + chunkSize);
+					pool.submit(new Callable<Object>() {
+						public Object call() {
+							try {
+								done.put(parse(fc, index, start, end));
+							} catch (Throwable e) {
+								done.offer(e);
+							}
+							return null;
+						}
+					});
+				}
+				if (submitted == delivered) break;
+
+				Object o = done.take();
+				if (o instanceof Throwable) {
+					Throwable e = (Throwable) o;
+					if (e instanceof Exception) throw (Exception) e;
+					throw new IOException("Error parsing " + file + ": " + e.getMessage(), e);
+				}
+
+				Chunk chunk = (Chunk) o;
+				if (!ordered) {
+					delivered++;
+					count += chunk.rows.size();
+					if (!consumer.accept(chunk)) break;
+					continue;
+				}
+
+				pending.put(chunk.index, chunk);
+				boolean stop = false;
+				while (!stop && (chunk = pending.remove(delivered)) != null) {
+					delivered++;
+					count += chunk.rows.size();
+					stop = !consumer.accept(chunk);
+				}
+				if (stop) break;
+			}
+			return count;
+		} finally {
+			if (pool != null) pool.shutdownNow();
+			raf.close();
+		}
+	}
+
+	/**
+	 * Returns the header field names (after read).
+	 */
+	public String[] getHeader() {
+		return header;
+	}
+}
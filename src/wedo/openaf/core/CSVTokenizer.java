@@ -0,0 +1,196 @@
+package wedo.openaf.core;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Single pass, character level, CSV tokenizer (RFC 4180) supporting quoted fields with escaped quotes (doubled),
+ * separators and line breaks inside quoted fields and CRLF, LF or CR line endings. Buffers are reused between records.
+ *
+ * @author Nuno Aguiar <nuno.aguiar@wedotechnologies.com>
+ */
+public class CSVTokenizer {
+	protected static final int BUFFER_SIZE = 65536;
+
+	protected Reader reader;
+	protected char[] buffer = new char[BUFFER_SIZE];
+	protected int pos = 0, limit = 0;
+	protected boolean eof = false;
+
+	protected char[] separator;
+	protected int quote;
+
+	protected StringBuilder field = new StringBuilder(256);
+	protected ArrayList<String> fields = new ArrayList<String>();
+	protected boolean[] quoted = new boolean[16];
+	protected long records = 0;
+
+	/**
+	 * Creates a new tokenizer.
+	 *
+	 * @param reader The reader with the CSV data
+	 * @param separator The field separator (e.g. ";")
+	 * @param quote The string delimiter (e.g. "\"") or null/empty for no quoting
+	 */
+	public CSVTokenizer(Reader reader, String separator, String quote) {
+		this.reader = reader;
+		this.separator = unescape(separator).toCharArray();
+		this.quote = (quote == null || quote.length() == 0) ? -1 : quote.charAt(0);
+		if (this.separator.length == 0) throw new IllegalArgumentException("The CSV separator can't be empty.");
+	}
+
+	/**
+	 * Creates a new tokenizer over characters already in memory.
+	 *
+	 * @param chars The array with the CSV data (it will be used directly, not copied)
+	 * @param offset The position of the first character
+	 * @param length The number of characters
+	 * @param separator The field separator (e.g. ";")
+	 * @param quote The string delimiter (e.g. "\"") or null/empty for no quoting
+	 */
+	public CSVTokenizer(char[] chars, int offset, int length, String separator, String quote) {
+		this(null, separator, quote);
+		this.buffer = chars;
+		this.pos = offset;
+		this.limit = offset + length;
+		this.eof = true;
+	}
+
+	/**
+	 * The separator was previously used as a regular expression so a single escaped character (e.g. "\\|") is
+	 * accepted as that character.
+	 */
+	protected static String unescape(String separator) {
+		if (separator != null && separator.length() == 2 && separator.charAt(0) == '\\') return separator.substring(1);
+		return (separator == null) ? ";" : separator;
+	}
+
+	/**
+	 * Makes sure there are at least n characters on the buffer (unless the end of data is reached).
+	 */
+	protected boolean ensure(int n) throws IOException {
+		while (limit - pos < n && !eof) {
+			if (pos > 0) {
+				System.arraycopy(buffer, pos, buffer, 0, limit - pos);
+				limit -= pos;
+				pos = 0;
+			}
+			if (limit == buffer.length) buffer = Arrays.copyOf(buffer, buffer.length * 2);
+			int r = reader.read(buffer, limit, buffer.length - limit);
+			if (r < 0) eof = true; else limit += r;
+		}
+		return limit - pos >= n;
+	}
+
+	protected boolean isSeparator() throws IOException {
+		if (buffer[pos] != separator[0]) return false;
+		if (separator.length == 1) return true;
+		if (!ensure(separator.length)) return false;
+		for (int i = 1; i < separator.length; i++) {
+			if (buffer[pos + i] != separator[i]) return false;
+		}
+		return true;
+	}
+
+	protected void endField(boolean wasQuoted) {
+		int n = fields.size();
+		if (n >= quoted.length) quoted = Arrays.copyOf(quoted, quoted.length * 2);
+		quoted[n] = wasQuoted;
+		fields.add(field.toString());
+		field.setLength(0);
+	}
+
+	/**
+	 * Reads the next record (empty lines are skipped).
+	 *
+	 * @return false if there are no more records
+	 */
+	public boolean next() throws IOException {
+		fields.clear();
+		field.setLength(0);
+
+		// Skip empty lines
+		while (ensure(1) && (buffer[pos] == '\n' || buffer[pos] == '\r')) pos++;
+		if (!ensure(1)) return false;
+
+		boolean inQuotes = false, wasQuoted = false;
+		while (true) {
+			if (!ensure(1)) {
+				endField(wasQuoted);
+				break;
+			}
+
+			char c = buffer[pos];
+			if (inQuotes) {
+				pos++;
+				if (c == quote) {
+					if (ensure(1) && buffer[pos] == quote) {
+						field.append(c);
+						pos++;
+					} else {
+						inQuotes = false;
+					}
+				} else {
+					field.append(c);
+				}
+				continue;
+			}
+
+			if (c == quote && field.length() == 0 && !wasQuoted) {
+				inQuotes = true;
+				wasQuoted = true;
+				pos++;
+			} else if (isSeparator()) {
+				pos += separator.length;
+				endField(wasQuoted);
+				wasQuoted = false;
+			} else if (c == '\n' || c == '\r') {
+				pos++;
+				if (c == '\r' && ensure(1) && buffer[pos] == '\n') pos++;
+				endField(wasQuoted);
+				break;
+			} else {
+				field.append(c);
+				pos++;
+			}
+		}
+
+		records++;
+		return true;
+	}
+
+	/**
+	 * Returns the fields of the current record (the list is reused by the next call to next).
+	 */
+	public List<String> getFields() {
+		return fields;
+	}
+
+	/**
+	 * Returns the fields of the current record as a new array.
+	 */
+	public String[] getFieldsArray() {
+		return fields.toArray(new String[fields.size()]);
+	}
+
+	/**
+	 * Determines if the field i of the current record was quoted.
+	 */
+	public boolean isQuoted(int i) {
+		return i < fields.size() && quoted[i];
+	}
+
+	/**
+	 * Returns the number of records read so far.
+	 */
+	public long getRecords() {
+		return records;
+	}
+
+	public void close() throws IOException {
+		if (reader != null) reader.close();
+	}
+}
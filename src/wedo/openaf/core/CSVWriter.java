@@ -0,0 +1,284 @@
+package wedo.openaf.core;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.sql.Blob;
+import java.sql.Clob;
+import java.sql.SQLException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.codec.binary.Base64;
+import org.mozilla.javascript.ConsString;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.NativeFunction;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.Undefined;
+import org.mozilla.javascript.Wrapper;
+
+import wedo.openaf.AFCmdBase;
+
+/**
+ * Incremental CSV writer: records are formatted into a buffer that is written to the output (optionally gzip
+ * compressed) whenever it reaches a size threshold, so memory use doesn't depend on the number of records and
+ * a slow output slows down the producer.
+ *
+ * @author Nuno Aguiar <nuno.aguiar@wedotechnologies.com>
+ *
+ */
+public class CSVWriter {
+	protected static final int DEFAULT_FLUSH = 65536;
+
+	protected Writer writer;
+	protected String[] header;
+	protected String separator = ";", quote = "\"", lineSeparator = System.getProperty("line.separator");
+	protected int flushThreshold = DEFAULT_FLUSH;
+	protected SimpleDateFormat dateFormat = new SimpleDateFormat(CSVColumn.DEFAULT_DATE_FORMAT);
+	protected StringBuilder buffer = new StringBuilder(DEFAULT_FLUSH + 1024);
+	protected long records = 0;
+	protected boolean headerWritten = false, closed = false;
+
+	/**
+	 * Creates a new writer.
+	 *
+	 * @param output A file name or an OutputStream
+	 * @param header The field names (if null taken from the keys of the first map written)
+	 * @param encoding The encoding (defaults to UTF-8)
+	 * @param gzip If the output should be gzip compressed
+	 */
+	public CSVWriter(Object output, String[] header, String encoding, boolean gzip) throws IOException {
+		OutputStream os;
+		if (output instanceof OutputStream)
+			os = (OutputStream) output;
+		else
+			os = new FileOutputStream(String.valueOf(output));
+
+		os = new BufferedOutputStream(os, DEFAULT_FLUSH);
+		if (gzip) os = new GZIPOutputStream(os, DEFAULT_FLUSH);
+		this.writer = new OutputStreamWriter(os, (encoding == null) ? "UTF-8" : encoding);
+		this.header = header;
+	}
+
+	public void setSeparator(String separator) {
+		this.separator = CSVTokenizer.unescape(separator);
+	}
+
+	public void setQuote(String quote) {
+		this.quote = (quote == null) ? "" : quote;
+	}
+
+	public void setLineSeparator(String lineSeparator) {
+		this.lineSeparator = lineSeparator;
+	}
+
+	public void setDateFormat(String format) {
+		this.dateFormat = new SimpleDateFormat(format);
+	}
+
+	/**
+	 * Sets the number of buffered characters after which they are written to the output.
+	 */
+	public void setFlushThreshold(int chars) {
+		this.flushThreshold = (chars <= 0) ? DEFAULT_FLUSH : chars;
+	}
+
+	/**
+	 * Converts a javascript value into a java value.
+	 */
+	protected static Object toValue(Object o) {
+		if (o instanceof Undefined) return null;
+		if (o instanceof ConsString) return o.toString();
+		if (o instanceof Scriptable && "Date".equals(((Scriptable) o).getClassName())) return Context.jsToJava(o, Date.class);
+		if (o instanceof Wrapper) return ((Wrapper) o).unwrap();
+		return o;
+	}
+
+	protected void appendValue(Object o) throws IOException {
+		o = toValue(o);
+		if (o == null) return;
+
+		if (o instanceof Double || o instanceof Float) {
+			buffer.append(CSVColumn.formatDouble(((Number) o).doubleValue()));
+		} else if (o instanceof java.math.BigDecimal) {
+			buffer.append(((java.math.BigDecimal) o).toPlainString());
+		} else if (o instanceof Number || o instanceof Boolean) {
+			buffer.append(o.toString());
+		} else if (o instanceof Date) {
+			buffer.append(dateFormat.format((Date) o));
+		} else if (o instanceof byte[]) {
+			buffer.append(Base64.encodeBase64String((byte[]) o));
+		} else if (o instanceof Blob) {
+			try {
+				buffer.append(Base64.encodeBase64String(((Blob) o).getBytes(1, (int) ((Blob) o).length())));
+			} catch (SQLException e) {
+				throw new IOException("Error reading BLOB: " + e.getMessage(), e);
+			}
+		} else {
+			String s;
+			if (o instanceof Clob) {
+				try {
+					s = ((Clob) o).getSubString(1, (int) ((Clob) o).length());
+				} catch (SQLException e) {
+					throw new IOException("Error reading CLOB: " + e.getMessage(), e);
+				}
+			} else {
+				s = o.toString();
+			}
+			buffer.append(quote);
+			buffer.append((quote.length() > 0 && s.indexOf(quote) >= 0) ? s.replace(quote, quote + quote) : s);
+			buffer.append(quote);
+		}
+	}
+
+	protected void writeHeader() throws IOException {
+		if (headerWritten) return;
+		headerWritten = true;
+		if (header == null) return;
+		for (int i = 0; i < header.length; i++) {
+			if (i > 0) buffer.append(separator);
+			buffer.append(header[i]);
+		}
+		buffer.append(lineSeparator);
+	}
+
+	protected void endRecord() throws IOException {
+		buffer.append(lineSeparator);
+		records++;
+		if (buffer.length() >= flushThreshold) {
+			writer.write(buffer.toString());
+			buffer.setLength(0);
+		}
+	}
+
+	/**
+	 * Writes a record from an array or list of values (in the header order).
+	 */
+	public void writeValues(Object[] values) throws IOException {
+		if (closed) throw new IOException("CSV writer already closed.");
+		writeHeader();
+		for (int i = 0; i < values.length; i++) {
+			if (i > 0) buffer.append(separator);
+			appendValue(values[i]);
+		}
+		endRecord();
+	}
+
+	/**
+	 * Writes a record from a map (only the header keys are written).
+	 */
+	public void writeMap(Map<?, ?> map) throws IOException {
+		if (header == null) {
+			ArrayList<String> keys = new ArrayList<String>();
+			for (Object key : map.keySet()) keys.add(String.valueOf(key));
+			header = keys.toArray(new String[keys.size()]);
+		}
+		if (closed) throw new IOException("CSV writer already closed.");
+		writeHeader();
+		for (int i = 0; i < header.length; i++) {
+			if (i > 0) buffer.append(separator);
+			appendValue(map.get(header[i]));
+		}
+		endRecord();
+	}
+
+	/**
+	 * Writes a record from a map (javascript object or java Map) or an array/list of values.
+	 */
+	public void write(Object record) throws IOException {
+		record = toValue(record);
+		if (record instanceof Map) {
+			writeMap((Map<?, ?>) record);
+		} else if (record instanceof Object[]) {
+			writeValues((Object[]) record);
+		} else if (record instanceof List) {
+			writeValues(((List<?>) record).toArray());
+		} else {
+			throw new IOException("Expecting a map or an array for a CSV record (found " + ((record == null) ? "null" : record.getClass().getName()) + ")");
+		}
+	}
+
+	/**
+	 * Writes all records from source: a DB.Cursor (values converted as by DB.Cursor.next() but without building
+	 * maps, using the column names as header if not defined), a java Iterator/Iterable or a function returning a
+	 * record per call and undefined/null at the end. Binary values (byte[] or BLOBs) are written in base64.
+	 *
+	 * @return The number of records written
+	 */
+	public long writeAll(Object source) throws IOException, SQLException {
+		source = toValue(source);
+		long start = records;
+
+		if (source instanceof DB.Cursor) {
+			DB.Cursor cursor = (DB.Cursor) source;
+			try {
+				if (header == null) header = cursor.getColumnNames();
+				Object[] values;
+				while ((values = cursor.nextConverted()) != null) {
+					writeValues(values);
+				}
+			} finally {
+				cursor.close();
+			}
+		} else if (source instanceof NativeFunction) {
+			NativeFunction fn = (NativeFunction) source;
+			Context cx = (Context) AFCmdBase.jse.enterContext();
+			try {
+				Scriptable scope = (Scriptable) AFCmdBase.jse.getGlobalscope();
+				Object o;
+				while ((o = toValue(fn.call(cx, scope, cx.newObject(scope), new Object[] {}))) != null) {
+					write(o);
+				}
+			} finally {
+				AFCmdBase.jse.exitContext();
+			}
+		} else if (source instanceof Iterable || source instanceof Iterator) {
+			Iterator<?> it = (source instanceof Iterator) ? (Iterator<?>) source : ((Iterable<?>) source).iterator();
+			while (it.hasNext()) {
+				write(it.next());
+			}
+		} else {
+			throw new IOException("Unsupported CSV record source: " + ((source == null) ? "null" : source.getClass().getName()));
+		}
+		return records - start;
+	}
+
+	/**
+	 * Writes the buffered records to the output.
+	 */
+	public void flush() throws IOException {
+		if (closed) return;
+		writeHeader();
+		writer.write(buffer.toString());
+		buffer.setLength(0);
+		writer.flush();
+	}
+
+	/**
+	 * Flushes and closes the output (finishing the gzip stream if used).
+	 */
+	public void close() throws IOException {
+		if (closed) return;
+		try {
+			flush();
+		} finally {
+			closed = true;
+			writer.close();
+		}
+	}
+
+	/**
+	 * Returns the number of records written so far.
+	 */
+	public long getRecords() {
+		return records;
+	}
+}
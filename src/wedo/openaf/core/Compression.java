@@ -0,0 +1,337 @@
+package wedo.openaf.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+import org.apache.commons.io.IOUtils;
+import org.mozilla.javascript.Undefined;
+
+import com.jcraft.jzlib.JZlib;
+
+/**
+ * Gzip compression service used by io.gzip/io.gunzip, ZIP.gzip/ZIP.gunzip and compress/uncompress with a
+ * selectable level and strategy. The data can be compressed by the JDK (native zlib) Deflater/Inflater, kept
+ * in small pools so that each call doesn't allocate (and later finalize) the native zlib state, or by the pure
+ * java jzlib. Output buffers are pre-sized (when uncompressing using the size recorded on the gzip trailer).
+ *
+ * @author Nuno Aguiar <nuno.aguiar@wedotechnologies.com>
+ *
+ */
+public class Compression {
+	protected static final int POOL_SIZE = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+	protected static final int GZIP_MAGIC = 0x8b1f;
+	protected static final int FHCRC = 2, FEXTRA = 4, FNAME = 8, FCOMMENT = 16;
+
+	public enum Engine { JDK, JZLIB };
+
+	protected static volatile Engine defaultEngine = Engine.JDK;
+	protected static ConcurrentLinkedQueue<Deflater> deflaters = new ConcurrentLinkedQueue<Deflater>();
+	protected static ConcurrentLinkedQueue<Inflater> inflaters = new ConcurrentLinkedQueue<Inflater>();
+	protected static AtomicInteger deflatersPooled = new AtomicInteger(0), inflatersPooled = new AtomicInteger(0);
+
+	/**
+	 * A growable output buffer.
+	 */
+	protected static class Output {
+		public byte[] buf;
+		public int pos = 0;
+
+		public Output(int size) {
+			buf = new byte[size];
+		}
+
+		public void ensure(int n) {
+			if (buf.length - pos < n) buf = Arrays.copyOf(buf, Math.max(pos + n, buf.length + Math.max(buf.length / 2, 64)));
+		}
+
+		public byte[] toByteArray() {
+			return (pos == buf.length) ? buf : Arrays.copyOf(buf, pos);
+		}
+	}
+
+	/**
+	 * Converts a level description: a number (0 to 9), "fast", "small" or "default".
+	 */
+	public static int parseLevel(Object level) {
+		if (level instanceof Number) {
+			int l = ((Number) level).intValue();
+			if (l < Deflater.DEFAULT_COMPRESSION || l > Deflater.BEST_COMPRESSION) throw new IllegalArgumentException("Invalid compression level " + l + " (expected 0 to 9)");
+			return l;
+		}
+		if (level == null || level instanceof Undefined || level.toString().equals("default")) return Deflater.DEFAULT_COMPRESSION;
+		if (level.toString().equals("fast")) return Deflater.BEST_SPEED;
+		if (level.toString().equals("small")) return Deflater.BEST_COMPRESSION;
+		if (level.toString().matches("\\d")) return Integer.parseInt(level.toString());
+		throw new IllegalArgumentException("Invalid compression level '" + level + "' (expected 0 to 9, fast, small or default)");
+	}
+
+	/**
+	 * Converts a strategy description: "default", "filtered" or "huffman".
+	 */
+	public static int parseStrategy(Object strategy) {
+		if (strategy == null || strategy instanceof Undefined || strategy.toString().equals("default")) return Deflater.DEFAULT_STRATEGY;
+		if (strategy.toString().equals("filtered")) return Deflater.FILTERED;
+		if (strategy.toString().equals("huffman")) return Deflater.HUFFMAN_ONLY;
+		throw new IllegalArgumentException("Invalid compression strategy '" + strategy + "' (expected default, filtered or huffman)");
+	}
+
+	/**
+	 * Converts an engine description: "jdk" or "jzlib" (if not defined the default engine).
+	 */
+	public static Engine parseEngine(Object engine) {
+		if (engine == null || engine instanceof Undefined) return defaultEngine;
+		try {
+			return Engine.valueOf(engine.toString().toUpperCase());
+		} catch (IllegalArgumentException e) {
+			throw new IllegalArgumentException("Invalid compression engine '" + engine + "' (expected jdk or jzlib)");
+		}
+	}
+
+	/**
+	 * Sets the engine used when none is specified.
+	 */
+	public static void setDefaultEngine(Engine engine) {
+		defaultEngine = engine;
+	}
+
+	public static Engine getDefaultEngine() {
+		return defaultEngine;
+	}
+
+	protected static Deflater getDeflater(int level, int strategy) {
+		Deflater d = deflaters.poll();
+		if (d == null)
+			d = new Deflater(level, true);
+		else
+			deflatersPooled.decrementAndGet();
+		d.setLevel(level);
+		d.setStrategy(strategy);
+		return d;
+	}
+
+	protected static void release(Deflater d) {
+		d.reset();
+		if (deflatersPooled.incrementAndGet() <= POOL_SIZE) {
+			deflaters.offer(d);
+		} else {
+			deflatersPooled.decrementAndGet();
+			d.end();
+		}
+	}
+
+	protected static Inflater getInflater() {
+		Inflater i = inflaters.poll();
+		if (i == null) return new Inflater(true);
+		inflatersPooled.decrementAndGet();
+		return i;
+	}
+
+	protected static void release(Inflater i) {
+		i.reset();
+		if (inflatersPooled.incrementAndGet() <= POOL_SIZE) {
+			inflaters.offer(i);
+		} else {
+			inflatersPooled.decrementAndGet();
+			i.end();
+		}
+	}
+
+	protected static void writeInt(byte[] buf, int pos, int v) {
+		buf[pos] = (byte) v;
+		buf[pos + 1] = (byte) (v >> 8);
+		buf[pos + 2] = (byte) (v >> 16);
+		buf[pos + 3] = (byte) (v >> 24);
+	}
+
+	protected static int readInt(byte[] buf, int pos) {
+		return (buf[pos] & 0xff) | ((buf[pos + 1] & 0xff) << 8) | ((buf[pos + 2] & 0xff) << 16) | ((buf[pos + 3] & 0xff) << 24);
+	}
+
+	/**
+	 * Raw deflates data into out using the JDK Deflater.
+	 */
+	protected static void deflateJDK(byte[] data, int level, int strategy, Output out) {
+		Deflater d = getDeflater(level, strategy);
+		try {
+			d.setInput(data);
+			d.finish();
+			while (!d.finished()) {
+				out.ensure(1);
+				out.pos += d.deflate(out.buf, out.pos, out.buf.length - out.pos);
+			}
+		} finally {
+			release(d);
+		}
+	}
+
+	/**
+	 * Raw deflates data into out using jzlib.
+	 */
+	protected static void deflateJZlib(byte[] data, int level, int strategy, Output out) throws IOException {
+		com.jcraft.jzlib.Deflater d = new com.jcraft.jzlib.Deflater(level, true);
+		try {
+			d.params(level, strategy);
+			d.setInput(data);
+			while (true) {
+				out.ensure(1);
+				d.setOutput(out.buf, out.pos, out.buf.length - out.pos);
+				int res = d.deflate(JZlib.Z_FINISH);
+				out.pos = d.next_out_index;
+				if (res == JZlib.Z_STREAM_END) break;
+				if (res != JZlib.Z_OK && res != JZlib.Z_BUF_ERROR) throw new IOException("Error compressing: " + d.msg);
+			}
+		} finally {
+			d.end();
+		}
+	}
+
+	/**
+	 * Raw inflates data from pos into out using the JDK Inflater returning the position after the compressed data.
+	 */
+	protected static int inflateJDK(byte[] data, int pos, Output out) throws IOException {
+		Inflater inf = getInflater();
+		try {
+			inf.setInput(data, pos, data.length - pos);
+			while (!inf.finished()) {
+				out.ensure(1);
+				int n = inf.inflate(out.buf, out.pos, out.buf.length - out.pos);
+				if (n == 0 && (inf.needsInput() || inf.needsDictionary())) throw new IOException("Truncated or invalid gzip data");
+				out.pos += n;
+			}
+			return data.length - inf.getRemaining();
+		} catch (DataFormatException e) {
+			throw new IOException("Invalid gzip data: " + e.getMessage(), e);
+		} finally {
+			release(inf);
+		}
+	}
+
+	/**
+	 * Raw inflates data from pos into out using jzlib returning the position after the compressed data.
+	 */
+	protected static int inflateJZlib(byte[] data, int pos, Output out) throws IOException {
+		com.jcraft.jzlib.Inflater inf = new com.jcraft.jzlib.Inflater(true);
+		try {
+			inf.setInput(data, pos, data.length - pos, false);
+			while (true) {
+				out.ensure(1);
+				inf.setOutput(out.buf, out.pos, out.buf.length - out.pos);
+				int res = inf.inflate(JZlib.Z_NO_FLUSH);
+				out.pos = inf.next_out_index;
+				if (res == JZlib.Z_STREAM_END) break;
+				if (res == JZlib.Z_BUF_ERROR && inf.avail_out > 0) throw new IOException("Truncated gzip data");
+				if (res != JZlib.Z_OK && res != JZlib.Z_BUF_ERROR) throw new IOException("Invalid gzip data: " + inf.msg);
+			}
+			return inf.next_in_index;
+		} finally {
+			inf.end();
+		}
+	}
+
+	/**
+	 * Gzip compresses data with the default level, strategy and engine.
+	 */
+	public static byte[] gzip(byte[] data) throws IOException {
+		return gzip(data, Deflater.DEFAULT_COMPRESSION, Deflater.DEFAULT_STRATEGY, defaultEngine);
+	}
+
+	/**
+	 * Gzip compresses data.
+	 *
+	 * @param level The compression level (0 to 9 or Deflater.DEFAULT_COMPRESSION)
+	 * @param strategy The Deflater strategy
+	 * @param engine The engine to use
+	 */
+	public static byte[] gzip(byte[] data, int level, int strategy, Engine engine) throws IOException {
+		// Starts with half of the input size (typical for text) growing as needed
+		Output out = new Output(Math.max(64, data.length / 2 + 32));
+		out.buf[0] = (byte) GZIP_MAGIC;
+		out.buf[1] = (byte) (GZIP_MAGIC >> 8);
+		out.buf[2] = Deflater.DEFLATED;
+		// Remaining header bytes: flags, mtime, xfl and os (unknown)
+		out.buf[9] = (byte) 0xff;
+		out.pos = 10;
+
+		if (engine == Engine.JZLIB)
+			deflateJZlib(data, level, strategy, out);
+		else
+			deflateJDK(data, level, strategy, out);
+
+		CRC32 crc = new CRC32();
+		crc.update(data);
+		out.ensure(8);
+		writeInt(out.buf, out.pos, (int) crc.getValue());
+		writeInt(out.buf, out.pos + 4, data.length);
+		out.pos += 8;
+		return out.toByteArray();
+	}
+
+	/**
+	 * Returns the position after the gzip member header starting at pos or -1 if not supported.
+	 */
+	protected static int skipHeader(byte[] data, int pos) {
+		if (data.length - pos < 18 || (data[pos] & 0xff) != (GZIP_MAGIC & 0xff) || (data[pos + 1] & 0xff) != (GZIP_MAGIC >> 8) || data[pos + 2] != Deflater.DEFLATED) return -1;
+		int flags = data[pos + 3] & 0xff;
+		pos += 10;
+		if ((flags & FEXTRA) != 0) pos += 2 + ((data[pos] & 0xff) | ((data[pos + 1] & 0xff) << 8));
+		if ((flags & FNAME) != 0) while (pos < data.length && data[pos++] != 0);
+		if ((flags & FCOMMENT) != 0) while (pos < data.length && data[pos++] != 0);
+		if ((flags & FHCRC) != 0) pos += 2;
+		return (pos < data.length) ? pos : -1;
+	}
+
+	/**
+	 * Uncompresses gzip data with the default engine.
+	 */
+	public static byte[] gunzip(byte[] data) throws IOException {
+		return gunzip(data, defaultEngine);
+	}
+
+	/**
+	 * Uncompresses gzip data (one or more concatenated members).
+	 */
+	public static byte[] gunzip(byte[] data, Engine engine) throws IOException {
+		int pos = skipHeader(data, 0);
+		if (pos < 0) return gunzipStream(data);
+
+		// The trailer of the last member has the uncompressed size (modulo 2^32) of a single member
+		int size = readInt(data, data.length - 4);
+		Output out = new Output((size > 0 && size < Integer.MAX_VALUE - 8) ? size : Math.max(64, data.length * 4));
+
+		CRC32 crc = new CRC32();
+		while (pos >= 0) {
+			int memberStart = out.pos;
+			pos = (engine == Engine.JZLIB) ? inflateJZlib(data, pos, out) : inflateJDK(data, pos, out);
+
+			if (pos + 8 > data.length) throw new IOException("Truncated gzip data");
+			crc.reset();
+			crc.update(out.buf, memberStart, out.pos - memberStart);
+			if (readInt(data, pos) != (int) crc.getValue() || readInt(data, pos + 4) != (out.pos - memberStart)) throw new IOException("Corrupt gzip data (CRC or size mismatch)");
+			pos += 8;
+
+			if (pos >= data.length) break;
+			pos = skipHeader(data, pos);
+		}
+		return out.toByteArray();
+	}
+
+	protected static byte[] gunzipStream(byte[] data) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(Math.max(64, data.length * 4));
+		GZIPInputStream gis = new GZIPInputStream(new ByteArrayInputStream(data));
+		try {
+			IOUtils.copy(gis, baos);
+		} finally {
+			gis.close();
+		}
+		return baos.toByteArray();
+	}
+}
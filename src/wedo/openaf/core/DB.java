@@ -1,23 +1,52 @@
 package wedo.openaf.core;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterReader;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
 import java.io.StringReader;
 import java.io.StringWriter;
+import java.io.Writer;
+import java.math.BigDecimal;
 import java.nio.charset.Charset;
+import java.sql.Blob;
+import java.sql.Clob;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.io.IOUtils;
 import org.h2.tools.Server;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.NativeFunction;
+import org.mozilla.javascript.NativeJavaObject;
+import org.mozilla.javascript.Scriptable;
 
 import wedo.openaf.AFBase;
 import wedo.openaf.AFCmdBase;
@@ -34,42 +63,105 @@ public class DB {
 	protected final String ORACLE_DRIVER = "oracle.jdbc.OracleDriver";
 	protected final Long LIMIT_RESULTS = 100000000L;
 	protected Connection con;
+	protected DBPool pool;
+	protected boolean leasePerCall = false;
+	protected ConcurrentHashMap<Thread, Lease> leases = new ConcurrentHashMap<Thread, Lease>();
+	protected Lease directLease;
 	protected Server h2Server;
-	protected ConcurrentHashMap<String, PreparedStatement> preparedStatements = new ConcurrentHashMap<String, PreparedStatement>();
+	protected ConcurrentHashMap<Connection, DBStatementCache> statementCaches = new ConcurrentHashMap<Connection, DBStatementCache>();
+	protected int statementCacheSize = 32;
+	protected long statementCacheIdle = 300000;
+	protected enum NumericMode { AUTO, DOUBLE, BIGDECIMAL };
+	protected NumericMode numericMode = NumericMode.DOUBLE;
+	protected Properties props;
+	protected ExecutorService asyncExecutor;
+	protected DBStats stats = new DBStats(null);
+	protected int asyncThreads = -1;
 	public String url;
 	
 	/**
 	 * <odoc>
-	 * <key>DB.db(aDriver, aURL, aLogin, aPassword)</key>
+	 * <key>DB.db(aDriver, aURL, aLogin, aPassword, anOptionsMap)</key>
 	 * Creates a new instance of the object DB providing java class aDriver (e.g. oracle.jdbc.OracleDriver)
 	 * that must be included on OpenAF's classpath, a JDBC aURL, aLogin and aPassword. If the aDriver is 
-	 * null or undefined the Oracle driver will be used. 
+	 * null or undefined the Oracle driver will be used. Optionally anOptionsMap can include a pool map to
+	 * use a pool of connections instead of a single connection:\
+	 * \
+	 *    min            : the minimum number of connections to keep open (default 0)\
+	 *    max            : the maximum number of connections open at the same time (default 10)\
+	 *    idleTimeout    : the time in ms after which idle connections, above min, are closed (default 600000)\
+	 *    maxWait        : the maximum time in ms to wait for a connection when all are in use (default 0, forever)\
+	 *    validationQuery: a query to validate idle connections before reuse (default uses the JDBC driver validation)\
+	 *    lease          : "transaction" (default) or "call"\
+	 * \
+	 * With lease = "transaction" each thread uses the same connection from the first update until DB.commit or
+	 * DB.rollback (queries without pending updates return the connection right away). With lease = "call" each
+	 * function call leases a connection and updates are committed at the end of the call. anOptionsMap can also
+	 * include a statementCache map with size (default 32) and idleTimeout in ms (default 300000) (see 
+	 * DB.setStatementCache) and an async map with threads (see DB.setAsyncThreads). Example:\
+	 * \
+	 * var db = new DB("org.h2.Driver", "jdbc:h2:mem:test", "sa", "sa", { pool: { min: 1, max: 5 } });\
+	 * \
 	 * </odoc>
 	 */
-	public void newDB(String driver, String url, String login, String pass) throws Exception {
+	public void newDB(String driver, String url, String login, String pass, Map<?, ?> options) throws Exception {
+		Map<?, ?> poolOptions = null;
+		if (options != null && options.get("pool") instanceof Map) poolOptions = (Map<?, ?>) options.get("pool");
+		if (options != null && options.get("statementCache") instanceof Map) {
+			Map<?, ?> cacheOptions = (Map<?, ?>) options.get("statementCache");
+			statementCacheSize = getOption(cacheOptions, "size", statementCacheSize);
+			statementCacheIdle = getOption(cacheOptions, "idleTimeout", (int) statementCacheIdle);
+		}
+		if (options != null && options.get("async") instanceof Map) {
+			asyncThreads = getOption((Map<?, ?>) options.get("async"), "threads", asyncThreads);
+		}
+		
 		// Are we in the wrong constructor?
 		if (pass == null || pass.equals("undefined")) {
 			if (url != null) {
 				// Ok, use it as if it was another constructor
-				connect(ORACLE_DRIVER, driver, url, login);
+				connect(ORACLE_DRIVER, driver, url, login, poolOptions);
 			}
 		} else {
 			SimpleLog.log(SimpleLog.logtype.DEBUG, "New DB with driver='" + driver + "'|url='" + url + "'|login='"+login+"'|pass='"+pass+"'", null);
-			connect(driver, url, login, pass);
+			connect(driver, url, login, pass, poolOptions);
 		}
 	}
+	
+	public void newDB(String driver, String url, String login, String pass) throws Exception {
+		newDB(driver, url, login, pass, null);
+	}
 		
 	/**
 	 * <odoc>
 	 * <key>DB.close()</key>
-	 * Closes the database connection for this DB object instance. In case of error an exception will be
-	 * thrown.
+	 * Closes the database connection (or all the pool connections) for this DB object instance. In case of error 
+	 * an exception will be thrown.
 	 * </odoc>
 	 */
 	public void close() throws SQLException {
+		synchronized(this) {
+			if (asyncExecutor != null) {
+				asyncExecutor.shutdown();
+				asyncExecutor = null;
+			}
+		}
+		closeAllStatements();
+		if (pool != null) {
+			pool.close();
+			for(Lease l : leases.values()) {
+				try {
+					l.con.rollback();
+					l.con.close();
+				} catch (SQLException e) {
+					SimpleLog.log(SimpleLog.logtype.DEBUG, "Error closing leased connection to " + url + ": " + e.getMessage(), e);
+				}
+			}
+			leases.clear();
+		}
+		
 		if (con != null) {
 			try {
-				closeAllStatements();
 				con.close();
 			} catch (SQLException e) {
 				//SimpleLog.log(SimpleLog.logtype.ERROR, "Error closing database " + url + ": " + e.getMessage(), e);
@@ -78,62 +170,397 @@ public class DB {
 		}
 	}
 	
+	/**
+	 * <odoc>
+	 * <key>DB.getPoolStats() : Map</key>
+	 * Returns a map with the current connection pool statistics (min, max, active, idle, leases, waits, waitTime and
+	 * maxWaitTime in ms, created and destroyed) or null if this DB object instance isn't using a pool.
+	 * </odoc>
+	 */
+	public Object getPoolStats() {
+		if (pool == null) return null;
+		
+		JSEngine.JSMap no = AFCmdBase.jse.getNewMap(null);
+		no.put("min", pool.getMin());
+		no.put("max", pool.getMax());
+		no.put("active", pool.getActive());
+		no.put("idle", pool.getIdle());
+		no.put("leases", pool.getLeases());
+		no.put("waits", pool.getWaits());
+		no.put("waitTime", pool.getWaitTime());
+		no.put("maxWaitTime", pool.getMaxWaitTime());
+		no.put("created", pool.getCreated());
+		no.put("destroyed", pool.getDestroyed());
+		return no.getMap();
+	}
+	
+	/**
+	 * A connection in use by a thread and the number of calls (e.g. open cursors) using it
+	 */
+	protected static class Lease {
+		public final Connection con;
+		public final Thread owner;
+		public int users = 0;
+		public boolean dirty = false, pinned = false, released = false;
+		
+		public Lease(Connection con, Thread owner) {
+			this.con = con;
+			this.owner = owner;
+		}
+	}
+	
+	/**
+	 * Obtains the connection to use by the current call. Without a pool it's always the same connection; with
+	 * a pool the connection already bound to the current thread is reused or a new one is leased.
+	 * 
+	 * @return The lease to use (must be returned with release) or null if there is no connection
+	 * @throws SQLException
+	 */
+	protected Lease lease() throws SQLException {
+		if (pool == null) {
+			if (con == null) return null;
+			if (directLease == null || directLease.con != con) directLease = new Lease(con, null);
+			return directLease;
+		}
+		
+		Thread current = Thread.currentThread();
+		while(true) {
+			Lease l = leases.get(current);
+			if (l == null) {
+				l = new Lease(pool.lease(), current);
+				leases.put(current, l);
+			}
+			synchronized(l) {
+				// A cursor closed on another thread might have just returned it to the pool
+				if (l.released) continue;
+				l.users++;
+			}
+			return l;
+		}
+	}
+	
+	/**
+	 * Keeps the leased connection bound to its thread until DB.commit or DB.rollback.
+	 */
+	protected void pin(Lease l) {
+		if (pool == null) return;
+		synchronized(l) {
+			l.dirty = true;
+			l.pinned = true;
+		}
+	}
+	
+	/**
+	 * Signals the end of a call using a lease. With a pool the connection goes back to the pool if there are
+	 * no other users and no pending updates (with lease per call updates are committed, or rolled back if the
+	 * call failed, before).
+	 * 
+	 * @param l The lease obtained with lease
+	 * @param write If the call changed data
+	 * @param done If the call ended successfully
+	 * @throws SQLException
+	 */
+	protected void release(Lease l, boolean write, boolean done) throws SQLException {
+		if (pool == null || l == null) return;
+		
+		synchronized(l) {
+			if (write) l.dirty = true;
+			if (--l.users > 0 || l.pinned) return;
+			if (l.dirty && !leasePerCall) return;
+			
+			l.released = true;
+			leases.remove(l.owner, l);
+			boolean broken = false;
+			try {
+				if (l.dirty && done) l.con.commit(); else l.con.rollback();
+			} catch (SQLException e) {
+				broken = true;
+				throw e;
+			} finally {
+				pool.release(l.con, broken);
+			}
+		}
+	}
+	
+	/**
+	 * Commits or rollbacks the connection bound to the current thread, returning it to the pool if no
+	 * longer in use.
+	 */
+	protected void endTransaction(boolean commit) throws SQLException {
+		Lease l = leases.get(Thread.currentThread());
+		if (l == null) return;
+		
+		synchronized(l) {
+			try {
+				if (commit) l.con.commit(); else l.con.rollback();
+			} catch (SQLException e) {
+				SimpleLog.log(SimpleLog.logtype.DEBUG, "Error while " + ((commit) ? "commit" : "rollback") + " on " + url + ": " + e.getMessage(), e);
+				throw e;
+			}
+			
+			l.dirty = false;
+			l.pinned = false;
+			if (l.users <= 0) {
+				l.released = true;
+				leases.remove(l.owner, l);
+				pool.release(l.con, false);
+			}
+		}
+	}
+	
+	/**
+	 * Records the metrics of a call (see DBStats) given the nanoTime when it started and when the fetch of 
+	 * results started (0 if there was no fetch).
+	 */
+	protected void record(String sql, long start, long fetchStart, long rows, boolean done) {
+		long end = System.nanoTime();
+		if (fetchStart <= 0) fetchStart = end;
+		stats.record(sql, fetchStart - start, end - fetchStart, rows, !done);
+	}
+	
+	/**
+	 * <odoc>
+	 * <key>DB.getStats() : Map</key>
+	 * Returns a map with the query metrics of this DB object instance: the total number of calls, errors, rows 
+	 * (returned or affected), execTime and fetchTime (in ms), slowCalls, slowThreshold and a statements array, sorted 
+	 * by descending total time, with the same values for each normalised SQL statement (literal values are replaced by ?)
+	 * plus maxTime (in ms) and a latency histogram (number of calls under 1ms, 10ms, 100ms, 1s, 10s and above). 
+	 * Metrics for cursors (DB.qsCursor) are recorded when closed.
+	 * </odoc>
+	 */
+	public Object getStats() {
+		JSEngine.JSMap no = AFCmdBase.jse.getNewMap(null);
+		no.put("calls", stats.getCalls());
+		no.put("errors", stats.getErrors());
+		no.put("rows", stats.getRows());
+		no.put("execTime", stats.getExecTime());
+		no.put("fetchTime", stats.getFetchTime());
+		no.put("slowCalls", stats.getSlowCalls());
+		no.put("slowThreshold", stats.getSlowThreshold());
+		
+		JSEngine.JSList list = AFCmdBase.jse.getNewList(no.getMap());
+		for(DBStats.Statement st : stats.getStatements()) {
+			JSEngine.JSMap sno = AFCmdBase.jse.getNewMap(list.getList());
+			sno.put("sql", st.sql);
+			sno.put("calls", st.count.get());
+			sno.put("errors", st.errors.get());
+			sno.put("rows", st.rows.get());
+			sno.put("execTime", st.execTime.get() / 1000000);
+			sno.put("fetchTime", st.fetchTime.get() / 1000000);
+			sno.put("maxTime", st.maxTime.get() / 1000000);
+			
+			JSEngine.JSList histogram = AFCmdBase.jse.getNewList(sno.getMap());
+			for(int i = 0; i < st.histogram.length(); i++) {
+				histogram.add(st.histogram.get(i));
+			}
+			sno.put("histogram", histogram.getList());
+			list.add(sno.getMap());
+		}
+		no.put("statements", list.getList());
+		return no.getMap();
+	}
+	
+	/**
+	 * <odoc>
+	 * <key>DB.resetStats()</key>
+	 * Resets all the query metrics returned by DB.getStats.
+	 * </odoc>
+	 */
+	public void resetStats() {
+		stats.reset();
+	}
+	
+	/**
+	 * <odoc>
+	 * <key>DB.setSlowQueryThreshold(aTimeInMs)</key>
+	 * Sets the time, in ms, above which a call (execution and fetch) will be logged as slow (at INFO level) including 
+	 * the SQL. Use 0 (default) to disable.
+	 * </odoc>
+	 */
+	public void setSlowQueryThreshold(long ms) {
+		stats.setSlowThreshold(ms);
+	}
+	
+	/**
+	 * <odoc>
+	 * <key>DB.getStatsBean() : JavaObject</key>
+	 * Returns the JMX MBean with the query metrics of this DB object instance to register on a JMX server. Example:\
+	 * \
+	 * plugin("JMXServer");\
+	 * var jmx = new JMXServer("wedo.openaf:type=Values");\
+	 * jmx.start(12345);\
+	 * jmx.addJavaBean("wedo.openaf:type=DB,name=main", db.getStatsBean());\
+	 * \
+	 * </odoc>
+	 */
+	public Object getStatsBean() {
+		return stats;
+	}
+	
 	/**
 	 * <odoc>
 	 * <key>DB.getStatements() : Array</key>
-	 * Returns the current list of database prepared statements that weren't closed it. Do close them,
-	 * as soon as possible, using the DB.closeStatement or DB.closeAllStatements functions. 
+	 * Returns the current list of database prepared statements kept open, for reuse, on the statement cache
+	 * (see DB.setStatementCache). They can be closed using the DB.closeStatement or DB.closeAllStatements functions. 
 	 * </odoc>
 	 */
 	public Object getStatements() {
+		LinkedHashSet<String> sqls = new LinkedHashSet<String>();
+		for(DBStatementCache cache : statementCaches.values()) {
+			sqls.addAll(cache.getStatements());
+		}
+		
 		JSEngine.JSList statements = AFCmdBase.jse.getNewList(null);
-		statements.addAll(preparedStatements.keySet());
+		statements.addAll(sqls);
 		return statements.getList();
 		
 	}
 	
+	/**
+	 * <odoc>
+	 * <key>DB.setStatementCache(aSize, anIdleTimeout)</key>
+	 * The prepared statements used by DB.qs, DB.us and DB.usArray are kept open, for reuse, on a cache per
+	 * connection. This function changes the maximum number of statements kept per connection (aSize, default 32,
+	 * 0 to disable) and the time in ms (anIdleTimeout, default 300000, 0 for no limit) after which an unused statement
+	 * will be closed. Least recently used statements are closed first when the cache is full.
+	 * </odoc>
+	 */
+	public void setStatementCache(int size, long idleTimeout) {
+		statementCacheSize = size;
+		statementCacheIdle = idleTimeout;
+		for(DBStatementCache cache : statementCaches.values()) {
+			cache.setLimits(size, idleTimeout);
+		}
+	}
+	
+	/**
+	 * <odoc>
+	 * <key>DB.getStatementCacheStats() : Map</key>
+	 * Returns a map with the prepared statement cache statistics (size, maxSize, idleTimeout, hits, misses and 
+	 * evictions) summed for all connections (see DB.setStatementCache).
+	 * </odoc>
+	 */
+	public Object getStatementCacheStats() {
+		long size = 0, hits = 0, misses = 0, evictions = 0;
+		for(DBStatementCache cache : statementCaches.values()) {
+			size += cache.getSize();
+			hits += cache.getHits();
+			misses += cache.getMisses();
+			evictions += cache.getEvictions();
+		}
+		
+		JSEngine.JSMap no = AFCmdBase.jse.getNewMap(null);
+		no.put("size", size);
+		no.put("maxSize", statementCacheSize);
+		no.put("idleTimeout", statementCacheIdle);
+		no.put("hits", hits);
+		no.put("misses", misses);
+		no.put("evictions", evictions);
+		return no.getMap();
+	}
+	
+	/**
+	 * Obtains a prepared statement for sql on the leased connection, reusing a cached one if available.
+	 * It must be returned with releaseStatement.
+	 */
+	protected PreparedStatement prepareStatement(Lease l, String sql) throws SQLException {
+		DBStatementCache cache = statementCaches.get(l.con);
+		if (cache == null) {
+			DBStatementCache newCache = new DBStatementCache(statementCacheSize, statementCacheIdle);
+			cache = statementCaches.putIfAbsent(l.con, newCache);
+			if (cache == null) cache = newCache;
+		}
+		
+		PreparedStatement ps = cache.acquire(sql);
+		if (ps == null) ps = l.con.prepareStatement(sql);
+		return ps;
+	}
+	
+	/**
+	 * Returns a statement obtained with prepareStatement to the cache or closes it if it shouldn't be reused 
+	 * (e.g. the call failed).
+	 */
+	protected void releaseStatement(Lease l, String sql, PreparedStatement ps, boolean reuse) throws SQLException {
+		if (ps == null) return;
+		
+		DBStatementCache cache = statementCaches.get(l.con);
+		if (reuse && cache != null) {
+			cache.release(sql, ps);
+		} else {
+			ps.close();
+		}
+	}
+	
 	/**
 	 * <odoc>
 	 * <key>DB.getConnect() : JavaObject</key>
-	 * Returns a Java database connection. 
+	 * Returns a Java database connection. If using a pool, the connection returned will be bound to the
+	 * current thread until DB.commit or DB.rollback is called.
 	 * </odoc>
 	 */
-	public Object getConnect() {
+	public Object getConnect() throws SQLException {
+		if (pool != null) {
+			Lease l = lease();
+			pin(l);
+			release(l, false, true);
+			return l.con;
+		}
 		return con;
 	}
 	
 	/**
 	 * <odoc>
 	 * <key>DB.closeStatement(aStatement)</key>
-	 * Closes the corresponding prepared statement. If an error occurs during this process
+	 * Closes the corresponding prepared statement kept on the statement cache. If an error occurs during this process
 	 * an exception will be thrown.
 	 * </odoc>
 	 */
 	public void closeStatement(String aQuery) throws SQLException {
-		if (con != null) {
-			PreparedStatement ps = preparedStatements.get(aQuery);
-			if (ps != null) {
-				ps.close();
-				preparedStatements.remove(aQuery);
-			}
+		for(DBStatementCache cache : statementCaches.values()) {
+			cache.remove(aQuery);
 		}
 	}
 	
 	/**
 	 * <odoc>
 	 * <key>DB.closeAllStatements()</key>
-	 * Tries to close all prepared statements for this DB object instance. If an error occurs
+	 * Tries to close all prepared statements kept on the statement cache for this DB object instance. If an error occurs
 	 * during this process an exception will be thrown.
 	 * </odoc>
 	 */
 	public void closeAllStatements() throws SQLException {
-		if (con != null) {
-			for(PreparedStatement ps : preparedStatements.values()) {
-				ps.close();
-			}
+		for(DBStatementCache cache : statementCaches.values()) {
+			cache.clear();
+		}
+	}
+	
+	/**
+	 * <odoc>
+	 * <key>DB.setNumericMode(aMode)</key>
+	 * Sets how numeric columns (NUMERIC, DECIMAL, DOUBLE and FLOAT) are converted on query results. The supported
+	 * modes are: "double" (default; all numeric columns are read as doubles), "auto" (integer columns, with a precision
+	 * up to 18 digits, are read as longs and all others as doubles) and "bigdecimal" (all numeric columns are read as 
+	 * exact java BigDecimal objects). In case of an unknown aMode an exception will be thrown.
+	 * </odoc>
+	 */
+	public void setNumericMode(String aMode) throws Exception {
+		try {
+			numericMode = NumericMode.valueOf(aMode.toUpperCase());
+		} catch (IllegalArgumentException e) {
+			throw new Exception("Unknown numeric mode '" + aMode + "'. Use auto, double or bigdecimal.");
 		}
 	}
 	
+	/**
+	 * <odoc>
+	 * <key>DB.getNumericMode() : String</key>
+	 * Returns the current numeric conversion mode (see DB.setNumericMode).
+	 * </odoc>
+	 */
+	public String getNumericMode() {
+		return numericMode.toString().toLowerCase();
+	}
+	
 	/**
 	 * <odoc>
 	 * <key>DB.q(aQuery) : Map</key>
@@ -143,89 +570,36 @@ public class DB {
 	 * </odoc>
 	 */
 	public Object q(String query) throws IOException, SQLException {
-		if (con != null) {
+		Lease l = lease();
+		if (l != null) {
+			long start = System.nanoTime(), fetchStart = 0, count = 0;
+			boolean done = false;
 			try {
-				PreparedStatement ps = con.prepareStatement(query);
+				PreparedStatement ps = l.con.prepareStatement(query);
 				ResultSet rs = ps.executeQuery();
+				fetchStart = System.nanoTime();
 				
-				int numberColumns = rs.getMetaData().getColumnCount();
+				Column[] columns = getColumns(rs.getMetaData(), true);
 				JSEngine.JSMap no = AFCmdBase.jse.getNewMap(null);
 				
 				JSEngine.JSList records = AFCmdBase.jse.getNewList(no.getMap());
 				
 				while(rs.next()) { // && count < LIMIT_RESULTS) {
-					JSEngine.JSMap record = AFCmdBase.jse.getNewMap(records.getList());
-					
-					for(int i = 1; i <= numberColumns; i++) {
-						if ((rs.getMetaData().getColumnType(i) == java.sql.Types.NUMERIC) ||
-						    (rs.getMetaData().getColumnType(i) == java.sql.Types.DECIMAL) ||
-						    (rs.getMetaData().getColumnType(i) == java.sql.Types.DOUBLE)  ||
-						    (rs.getMetaData().getColumnType(i) == java.sql.Types.FLOAT)) {
-							// TODO: Need to change for more performance
-							
-							if (rs.getObject(i) != null) {
-								//jsong.writeNumberField(rs.getMetaData().getColumnName(i), new BigDecimal(rs.getObject(i).toString()));
-								record.put(rs.getMetaData().getColumnName(i), Double.valueOf(rs.getObject(i).toString()) );
-							} else {
-								//jsong.writeNumberField(rs.getMetaData().getColumnName(i), null);
-								record.put(rs.getMetaData().getColumnName(i), null);
-							}
-						} else {
-							if((rs.getMetaData().getColumnType(i) == java.sql.Types.CLOB) ||
-							   (rs.getMetaData().getColumnType(i) == java.sql.Types.LONGVARCHAR)) {
-								try {
-									InputStream in;
-									if (rs.getMetaData().getColumnType(i) == java.sql.Types.CLOB)
-											in = rs.getClob(i).getAsciiStream();
-									else
-											in = rs.getAsciiStream(i);
-									StringWriter w = new StringWriter();
-									IOUtils.copy(in, w, (Charset) null);
-									record.put(rs.getMetaData().getColumnName(i), w.toString());
-								} catch(Exception e) {
-									SimpleLog.log(SimpleLog.logtype.DEBUG, "Problem getting clob", e);
-									record.put(rs.getMetaData().getColumnName(i),  null);
-								}
-								continue;
-							}
-							
-							if((rs.getMetaData().getColumnType(i) == java.sql.Types.BLOB) ||
-							   (rs.getMetaData().getColumnType(i) == java.sql.Types.BINARY) ||
-							   (rs.getMetaData().getColumnType(i) == java.sql.Types.LONGVARBINARY)) {
-								try {
-									InputStream in;
-									if (rs.getMetaData().getColumnType(i) == java.sql.Types.BLOB)
-											in = rs.getBlob(i).getBinaryStream();
-									else
-											in = rs.getBinaryStream(i);
-									record.put(rs.getMetaData().getColumnName(i), IOUtils.toByteArray(in));
-								} catch(Exception e) {
-									SimpleLog.log(SimpleLog.logtype.DEBUG, "Problem getting blob", e);
-									record.put(rs.getMetaData().getColumnName(i), null);
-								}
-								continue;
-							}
-
-							if (rs.getObject(i) != null) {
-								//jsong.writeStringField(rs.getMetaData().getColumnName(i), rs.getObject(i).toString());
-								record.put(rs.getMetaData().getColumnName(i), rs.getObject(i).toString());
-							} else {
-								//jsong.writeStringField(rs.getMetaData().getColumnName(i), null);
-								record.put(rs.getMetaData().getColumnName(i), null);
-							}
-						}
-					}
-					
-					records.add(record.getMap());
+					records.add(getRow(rs, columns, null));
+					count++;
 				}
 				
 				rs.close();
 				ps.close();
 				no.put("results", records.getList());
 
+				done = true;
 				return no.getMap();
 			} catch (SQLException e) {
 				throw e;
+			} finally {
+				record(query, start, fetchStart, count, done);
+				release(l, false, true);
 			}
 		}
 		return null;
@@ -242,10 +616,13 @@ public class DB {
 	 * </odoc>
 	 */
 	public Object qsRS(String query, JSEngine.JSList bindVariables) throws IOException, SQLException {
-		if (con != null) {
+		Lease l = lease();
+		if (l != null) {
+			// The result set is returned so the connection must stay with the current thread
+			pin(l);
 			try {
 				PreparedStatement ps = null;
-				ps = con.prepareStatement(query);
+				ps = l.con.prepareStatement(query);
 				
 				int ii = 0;
 				for (Object obj : bindVariables ) {
@@ -255,112 +632,606 @@ public class DB {
 				
 				ResultSet rs = ps.executeQuery();
 		
-				return rs;
-			} catch (SQLException e) {
-				throw e;
+				return rs;
+			} catch (SQLException e) {
+				throw e;
+			} finally {
+				release(l, false, true);
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * <odoc>
+	 * <key>DB.qs(aQuery, arrayOfBindVariables, keepStatement) : Map</key>
+	 * Performs aQuery (SQL) on the current DB object instance using the bind variables from the arrayOfBindVariables.
+	 * It returns a Map with a results array that will have an element per result set line. In case of error an 
+	 * exception will be thrown. The prepared statement used is always kept on the statement cache for reuse in another
+	 * call (see DB.setStatementCache) so keepStatement is no longer needed and kept only for compatibility.
+	 * </odoc>
+	 */
+	public Object qs(String query, JSEngine.JSList bindVariables, boolean keepStatement) throws IOException, SQLException {
+		Lease l = lease();
+		if (l != null) {
+			PreparedStatement ps = null;
+			boolean done = false;
+			long start = System.nanoTime(), fetchStart = 0, count = 0;
+			try {
+				ps = prepareStatement(l, query);
+				
+				int ii = 0;
+				for (Object obj : bindVariables ) {
+					ii++;
+					ps.setObject(ii, obj);
+				}
+				
+				ResultSet rs = ps.executeQuery();
+				fetchStart = System.nanoTime();
+				
+				Column[] columns = getColumns(rs.getMetaData(), false);
+				JSEngine.JSMap no = AFCmdBase.jse.getNewMap(null);
+				JSEngine.JSList records = AFCmdBase.jse.getNewList(no.getMap());
+				
+				while(rs.next()) { // && count < LIMIT_RESULTS) {
+					records.add(getRow(rs, columns, null));
+					count++;
+				}
+				
+				rs.close();
+				no.put("results", records.getList());
+
+				done = true;
+				return no.getMap();
+			} catch (SQLException e) {
+				throw e;
+			} finally {
+				record(query, start, fetchStart, count, done);
+				try {
+					releaseStatement(l, query, ps, done);
+				} finally {
+					release(l, false, true);
+				}
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Converts the value of a result set column.
+	 */
+	protected interface ColumnConverter {
+		public Object convert(ResultSet rs, int i) throws SQLException, IOException;
+	}
+	
+	/**
+	 * Describes a result set column (index, name, JDBC type and converter) so that the metadata is only
+	 * looked up once per query instead of once per value.
+	 */
+	protected static class Column {
+		public final int index;
+		public final String name;
+		public final int type;
+		public final ColumnConverter converter;
+		
+		public Column(int index, String name, int type, ColumnConverter converter) {
+			this.index = index;
+			this.name = name;
+			this.type = type;
+			this.converter = converter;
+		}
+	}
+	
+	protected static final ColumnConverter DOUBLE_CONVERTER = new ColumnConverter() {
+		public Object convert(ResultSet rs, int i) throws SQLException {
+			double d = rs.getDouble(i);
+			return (rs.wasNull()) ? null : Double.valueOf(d);
+		}
+	};
+	
+	protected static final ColumnConverter LONG_CONVERTER = new ColumnConverter() {
+		public Object convert(ResultSet rs, int i) throws SQLException {
+			long l = rs.getLong(i);
+			return (rs.wasNull()) ? null : Long.valueOf(l);
+		}
+	};
+	
+	protected static final ColumnConverter BIGDECIMAL_CONVERTER = new ColumnConverter() {
+		public Object convert(ResultSet rs, int i) throws SQLException {
+			BigDecimal bd = rs.getBigDecimal(i);
+			// Wrapped so that scripts get the exact java object instead of a javascript number
+			return (bd != null) ? new NativeJavaObject((Scriptable) AFCmdBase.jse.getGlobalscope(), bd, BigDecimal.class) : null;
+		}
+	};
+	
+	protected static final ColumnConverter CLOB_CONVERTER = new ColumnConverter() {
+		public Object convert(ResultSet rs, int i) throws SQLException, IOException {
+			Clob clob = rs.getClob(i);
+			if (clob == null) return null;
+			StringWriter w = new StringWriter();
+			IOUtils.copy(clob.getAsciiStream(), w, (Charset) null);
+			return w.toString();
+		}
+	};
+	
+	protected static final ColumnConverter LONGVARCHAR_CONVERTER = new ColumnConverter() {
+		public Object convert(ResultSet rs, int i) throws SQLException, IOException {
+			InputStream in = rs.getAsciiStream(i);
+			if (in == null) return null;
+			StringWriter w = new StringWriter();
+			IOUtils.copy(in, w, (Charset) null);
+			return w.toString();
+		}
+	};
+	
+	protected static final ColumnConverter BLOB_CONVERTER = new ColumnConverter() {
+		public Object convert(ResultSet rs, int i) throws SQLException, IOException {
+			Blob blob = rs.getBlob(i);
+			return (blob != null) ? IOUtils.toByteArray(blob.getBinaryStream()) : null;
+		}
+	};
+	
+	protected static final ColumnConverter BINARY_CONVERTER = new ColumnConverter() {
+		public Object convert(ResultSet rs, int i) throws SQLException, IOException {
+			InputStream in = rs.getBinaryStream(i);
+			return (in != null) ? IOUtils.toByteArray(in) : null;
+		}
+	};
+	
+	protected static final ColumnConverter STRING_CONVERTER = new ColumnConverter() {
+		public Object convert(ResultSet rs, int i) throws SQLException {
+			Object o = rs.getObject(i);
+			return (o != null) ? o.toString() : null;
+		}
+	};
+	
+	/**
+	 * Wraps a LOB converter returning null, instead of failing, if the LOB can't be read.
+	 */
+	protected static class LenientConverter implements ColumnConverter {
+		protected ColumnConverter converter;
+		protected String what;
+		
+		public LenientConverter(ColumnConverter converter, String what) {
+			this.converter = converter;
+			this.what = what;
+		}
+		
+		public Object convert(ResultSet rs, int i) {
+			try {
+				return converter.convert(rs, i);
+			} catch(Exception e) {
+				SimpleLog.log(SimpleLog.logtype.DEBUG, "Problem getting " + what, e);
+				return null;
+			}
+		}
+	}
+	
+	/**
+	 * Builds the column descriptors for a result set, choosing the converter to use for each column.
+	 * 
+	 * @param md The result set metadata
+	 * @param lenientLobs If true problems reading CLOBs or BLOBs will result in null values instead of exceptions
+	 * @return An array of column descriptors in result set order
+	 * @throws SQLException
+	 */
+	protected Column[] getColumns(ResultSetMetaData md, boolean lenientLobs) throws SQLException {
+		Column[] columns = new Column[md.getColumnCount()];
+		
+		for(int i = 1; i <= columns.length; i++) {
+			int type = md.getColumnType(i);
+			ColumnConverter converter;
+			
+			switch(type) {
+			case java.sql.Types.NUMERIC:
+			case java.sql.Types.DECIMAL:
+				if (numericMode == NumericMode.BIGDECIMAL) {
+					converter = BIGDECIMAL_CONVERTER;
+				} else {
+					// Integer columns that fit in a long don't need to go through a double
+					int precision = md.getPrecision(i);
+					if (numericMode == NumericMode.AUTO && md.getScale(i) == 0 && precision > 0 && precision <= 18)
+						converter = LONG_CONVERTER;
+					else
+						converter = DOUBLE_CONVERTER;
+				}
+				break;
+			case java.sql.Types.DOUBLE:
+			case java.sql.Types.FLOAT:
+				converter = (numericMode == NumericMode.BIGDECIMAL) ? BIGDECIMAL_CONVERTER : DOUBLE_CONVERTER;
+				break;
+			case java.sql.Types.CLOB:
+				converter = (lenientLobs) ? new LenientConverter(CLOB_CONVERTER, "clob") : CLOB_CONVERTER;
+				break;
+			case java.sql.Types.LONGVARCHAR:
+				converter = (lenientLobs) ? new LenientConverter(LONGVARCHAR_CONVERTER, "clob") : LONGVARCHAR_CONVERTER;
+				break;
+			case java.sql.Types.BLOB:
+				converter = (lenientLobs) ? new LenientConverter(BLOB_CONVERTER, "blob") : BLOB_CONVERTER;
+				break;
+			case java.sql.Types.BINARY:
+			case java.sql.Types.LONGVARBINARY:
+				converter = (lenientLobs) ? new LenientConverter(BINARY_CONVERTER, "blob") : BINARY_CONVERTER;
+				break;
+			default:
+				converter = STRING_CONVERTER;
+			}
+			
+			columns[i - 1] = new Column(i, md.getColumnName(i), type, converter);
+		}
+		
+		return columns;
+	}
+	
+	/**
+	 * Converts the current result set row into a map with an entry per column.
+	 * 
+	 * @param rs The result set positioned on the row to convert
+	 * @param columns The column descriptors obtained from getColumns
+	 * @param parent The parent object for the new map
+	 * @return The converted row
+	 * @throws SQLException
+	 * @throws IOException
+	 */
+	protected Object getRow(ResultSet rs, Column[] columns, Object parent) throws SQLException, IOException {
+		JSEngine.JSMap record = AFCmdBase.jse.getNewMap(parent);
+		
+		for(Column column : columns) {
+			record.put(column.name, column.converter.convert(rs, column.index));
+		}
+		
+		return record.getMap();
+	}
+	
+	/**
+	 * <odoc>
+	 * <key>DB.qsCursor(aQuery, arrayOfBindVariables, aFetchSize) : DB.Cursor</key>
+	 * Performs aQuery (SQL) on the current DB object instance using the bind variables from the arrayOfBindVariables
+	 * but, instead of loading all the result set lines into memory, returns a cursor object to iterate through each line
+	 * one at a time. Optionally you can provide aFetchSize to hint the JDBC driver on how many lines should be fetched
+	 * from the database on each round-trip. The returned cursor provides the functions hasNext(), next() (returns a map
+	 * for the next line or null if there are no more lines), forEach(aFunction) (calls aFunction with each line map until
+	 * there are no more lines or aFunction returns false), getCount() and close(). The cursor is closed automatically
+	 * when all lines are read but, if you stop before, do close it. In case of error an exception will be thrown.\
+	 * \
+	 * Example:\
+	 * \
+	 * var cur = db.qsCursor("select * from A where c1 > ?", [ 10 ], 5000);\
+	 * cur.forEach(function(r) { print(r.C1); });\
+	 * \
+	 * </odoc>
+	 */
+	public Cursor qsCursor(String query, JSEngine.JSList bindVariables, int fetchSize) throws SQLException {
+		Lease l = lease();
+		if (l != null) {
+			PreparedStatement ps = null;
+			long start = System.nanoTime();
+			try {
+				ps = l.con.prepareStatement(query, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+				if (fetchSize > 0) ps.setFetchSize(fetchSize);
+				
+				int ii = 0;
+				for (Object obj : bindVariables ) {
+					ii++;
+					ps.setObject(ii, obj);
+				}
+				
+				ResultSet rs = ps.executeQuery();
+				return new Cursor(l, query, ps, rs, System.nanoTime() - start);
+			} catch (SQLException e) {
+				record(query, start, 0, 0, false);
+				try {
+					if (ps != null) ps.close();
+				} finally {
+					release(l, false, true);
+				}
+				throw e;
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Forward only cursor over a query result set that converts one line at a time.
+	 */
+	public class Cursor {
+		protected Lease lease;
+		protected String sql;
+		protected PreparedStatement ps;
+		protected ResultSet rs;
+		protected Column[] columns;
+		protected boolean fetched = false, hasRow = false, closed = false;
+		protected long count = 0, execTime, fetchTime = 0;
+		
+		protected Cursor(Lease lease, String sql, PreparedStatement ps, ResultSet rs, long execTime) throws SQLException {
+			this.lease = lease;
+			this.sql = sql;
+			this.ps = ps;
+			this.rs = rs;
+			this.execTime = execTime;
+			this.columns = getColumns(rs.getMetaData(), false);
+		}
+		
+		/**
+		 * Determines if there is another line to be read moving the result set if needed.
+		 */
+		public boolean hasNext() throws SQLException {
+			if (closed) return false;
+			if (!fetched) {
+				long start = System.nanoTime();
+				hasRow = rs.next();
+				fetchTime += System.nanoTime() - start;
+				fetched = true;
+				if (!hasRow) close();
+			}
+			return hasRow;
+		}
+		
+		/**
+		 * Returns the map for the next line or null if there are no more lines.
+		 */
+		public Object next() throws SQLException, IOException {
+			if (!hasNext()) return null;
+			
+			fetched = false;
+			count++;
+			long start = System.nanoTime();
+			Object row = getRow(rs, columns, null);
+			fetchTime += System.nanoTime() - start;
+			return row;
+		}
+		
+		/**
+		 * Returns the values of the next line, converted like next() does, or null if there are no more lines.
+		 */
+		protected Object[] nextConverted() throws SQLException, IOException {
+			if (!hasNext()) return null;
+			
+			fetched = false;
+			count++;
+			long start = System.nanoTime();
+			Object[] values = new Object[columns.length];
+			for(int i = 0; i < columns.length; i++) {
+				values[i] = columns[i].converter.convert(rs, columns[i].index);
+			}
+			fetchTime += System.nanoTime() - start;
+			return values;
+		}
+		
+		/**
+		 * Returns the java values, as returned by the JDBC driver, of the next line or null if there are no more lines.
+		 */
+		protected Object[] nextValues() throws SQLException {
+			if (!hasNext()) return null;
+			
+			fetched = false;
+			count++;
+			Object[] values = new Object[columns.length];
+			for(int i = 0; i < columns.length; i++) {
+				values[i] = rs.getObject(columns[i].index);
+			}
+			return values;
+		}
+		
+		/**
+		 * Calls aFunction for each remaining line until there are no more lines or aFunction returns false.
+		 * Returns the number of lines read.
+		 */
+		public long forEach(NativeFunction aFunction) throws SQLException, IOException {
+			Context cx = (Context) AFCmdBase.jse.enterContext();
+			try {
+				while(hasNext()) {
+					Object res = aFunction.call(cx, (Scriptable) AFCmdBase.jse.getGlobalscope(), cx.newObject((Scriptable) AFCmdBase.jse.getGlobalscope()), new Object[] { next() });
+					if (res instanceof Boolean && !((Boolean) res)) break;
+				}
+			} finally {
+				AFCmdBase.jse.exitContext();
+			}
+			return count;
+		}
+		
+		/**
+		 * Returns the names of the result set columns.
+		 */
+		public String[] getColumnNames() {
+			String[] names = new String[columns.length];
+			for(int i = 0; i < columns.length; i++) {
+				names[i] = columns[i].name;
+			}
+			return names;
+		}
+
+		/**
+		 * Returns the number of lines read so far.
+		 */
+		public long getCount() {
+			return count;
+		}
+		
+		/**
+		 * Closes the underlying result set and prepared statement.
+		 */
+		public void close() throws SQLException {
+			if (closed) return;
+			closed = true;
+			stats.record(sql, execTime, fetchTime, count, false);
+			try {
+				rs.close();
+			} finally {
+				try {
+					ps.close();
+				} finally {
+					release(lease, false, true);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Accumulates the values of a single result set column for DB.qsColumnar.
+	 */
+	protected static abstract class ColumnData {
+		protected int size = 0;
+		protected boolean[] nulls = null;
+		
+		protected void markNull() {
+			if (nulls == null) nulls = new boolean[Math.max(16, size + 1)];
+			if (size >= nulls.length) nulls = Arrays.copyOf(nulls, nulls.length * 2);
+			nulls[size] = true;
+		}
+		
+		public boolean[] getNulls() {
+			return (nulls == null) ? null : Arrays.copyOf(nulls, size);
+		}
+		
+		public abstract void add(ResultSet rs) throws SQLException, IOException;
+		public abstract Object getData();
+	}
+	
+	protected static class LongColumnData extends ColumnData {
+		protected int index;
+		protected long[] values = new long[1024];
+		
+		public LongColumnData(int index) {
+			this.index = index;
+		}
+		
+		public void add(ResultSet rs) throws SQLException {
+			if (size >= values.length) values = Arrays.copyOf(values, values.length * 2);
+			values[size] = rs.getLong(index);
+			if (rs.wasNull()) markNull();
+			size++;
+		}
+		
+		public Object getData() {
+			return Arrays.copyOf(values, size);
+		}
+	}
+	
+	protected static class DoubleColumnData extends ColumnData {
+		protected int index;
+		protected double[] values = new double[1024];
+		
+		public DoubleColumnData(int index) {
+			this.index = index;
+		}
+		
+		public void add(ResultSet rs) throws SQLException {
+			if (size >= values.length) values = Arrays.copyOf(values, values.length * 2);
+			double d = rs.getDouble(index);
+			if (rs.wasNull()) {
+				markNull();
+				d = Double.NaN;
 			}
+			values[size++] = d;
+		}
+		
+		public Object getData() {
+			return Arrays.copyOf(values, size);
+		}
+	}
+	
+	protected static class ObjectColumnData extends ColumnData {
+		protected Column column;
+		protected ArrayList<Object> values = new ArrayList<Object>();
+		
+		public ObjectColumnData(Column column) {
+			this.column = column;
+		}
+		
+		public void add(ResultSet rs) throws SQLException, IOException {
+			values.add(column.converter.convert(rs, column.index));
+			size++;
+		}
+		
+		public Object getData() {
+			return AFCmdBase.jse.newArray(AFCmdBase.jse.getGlobalscope(), values.toArray());
 		}
-		return null;
 	}
 	
 	/**
 	 * <odoc>
-	 * <key>DB.qs(aQuery, arrayOfBindVariables, keepStatement) : Map</key>
-	 * Performs aQuery (SQL) on the current DB object instance using the bind variables from the arrayOfBindVariables.
-	 * It returns a Map with a results array that will have an element per result set line. In case of error an 
-	 * exception will be thrown. Optionally you can specify to keepStatement (e.g. boolean) to keep from closing
-	 * the prepared statement used for reuse in another qs call. If you specify to use keepStatement do close this
-	 * query, as soon as possible, using DB.closeStatement(aQuery) (where you provide an exactly equal statement to 
-	 * aQuery) or DB.closeAllStatements.
+	 * <key>DB.qsColumnar(aQuery, arrayOfBindVariables, aFetchSize) : Map</key>
+	 * Performs aQuery (SQL) on the current DB object instance using the bind variables from the arrayOfBindVariables
+	 * and returns the results organized by column instead of by line: a map with columns (array of column names),
+	 * count (number of lines), data (a map with a java array per column) and nulls (a map with a java boolean array,
+	 * for the columns that have null values, indicating which lines are null). Numeric columns are returned as java
+	 * long or double arrays (using the same rules as DB.setNumericMode; nulls will be 0 or NaN respectively) and all
+	 * others as javascript arrays. Optionally you can provide aFetchSize to hint the JDBC driver on how many lines should
+	 * be fetched on each round-trip. In case of error an exception will be thrown.\
+	 * \
+	 * Example:\
+	 * \
+	 * var res = db.qsColumnar("select c1, c2 from A", []);\
+	 * var sum = 0;\
+	 * for(var i = 0; i &lt; res.count; i++) { sum += res.data.C1[i]; }\
+	 * \
 	 * </odoc>
 	 */
-	public Object qs(String query, JSEngine.JSList bindVariables, boolean keepStatement) throws IOException, SQLException {
-		if (con != null) {
+	public Object qsColumnar(String query, JSEngine.JSList bindVariables, int fetchSize) throws IOException, SQLException {
+		Lease l = lease();
+		if (l != null) {
+			long start = System.nanoTime(), fetchStart = 0;
+			int count = 0;
+			boolean done = false;
 			try {
-				PreparedStatement ps = null;
-				if (preparedStatements.containsKey(query)) {
-					ps = preparedStatements.get(query);
-				} else {
-					ps = con.prepareStatement(query);
-					if (keepStatement) preparedStatements.put(query, ps);
-				}
-				
-				int ii = 0;
-				for (Object obj : bindVariables ) {
-					ii++;
-					ps.setObject(ii, obj);
-				}
+				PreparedStatement ps = l.con.prepareStatement(query, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+				try {
+					if (fetchSize > 0) ps.setFetchSize(fetchSize);
 				
-				ResultSet rs = ps.executeQuery();
-				
-				int numberColumns = rs.getMetaData().getColumnCount();
-				JSEngine.JSMap no = AFCmdBase.jse.getNewMap(null);
-				JSEngine.JSList records = AFCmdBase.jse.getNewList(no.getMap());
+					int ii = 0;
+					for (Object obj : bindVariables ) {
+						ii++;
+						ps.setObject(ii, obj);
+					}
 				
-				while(rs.next()) { // && count < LIMIT_RESULTS) {
-					JSEngine.JSMap record = AFCmdBase.jse.getNewMap(records.getList());
+					ResultSet rs = ps.executeQuery();
+					fetchStart = System.nanoTime();
+					try {
+						Column[] columns = getColumns(rs.getMetaData(), false);
+						ColumnData[] data = new ColumnData[columns.length];
+						for(int i = 0; i < columns.length; i++) {
+							if (columns[i].converter == LONG_CONVERTER)
+								data[i] = new LongColumnData(columns[i].index);
+							else if (columns[i].converter == DOUBLE_CONVERTER)
+								data[i] = new DoubleColumnData(columns[i].index);
+							else
+								data[i] = new ObjectColumnData(columns[i]);
+						}
 					
-					for(int i = 1; i <= numberColumns; i++) {
-						if ((rs.getMetaData().getColumnType(i) == java.sql.Types.NUMERIC) ||
-						    (rs.getMetaData().getColumnType(i) == java.sql.Types.DECIMAL) ||
-						    (rs.getMetaData().getColumnType(i) == java.sql.Types.DOUBLE)  ||
-						    (rs.getMetaData().getColumnType(i) == java.sql.Types.FLOAT)) {
-							// TODO: Need to change for more performance
-							
-							if (rs.getObject(i) != null) {
-								//jsong.writeNumberField(rs.getMetaData().getColumnName(i), new BigDecimal(rs.getObject(i).toString()));
-								record.put(rs.getMetaData().getColumnName(i), Double.valueOf(rs.getObject(i).toString()) );
-							} else {
-								//jsong.writeNumberField(rs.getMetaData().getColumnName(i), null);
-								record.put(rs.getMetaData().getColumnName(i), null);
-							}
-						} else {
-							if((rs.getMetaData().getColumnType(i) == java.sql.Types.CLOB) ||
-							   (rs.getMetaData().getColumnType(i) == java.sql.Types.LONGVARCHAR))	{
-								InputStream in;
-								if (rs.getMetaData().getColumnType(i) == java.sql.Types.CLOB)
-										in = rs.getClob(i).getAsciiStream();
-								else
-										in = rs.getAsciiStream(i);
-								
-								StringWriter w = new StringWriter();
-								IOUtils.copy(in, w, (Charset) null);
-								record.put(rs.getMetaData().getColumnName(i), w.toString());
-								continue;
-							}
-							
-							if((rs.getMetaData().getColumnType(i) == java.sql.Types.BLOB) ||
-							   (rs.getMetaData().getColumnType(i) == java.sql.Types.BINARY) ||
-							   (rs.getMetaData().getColumnType(i) == java.sql.Types.LONGVARBINARY)) {
-								InputStream in;
-								if (rs.getMetaData().getColumnType(i) == java.sql.Types.BLOB)
-										in = rs.getBlob(i).getBinaryStream();
-								else
-										in = rs.getBinaryStream(i);
-								record.put(rs.getMetaData().getColumnName(i), IOUtils.toByteArray(in));
-								continue;
-							}
-
-							if (rs.getObject(i) != null) {
-								//jsong.writeStringField(rs.getMetaData().getColumnName(i), rs.getObject(i).toString());
-								record.put(rs.getMetaData().getColumnName(i), rs.getObject(i).toString());
-							} else {
-								//jsong.writeStringField(rs.getMetaData().getColumnName(i), null);
-								record.put(rs.getMetaData().getColumnName(i), null);
+						while(rs.next()) {
+							for(ColumnData cd : data) {
+								cd.add(rs);
 							}
+							count++;
+						}
+					
+						JSEngine.JSMap no = AFCmdBase.jse.getNewMap(null);
+						JSEngine.JSList names = AFCmdBase.jse.getNewList(no.getMap());
+						JSEngine.JSMap values = AFCmdBase.jse.getNewMap(no.getMap());
+						JSEngine.JSMap nulls = AFCmdBase.jse.getNewMap(no.getMap());
+						for(int i = 0; i < columns.length; i++) {
+							names.add(columns[i].name);
+							values.put(columns[i].name, AFCmdBase.jse.convertObject(data[i].getData()));
+							if (data[i].getNulls() != null) nulls.put(columns[i].name, AFCmdBase.jse.convertObject(data[i].getNulls()));
 						}
-					}
 					
-					records.add(record.getMap());
+						no.put("columns", names.getList());
+						no.put("count", count);
+						no.put("data", values.getMap());
+						no.put("nulls", nulls.getMap());
+					
+						done = true;
+						return no.getMap();
+					} finally {
+						rs.close();
+					}
+				} finally {
+					ps.close();
 				}
-				
-				rs.close();
-				if (!keepStatement) ps.close();
-				no.put("results", records.getList());
-
-				return no.getMap();
-			} catch (SQLException e) {
-				throw e;
+			} finally {
+				record(query, start, fetchStart, count, done);
+				release(l, false, true);
 			}
 		}
 		return null;
@@ -375,9 +1246,10 @@ public class DB {
 	 * </odoc>
 	 */
 	public Object qLob(String sql) throws Exception {
-		if (con != null) {
+		Lease l = lease();
+		if (l != null) {
 			try {
-				PreparedStatement ps = con.prepareStatement(sql);
+				PreparedStatement ps = l.con.prepareStatement(sql);
 				ResultSet rs = ps.executeQuery();
 				
 				rs.next();
@@ -406,11 +1278,225 @@ public class DB {
 			} catch (SQLException e) {
 				//SimpleLog.log(SimpleLog.logtype.ERROR, "Error executing query " + sql + ": " + e.getMessage(), e);
 				throw e;
+			} finally {
+				release(l, false, true);
 			}
 		}
 		return null;
 	}
 	
+	/**
+	 * The result set and statement behind a LOB stream returned by DB.qLobStream, closed with the stream.
+	 */
+	protected class LobResources {
+		protected Lease lease;
+		protected PreparedStatement ps;
+		protected ResultSet rs;
+		protected boolean closed = false;
+		
+		protected LobResources(Lease lease, PreparedStatement ps, ResultSet rs) {
+			this.lease = lease;
+			this.ps = ps;
+			this.rs = rs;
+		}
+		
+		protected synchronized void close() throws IOException {
+			if (closed) return;
+			closed = true;
+			try {
+				try {
+					rs.close();
+				} finally {
+					try {
+						ps.close();
+					} finally {
+						release(lease, false, true);
+					}
+				}
+			} catch (SQLException e) {
+				throw new IOException(e);
+			}
+		}
+	}
+	
+	/**
+	 * Binary stream of a BLOB, returned by DB.qLobStream, that releases the database resources when closed.
+	 */
+	public class LobInputStream extends FilterInputStream {
+		protected LobResources resources;
+		
+		protected LobInputStream(InputStream in, LobResources resources) {
+			super(in);
+			this.resources = resources;
+		}
+		
+		@Override
+		public void close() throws IOException {
+			try {
+				super.close();
+			} finally {
+				resources.close();
+			}
+		}
+	}
+	
+	/**
+	 * Character stream of a CLOB, returned by DB.qLobStream, that releases the database resources when closed.
+	 */
+	public class LobReader extends FilterReader {
+		protected LobResources resources;
+		
+		protected LobReader(Reader in, LobResources resources) {
+			super(in);
+			this.resources = resources;
+		}
+		
+		@Override
+		public void close() throws IOException {
+			try {
+				super.close();
+			} finally {
+				resources.close();
+			}
+		}
+	}
+	
+	protected static boolean isBinaryType(int type) {
+		return type == java.sql.Types.BLOB || type == java.sql.Types.LONGVARBINARY || type == java.sql.Types.VARBINARY || 
+			   type == java.sql.Types.BINARY;
+	}
+	
+	/**
+	 * Returns the charset to read a file into the first parameter of ps or null if it should be read as binary. The
+	 * lobType ("blob", "clob" or "clob:charset") is used if provided, otherwise the parameter type reported by the driver.
+	 * 
+	 * @throws SQLException If lobType isn't valid or, not provided, the driver can't report a LOB parameter type
+	 */
+	protected static String getLobCharset(PreparedStatement ps, String lobType) throws SQLException {
+		if (lobType != null) {
+			String type = (lobType.indexOf(':') > 0) ? lobType.substring(0, lobType.indexOf(':')) : lobType;
+			if (type.trim().equalsIgnoreCase("blob")) return null;
+			if (type.trim().equalsIgnoreCase("clob")) return (lobType.indexOf(':') > 0) ? lobType.substring(lobType.indexOf(':') + 1).trim() : "UTF-8";
+			throw new SQLException("Unknown LOB type '" + lobType + "' (expected blob, clob or clob:charset)");
+		}
+		
+		int type;
+		try {
+			type = ps.getParameterMetaData().getParameterType(1);
+		} catch (SQLException e) {
+			throw new SQLException("Can't determine if the LOB parameter is a CLOB or a BLOB (" + e.getMessage() + "), please provide the LOB type.", e);
+		}
+		if (isCharacterType(type)) return "UTF-8";
+		if (isBinaryType(type)) return null;
+		throw new SQLException("The LOB parameter type reported by the driver (" + type + ") isn't a CLOB or a BLOB, please provide the LOB type.");
+	}
+	
+	protected static boolean isCharacterType(int type) {
+		return type == java.sql.Types.CLOB || type == java.sql.Types.NCLOB || type == java.sql.Types.LONGVARCHAR || 
+			   type == java.sql.Types.LONGNVARCHAR || type == java.sql.Types.VARCHAR || type == java.sql.Types.NVARCHAR ||
+			   type == java.sql.Types.CHAR || type == java.sql.Types.NCHAR;
+	}
+	
+	/**
+	 * <odoc>
+	 * <key>DB.qLobStream(aSQL, anArrayOfBinds, anOutput) : Object</key>
+	 * Performs aSQL query (with the optional bind variables in anArrayOfBinds) on the current DB object instance
+	 * and streams the first column (a CLOB or a BLOB) of the first row without loading the entire value to memory.
+	 * If anOutput (a java OutputStream, a java Writer or a file path) is provided the value will be copied, in chunks,
+	 * to it and the number of bytes (or characters for CLOBs) copied will be returned (CLOBs are written as UTF-8 
+	 * to OutputStreams and files). Provided streams are flushed but not closed. Without anOutput a java InputStream 
+	 * (BLOBs) or Reader (CLOBs) is returned that must be closed after use (the database resources are only released 
+	 * then). Returns null if there are no rows. In case of error an exception will be thrown. Example:\
+	 * \
+	 * db.qLobStream("select content from docs where id = ?", [ 1 ], "/tmp/doc.pdf");\
+	 * \
+	 * </odoc>
+	 */
+	public Object qLobStream(String sql, JSEngine.JSList bindVariables, Object output) throws IOException, SQLException {
+		Lease l = lease();
+		if (l == null) return null;
+		
+		PreparedStatement ps = null;
+		ResultSet rs = null;
+		boolean keep = false;
+		try {
+			ps = l.con.prepareStatement(sql);
+			if (bindVariables != null) {
+				int ii = 0;
+				for (Object obj : bindVariables) {
+					ii++;
+					ps.setObject(ii, obj);
+				}
+			}
+			
+			rs = ps.executeQuery();
+			if (!rs.next()) return null;
+			
+			boolean isChar = isCharacterType(rs.getMetaData().getColumnType(1));
+			if (output == null) {
+				if (isChar) {
+					Reader r = rs.getCharacterStream(1);
+					if (r == null) return null;
+					keep = true;
+					return new LobReader(r, new LobResources(l, ps, rs));
+				} else {
+					InputStream in = rs.getBinaryStream(1);
+					if (in == null) return null;
+					keep = true;
+					return new LobInputStream(in, new LobResources(l, ps, rs));
+				}
+			}
+			
+			OutputStream os = null;
+			boolean closeOutput = false;
+			if (output instanceof String) {
+				os = new BufferedOutputStream(new FileOutputStream((String) output));
+				closeOutput = true;
+			} else if (output instanceof OutputStream) {
+				os = (OutputStream) output;
+			} else if (!(output instanceof Writer)) {
+				throw new IOException("Unsupported LOB output: " + output.getClass().getName());
+			}
+			
+			try {
+				if (isChar) {
+					Reader r = rs.getCharacterStream(1);
+					if (r == null) return 0L;
+					try {
+						Writer w = (os != null) ? new OutputStreamWriter(os, "UTF-8") : (Writer) output;
+						long res = IOUtils.copyLarge(r, w);
+						w.flush();
+						return res;
+					} finally {
+						r.close();
+					}
+				} else {
+					if (os == null) throw new IOException("Can't copy a binary LOB to a Writer.");
+					InputStream in = rs.getBinaryStream(1);
+					if (in == null) return 0L;
+					try {
+						long res = IOUtils.copyLarge(in, os);
+						os.flush();
+						return res;
+					} finally {
+						in.close();
+					}
+				}
+			} finally {
+				if (closeOutput) os.close();
+			}
+		} finally {
+			if (!keep) {
+				try {
+					if (rs != null) rs.close();
+					if (ps != null) ps.close();
+				} finally {
+					release(l, false, true);
+				}
+			}
+		}
+	}
+	
 	/**
 	 * <odoc>
 	 * <key>DB.u(aSQL) : Number</key>
@@ -419,17 +1505,25 @@ public class DB {
 	 * </odoc>
 	 */
 	public int u(String sql) throws SQLException {
-		if (con != null) {
+		Lease l = lease();
+		if (l != null) {
+			boolean done = false;
+			long start = System.nanoTime();
+			int res = 0;
 			try {
-				Statement cs = con.createStatement();
-			    int res = cs.executeUpdate(sql);
+				Statement cs = l.con.createStatement();
+			    res = cs.executeUpdate(sql);
 			    cs.close();
 			    
+			    done = true;
 			    return res;
 			} catch (SQLException e) {
 				//SimpleLog.log(SimpleLog.logtype.ERROR, "Error executing sql " + sql + ": " + e.getMessage(), e);
 				throw e;
-			}			
+			} finally {
+				record(sql, start, 0, res, done);
+				release(l, true, done);
+			}
 		}
 		return -1;
 	}
@@ -439,23 +1533,19 @@ public class DB {
 	 * <key>DB.us(aSQL, anArray, keepStatement) : Number</key>
 	 * Executes a SQL statement on the current DB object instance that can have bind variables that 
 	 * can be specified on anArray. On success it will return the number of rows affected. In case of
-	 * error an exception will be thrown. Optionally you can specify to keepStatement (e.g. boolean) to keep from closing
-	 * the prepared statement used for reuse in another us call. If you specify to use keepStatement do close this
-	 * query, as soon as possible, using DB.closeStatement(aQuery) (where you provide an exactly equal statement to 
-	 * aQuery) or DB.closeAllStatements.
+	 * error an exception will be thrown. The prepared statement used is always kept on the statement cache for reuse 
+	 * in another call (see DB.setStatementCache) so keepStatement is no longer needed and kept only for compatibility.
 	 * </odoc>
 	 */
 	public int us(String sql, JSEngine.JSList objs, boolean keepStatement) throws SQLException {
-		if (con != null) {
+		Lease l = lease();
+		if (l != null) {
+			boolean done = false;
+			PreparedStatement ps = null;
+			long start = System.nanoTime();
+			int res = 0;
 			try { 
-				PreparedStatement ps = null;
-				if (preparedStatements.containsKey(sql)) {
-					ps = preparedStatements.get(sql);
-					keepStatement = true;
-				} else {
-					ps = con.prepareStatement(sql);
-					if (keepStatement) preparedStatements.put(sql, ps);
-				}
+				ps = prepareStatement(l, sql);
 
 				//if (objs instanceof JSEngine.JSList) {
 					int i = 0;
@@ -464,12 +1554,19 @@ public class DB {
 						ps.setObject(i, obj);
 					}
 				//}
-				int res = ps.executeUpdate();
-				if (!keepStatement) ps.close();
+				res = ps.executeUpdate();
 				
+				done = true;
 				return res;
 			} catch (SQLException e) {
 				throw e;
+			} finally {
+				record(sql, start, 0, res, done);
+				try {
+					releaseStatement(l, sql, ps, done);
+				} finally {
+					release(l, true, done);
+				}
 			}
 		}
 		return -1;
@@ -480,10 +1577,9 @@ public class DB {
 	 * <key>DB.usArray(aSQL, anArrayOfArrays, aBatchSize, keepStatement) : Number</key>
 	 * Executes, and commits, a batch of a SQL statement on the current DB object instance that can have bind variables that 
 	 * can be specified on an array, for each record, as part of anArrayOfArrays. On success it will return the number of rows 
-	 * affected. In case of error an exception will be thrown. Optionally you can specify to keepStatement (e.g. boolean) to keep
-	 * from closing the prepared statement used for reuse in another usArray call. If you specify to use keepStatement do close this
-	 * query, as soon as possible, using DB.closeStatement(aQuery) (where you provide an exactly equal statement to 
-	 * aQuery) or DB.closeAllStatements. You can also specify aBatchSize (default is 1000) to indicate when a commit
+	 * affected. In case of error an exception will be thrown. The prepared statement used is always kept on the statement
+	 * cache for reuse in another call (see DB.setStatementCache) so keepStatement is no longer needed and kept only for 
+	 * compatibility. You can also specify aBatchSize (default is 1000) to indicate when a commit
 	 * should be performed while executing aSQL for each array of bind variables in anArrayOfArrays.\
 	 * \
 	 * Example:\
@@ -494,19 +1590,16 @@ public class DB {
 	 * </odoc>
 	 */
 	public int usArray(String sql, JSEngine.JSList objs, int batchSize, boolean keepStatement) throws SQLException {
-		if (con != null) {
+		Lease l = lease();
+		if (l != null) {
+			boolean done = false;
+			PreparedStatement ps = null;
+			long start = System.nanoTime();
+			int res = 0;
 			try {
-				PreparedStatement ps = null;
-				if (preparedStatements.containsKey(sql)) {
-					ps = preparedStatements.get(sql);
-					keepStatement = true;
-				} else {
-					ps = con.prepareStatement(sql);
-					if (keepStatement) preparedStatements.put(sql, ps);
-				}
+				ps = prepareStatement(l, sql);
 				
 				int count = 0;
-				int res = 0;
 				if (batchSize <= 0) batchSize = 1000;
 				for(Object obj : objs) {
 					int i = 0;
@@ -528,11 +1621,18 @@ public class DB {
 				for(int j : r) {
 					res += j;
 				}
-				if (!keepStatement) ps.close();
 				
+				done = true;
 				return res;
 			} catch (SQLException e) {
 				throw e;
+			} finally {
+				record(sql, start, 0, res, done);
+				try {
+					releaseStatement(l, sql, ps, done);
+				} finally {
+					release(l, true, done);
+				}
 			}
 		}
 		return -1;
@@ -547,9 +1647,11 @@ public class DB {
 	 * </odoc>
 	 */
 	public int uLob(String sql, Object lob) throws SQLException {
-		if (con != null) {
+		Lease l = lease();
+		if (l != null) {
+			boolean done = false;
 			try {
-				PreparedStatement ps = con.prepareStatement(sql);
+				PreparedStatement ps = l.con.prepareStatement(sql);
 				//Clob clobOut = con.createClob();
 				if (lob instanceof byte[]) {
 					ps.setBlob(1, new ByteArrayInputStream((byte []) lob));
@@ -562,11 +1664,77 @@ public class DB {
 				int res = ps.executeUpdate();
 				ps.close();
 				
+				done = true;
 				return res;
 			} catch (SQLException e) {
 				//SimpleLog.log(SimpleLog.logtype.ERROR, "Error executing sql " + sql + ": " + e.getMessage(), e);
 				throw e;
-			}			
+			} finally {
+				release(l, true, done);
+			}
+		}		
+		return -1;
+	}
+	
+	/**
+	 * <odoc>
+	 * <key>DB.uLobStream(aSQL, aLOB, anArrayOfBinds, aLobType) : Number</key>
+	 * Executes a SQL statement on the current DB object instance to update a CLOB or BLOB (the first bind variable)
+	 * streaming the value from aLOB without loading it entirely to memory. aLOB can be a java InputStream (for BLOBs),
+	 * a java Reader (for CLOBs) or a file path. A file is read as binary if aLobType is "blob" or as text if aLobType is 
+	 * "clob" (UTF-8) or "clob:" followed by the file charset (e.g. "clob:ISO-8859-1"). If aLobType isn't provided the 
+	 * type of the first bind variable reported by the driver is used (failing if the driver can't report it). Any other 
+	 * bind variables can be provided in anArrayOfBinds. The stream provided is consumed but not closed. On success it 
+	 * will return the number of rows affected. In case of error an exception will be thrown. Example:\
+	 * \
+	 * db.uLobStream("update docs set content = ? where id = ?", "/tmp/doc.pdf", [ 1 ], "blob");\
+	 * \
+	 * </odoc>
+	 */
+	public int uLobStream(String sql, Object lob, JSEngine.JSList bindVariables, String lobType) throws IOException, SQLException {
+		Lease l = lease();
+		if (l != null) {
+			boolean done = false;
+			PreparedStatement ps = null;
+			Closeable toClose = null;
+			try {
+				ps = l.con.prepareStatement(sql);
+				
+				if (lob instanceof String) {
+					String charset = getLobCharset(ps, lobType);
+					InputStream is = new BufferedInputStream(new FileInputStream((String) lob));
+					toClose = is;
+					if (charset != null) lob = new InputStreamReader(is, charset); else lob = is;
+				}
+				
+				if (lob instanceof InputStream) {
+					ps.setBinaryStream(1, (InputStream) lob);
+				} else if (lob instanceof Reader) {
+					ps.setCharacterStream(1, (Reader) lob);
+				} else {
+					throw new IOException("Unsupported LOB source: " + ((lob == null) ? "null" : lob.getClass().getName()));
+				}
+				
+				if (bindVariables != null) {
+					int ii = 1;
+					for (Object obj : bindVariables) {
+						ii++;
+						ps.setObject(ii, obj);
+					}
+				}
+				
+				int res = ps.executeUpdate();
+				
+				done = true;
+				return res;
+			} finally {
+				try {
+					if (ps != null) ps.close();
+					if (toClose != null) toClose.close();
+				} finally {
+					release(l, true, done);
+				}
+			}
 		}		
 		return -1;
 	}
@@ -580,9 +1748,11 @@ public class DB {
 	 * </odoc>
 	 */
 	public int uLobs(String sql, JSEngine.JSList lobs) throws SQLException {
-		if (con != null) {
+		Lease l = lease();
+		if (l != null) {
+			boolean done = false;
 			try {
-				PreparedStatement ps = con.prepareStatement(sql);
+				PreparedStatement ps = l.con.prepareStatement(sql);
 					int i = 0;
 					for(Object lob : lobs) {
 						i++;
@@ -596,15 +1766,185 @@ public class DB {
 					int res = ps.executeUpdate();
 					ps.close();
 					
+					done = true;
 					return res;
 
 			} catch (SQLException e) {
 				throw e;
-			}			
+			} finally {
+				release(l, true, done);
+			}
 		}		
 		return -1;
 	}	
 	
+	/**
+	 * <odoc>
+	 * <key>DB.bulkLoad(aSQL, aRowSource, anOptionsMap) : Map</key>
+	 * Loads all rows from aRowSource executing aSQL (e.g. an insert with bind variables) in parallel over several 
+	 * connections (leased from the pool, if one is used, or opened just for the load otherwise). aRowSource can be
+	 * an array of arrays, a cursor from DB.qsCursor (e.g. to copy between databases) or a function returning an array 
+	 * per call and undefined at the end. Rows are read, on the current thread, in batches that are executed (with 
+	 * executeBatch) by the worker threads. anOptionsMap can include:\
+	 * \
+	 *    threads    : the number of worker threads and connections (default 4, limited by the pool max)\
+	 *    batchSize  : the number of rows per batch (default 1000)\
+	 *    commitEvery: the number of rows after which each worker commits (default 10 x batchSize)\
+	 * \
+	 * For Postgres, if aSQL is a "COPY ... FROM STDIN" statement the data will be loaded using the COPY api. In this 
+	 * case aRowSource can also be a java InputStream or Reader (or a file path) with data in the COPY format (loaded 
+	 * by a single connection) otherwise aSQL should use WITH (FORMAT csv) since rows are sent as CSV.
+	 * Since the load uses other connections any pending changes on the current session won't be visible to it. If
+	 * any batch fails an exception will be thrown (batches already committed by other workers will remain). Returns a 
+	 * map with rows, batches, commits, threads, time (in ms) and rowsPerSec. Example:\
+	 * \
+	 * var res = db.bulkLoad("insert into t (a, b) values (?, ?)", [ [1, "a"], [2, "b"] ], { threads: 2 });\
+	 * \
+	 * </odoc>
+	 */
+	public Object bulkLoad(String sql, Object rowSource, Map<?, ?> options) throws Exception {
+		int threads = 4, batchSize = 1000, commitEvery = -1;
+		if (options != null) {
+			threads = getOption(options, "threads", threads);
+			batchSize = getOption(options, "batchSize", batchSize);
+			commitEvery = getOption(options, "commitEvery", commitEvery);
+		}
+		if (batchSize <= 0) batchSize = 1000;
+		if (commitEvery <= 0) commitEvery = batchSize * 10;
+		
+		DBPool loadPool = pool;
+		if (loadPool != null) {
+			threads = Math.min(threads, loadPool.getMax());
+		} else {
+			if (props == null) throw new SQLException("Not connected.");
+			loadPool = new DBPool(url, props, 0, Math.max(threads, 1), 0, 0, null);
+		}
+		
+		long start = System.currentTimeMillis();
+		DBBulkLoad load = new DBBulkLoad(loadPool, url, sql, threads, batchSize, commitEvery);
+		try {
+			if (DBBulkLoad.isCopy(sql) && rowSource instanceof String) rowSource = new FileInputStream((String) rowSource);
+			if (DBBulkLoad.isCopy(sql) && (rowSource instanceof InputStream || rowSource instanceof Reader)) {
+				try {
+					load.copyStream(rowSource);
+				} finally {
+					((Closeable) rowSource).close();
+				}
+			} else {
+				load.load(rowSource);
+			}
+		} finally {
+			if (loadPool != pool) loadPool.close();
+		}
+		
+		long time = System.currentTimeMillis() - start;
+		SimpleLog.log(SimpleLog.logtype.DEBUG, "Bulk load into " + url + ": " + load.getRows() + " rows in " + time + "ms", null);
+		
+		JSEngine.JSMap no = AFCmdBase.jse.getNewMap(null);
+		no.put("rows", load.getRows());
+		no.put("batches", load.getBatches());
+		no.put("commits", load.getCommits());
+		no.put("threads", load.getThreads());
+		no.put("time", time);
+		no.put("rowsPerSec", (time > 0) ? (load.getRows() * 1000.0d / time) : (double) load.getRows());
+		return no.getMap();
+	}
+	
+	/**
+	 * Obtains the executor used by DB.qsAsync and DB.usAsync creating it if needed.
+	 */
+	protected synchronized ExecutorService getAsyncExecutor() throws SQLException {
+		// Without a pool the async calls would share (and commit) the connection used by the calling thread
+		if (pool == null) throw new SQLException("Asynchronous calls require a DB with a connection pool (use the pool option).");
+		if (asyncExecutor == null) {
+			int threads = asyncThreads;
+			if (threads <= 0) threads = pool.getMax();
+			
+			final String name = "DB async " + url;
+			asyncExecutor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+				protected AtomicInteger count = new AtomicInteger(0);
+				
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, name + " " + count.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return asyncExecutor;
+	}
+	
+	/**
+	 * <odoc>
+	 * <key>DB.setAsyncThreads(aNumber)</key>
+	 * Sets the number of threads used to execute DB.qsAsync and DB.usAsync calls (by default the pool max). Calls 
+	 * already submitted will still be executed by the previous threads.
+	 * </odoc>
+	 */
+	public synchronized void setAsyncThreads(int threads) {
+		asyncThreads = threads;
+		if (asyncExecutor != null) {
+			asyncExecutor.shutdown();
+			asyncExecutor = null;
+		}
+	}
+	
+	/**
+	 * <odoc>
+	 * <key>DB.qsAsync(aQuery, arrayOfBindVariables) : JavaFuture</key>
+	 * Submits DB.qs(aQuery, arrayOfBindVariables) to be executed on a separate thread (see DB.setAsyncThreads) 
+	 * returning immediately a java Future whose get() will return the result (or throw the corresponding exception).
+	 * Each call runs on its own pooled connection so the DB must be using a connection pool (see the pool option of 
+	 * DB.db). Use DB.qsPromise to obtain an oPromise instead. Example:\
+	 * \
+	 * var f1 = db1.qsAsync("select * from a", []), f2 = db2.qsAsync("select * from b", []);\
+	 * var a = f1.get(), b = f2.get();\
+	 * \
+	 * </odoc>
+	 */
+	public Future<Object> qsAsync(final String query, final JSEngine.JSList bindVariables) throws SQLException {
+		return getAsyncExecutor().submit(new Callable<Object>() {
+			public Object call() throws Exception {
+				AFCmdBase.jse.enterContext();
+				try {
+					return qs(query, bindVariables, false);
+				} finally {
+					AFCmdBase.jse.exitContext();
+				}
+			}
+		});
+	}
+	
+	/**
+	 * <odoc>
+	 * <key>DB.usAsync(aSQL, anArray) : JavaFuture</key>
+	 * Submits DB.us(aSQL, anArray) to be executed on a separate thread (see DB.setAsyncThreads) returning immediately
+	 * a java Future whose get() will return the number of rows affected (or throw the corresponding exception). Since
+	 * it runs on its own pooled connection the change is committed on success and rolled back on failure (the DB must 
+	 * be using a connection pool, see the pool option of DB.db). Use DB.usPromise to obtain an oPromise instead.
+	 * </odoc>
+	 */
+	public Future<Object> usAsync(final String sql, final JSEngine.JSList objs) throws SQLException {
+		return getAsyncExecutor().submit(new Callable<Object>() {
+			public Object call() throws Exception {
+				AFCmdBase.jse.enterContext();
+				boolean done = false;
+				try {
+					int res = us(sql, objs, false);
+					commit();
+					done = true;
+					return res;
+				} finally {
+					try {
+						if (!done) rollback();
+					} finally {
+						AFCmdBase.jse.exitContext();
+					}
+				}
+			}
+		});
+	}
+	
 	/**
 	 * <odoc>
 	 * <key>DB.commit()</key>
@@ -613,6 +1953,11 @@ public class DB {
 	 * </odoc>
 	 */
 	public void commit() throws SQLException {
+		if (pool != null) {
+			endTransaction(true);
+			return;
+		}
+		
 		if (con != null) {
 			try {
 				con.commit();
@@ -631,6 +1976,11 @@ public class DB {
 	 * </odoc>
 	 */
 	public void rollback() throws SQLException {
+		if (pool != null) {
+			endTransaction(false);
+			return;
+		}
+		
 		if (con != null) {
 			try {
 				con.rollback();
@@ -641,25 +1991,48 @@ public class DB {
 		}
 	}
 	
-	protected void connect(String driver, String url, String login, String pass) throws Exception {
+	protected void connect(String driver, String url, String login, String pass, Map<?, ?> poolOptions) throws Exception {
 		try {
 			Class.forName(driver);
 			this.url = url;
 			
-			Properties props = new Properties();
+			stats.url = url;
+			props = new Properties();
 			
 			props.setProperty("user", login);
 			props.setProperty("password", AFCmdBase.afc.dIP(pass));
 			
-			con = DriverManager.getConnection(url, props);
-			con.setAutoCommit(false);
-
+			if (poolOptions != null) {
+				pool = new DBPool(url, props, 
+						getOption(poolOptions, "min", 0), 
+						getOption(poolOptions, "max", 10), 
+						getOption(poolOptions, "idleTimeout", 600000), 
+						getOption(poolOptions, "maxWait", 0),
+						(poolOptions.get("validationQuery") != null) ? poolOptions.get("validationQuery").toString() : null);
+				leasePerCall = "call".equals(poolOptions.get("lease"));
+				pool.setDestroyListener(new DBPool.DestroyListener() {
+					public void destroyed(Connection c) {
+						DBStatementCache cache = statementCaches.remove(c);
+						if (cache != null) cache.clear();
+					}
+				});
+			} else {
+				con = DriverManager.getConnection(url, props);
+				con.setAutoCommit(false);
+			}
 		} catch (ClassNotFoundException | SQLException e) {
 			//SimpleLog.log(SimpleLog.logtype.ERROR, "Error connecting to database " + url + " using " + driver + ": " + e.getMessage(), e);
 			throw e;
 		}
 	}
 	
+	protected int getOption(Map<?, ?> options, String key, int defaultValue) {
+		Object o = options.get(key);
+		if (o instanceof Number) return ((Number) o).intValue();
+		if (o != null) return Integer.valueOf(o.toString());
+		return defaultValue;
+	}
+	
 	/**
 	 * <odoc>
 	 * <key>DB.h2StartServer(aPort, aListOfArguments) : String</key>
@@ -0,0 +1,366 @@
+package wedo.openaf.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.mozilla.javascript.ConsString;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.NativeFunction;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.Undefined;
+import org.mozilla.javascript.Wrapper;
+
+import wedo.openaf.AFCmdBase;
+import wedo.openaf.JSEngine;
+import wedo.openaf.SimpleLog;
+
+/**
+ * Parallel bulk loader used by DB.bulkLoad. Rows are read, and grouped in batches, on the calling thread
+ * and executed by worker threads each one with its own pooled connection.
+ *
+ * @author Nuno Aguiar <nuno.aguiar@wedotechnologies.com>
+ *
+ */
+public class DBBulkLoad {
+	protected static final List<Object[]> END = new ArrayList<Object[]>();
+
+	protected DBPool pool;
+	protected String sql, url;
+	protected int threads, batchSize, commitEvery;
+	protected boolean copy;
+
+	protected ArrayBlockingQueue<List<Object[]>> queue;
+	protected AtomicReference<Exception> error = new AtomicReference<Exception>();
+	protected AtomicLong rows = new AtomicLong(0), batches = new AtomicLong(0), commits = new AtomicLong(0);
+
+	/**
+	 * Creates a new bulk load.
+	 *
+	 * @param pool The pool from where the worker connections will be leased
+	 * @param url The JDBC url (for error messages)
+	 * @param sql The insert statement with bind variables or a Postgres COPY ... FROM STDIN statement
+	 * @param threads The number of worker threads (and connections)
+	 * @param batchSize The number of rows per executeBatch
+	 * @param commitEvery The number of rows after which each worker commits
+	 */
+	public DBBulkLoad(DBPool pool, String url, String sql, int threads, int batchSize, int commitEvery) {
+		if (threads <= 0) threads = 1;
+		if (batchSize <= 0) batchSize = 1000;
+		if (commitEvery < batchSize) commitEvery = batchSize;
+
+		this.pool = pool;
+		this.url = url;
+		this.sql = sql;
+		this.threads = threads;
+		this.batchSize = batchSize;
+		this.commitEvery = commitEvery;
+		this.copy = isCopy(sql);
+		this.queue = new ArrayBlockingQueue<List<Object[]>>(threads * 2);
+	}
+
+	/**
+	 * Determines if sql is a Postgres COPY statement.
+	 */
+	public static boolean isCopy(String sql) {
+		return sql.trim().toUpperCase().startsWith("COPY ");
+	}
+
+	/**
+	 * Converts a javascript value into a value to bind.
+	 */
+	protected static Object toValue(Object o) {
+		if (o instanceof Undefined) return null;
+		if (o instanceof ConsString) return o.toString();
+		if (o instanceof Wrapper) return ((Wrapper) o).unwrap();
+		return o;
+	}
+
+	/**
+	 * Converts a row (javascript array, java list or array) into an array of values to bind.
+	 */
+	protected static Object[] toRow(Object o) throws SQLException {
+		o = toValue(o);
+		if (o instanceof Object[]) return (Object[]) o;
+		if (o instanceof List) {
+			List<?> list = (List<?>) o;
+			Object[] row = new Object[list.size()];
+			for(int i = 0; i < row.length; i++) {
+				row[i] = toValue(list.get(i));
+			}
+			return row;
+		}
+		if (o instanceof JSEngine.JSList) {
+			ArrayList<Object> list = new ArrayList<Object>();
+			for(Object v : (JSEngine.JSList) o) {
+				list.add(toValue(v));
+			}
+			return list.toArray();
+		}
+		throw new SQLException("Bulk load rows must be arrays of values (found " + ((o == null) ? "null" : o.getClass().getName()) + ")");
+	}
+
+	/**
+	 * Reads rows from a source (array of arrays, DB.Cursor or a function returning an array per call and
+	 * undefined/null at the end).
+	 */
+	protected static abstract class RowSource {
+		public abstract Object[] next() throws SQLException, IOException;
+		public void close() throws SQLException { }
+
+		public static RowSource of(Object source) throws SQLException {
+			source = toValue(source);
+			if (source instanceof DB.Cursor) {
+				final DB.Cursor cursor = (DB.Cursor) source;
+				return new RowSource() {
+					public Object[] next() throws SQLException { return cursor.nextValues(); }
+					public void close() throws SQLException { cursor.close(); }
+				};
+			}
+			if (source instanceof NativeFunction) {
+				final NativeFunction fn = (NativeFunction) source;
+				return new RowSource() {
+					public Object[] next() throws SQLException {
+						Context cx = (Context) AFCmdBase.jse.enterContext();
+						try {
+							Object o = fn.call(cx, (Scriptable) AFCmdBase.jse.getGlobalscope(), cx.newObject((Scriptable) AFCmdBase.jse.getGlobalscope()), new Object[] {});
+							o = toValue(o);
+							return (o == null) ? null : toRow(o);
+						} finally {
+							AFCmdBase.jse.exitContext();
+						}
+					}
+				};
+			}
+			if (source instanceof Iterable) {
+				final Iterator<?> it = ((Iterable<?>) source).iterator();
+				return new RowSource() {
+					public Object[] next() throws SQLException { return (it.hasNext()) ? toRow(it.next()) : null; }
+				};
+			}
+			throw new SQLException("Unsupported bulk load row source: " + ((source == null) ? "null" : source.getClass().getName()));
+		}
+	}
+
+	protected void fail(Exception e) {
+		error.compareAndSet(null, e);
+		queue.clear();
+	}
+
+	/**
+	 * Hands a batch to the workers waiting while they are busy (stops if a worker failed).
+	 */
+	protected void put(List<Object[]> batch) throws InterruptedException {
+		while(!queue.offer(batch, 100, TimeUnit.MILLISECONDS)) {
+			if (error.get() != null) return;
+		}
+	}
+
+	protected class Worker implements Runnable {
+		public void run() {
+			Connection con = null;
+			PreparedStatement ps = null;
+			boolean broken = false;
+			try {
+				con = pool.lease();
+				if (!copy) ps = con.prepareStatement(sql);
+
+				long uncommitted = 0;
+				while(true) {
+					List<Object[]> batch = queue.poll(100, TimeUnit.MILLISECONDS);
+					if (batch == END || error.get() != null) break;
+					if (batch == null) continue;
+
+					if (copy) {
+						PostgresCopy.copyIn(con, sql, new StringReader(toCSV(batch)));
+					} else {
+						for(Object[] row : batch) {
+							for(int i = 0; i < row.length; i++) {
+								ps.setObject(i + 1, row[i]);
+							}
+							ps.addBatch();
+						}
+						ps.executeBatch();
+					}
+
+					batches.incrementAndGet();
+					uncommitted += batch.size();
+					if (uncommitted >= commitEvery) {
+						con.commit();
+						commits.incrementAndGet();
+						rows.addAndGet(uncommitted);
+						uncommitted = 0;
+					}
+				}
+
+				if (error.get() == null) {
+					con.commit();
+					commits.incrementAndGet();
+					rows.addAndGet(uncommitted);
+				} else {
+					con.rollback();
+				}
+			} catch (Exception e) {
+				SimpleLog.log(SimpleLog.logtype.DEBUG, "Bulk load worker failed on " + url + ": " + e.getMessage(), e);
+				fail(e);
+				if (con != null) {
+					try {
+						con.rollback();
+					} catch (SQLException e1) {
+						broken = true;
+					}
+				}
+			} finally {
+				if (ps != null) {
+					try {
+						ps.close();
+					} catch (SQLException e) {
+						broken = true;
+					}
+				}
+				if (con != null) pool.release(con, broken);
+			}
+		}
+	}
+
+	/**
+	 * Formats a batch of rows as CSV (as expected by COPY ... WITH (FORMAT csv); nulls are empty unquoted values).
+	 */
+	protected static String toCSV(List<Object[]> batch) {
+		StringBuilder sb = new StringBuilder();
+		for(Object[] row : batch) {
+			for(int i = 0; i < row.length; i++) {
+				if (i > 0) sb.append(',');
+				if (row[i] == null) continue;
+
+				String s;
+				if (row[i] instanceof Double && ((Double) row[i]) == Math.rint((Double) row[i]) && !Double.isInfinite((Double) row[i])) {
+					s = String.valueOf(((Double) row[i]).longValue());
+				} else {
+					s = row[i].toString();
+				}
+				if (s.isEmpty() || s.indexOf(',') >= 0 || s.indexOf('"') >= 0 || s.indexOf('\n') >= 0 || s.indexOf('\r') >= 0) {
+					sb.append('"').append(s.replace("\"", "\"\"")).append('"');
+				} else {
+					sb.append(s);
+				}
+			}
+			sb.append('\n');
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Postgres specific COPY support (kept apart so the driver is only needed when used).
+	 */
+	protected static class PostgresCopy {
+		public static long copyIn(Connection con, String sql, Reader reader) throws SQLException, IOException {
+			org.postgresql.PGConnection pgCon = con.unwrap(org.postgresql.PGConnection.class);
+			return pgCon.getCopyAPI().copyIn(sql, reader);
+		}
+
+		public static long copyIn(Connection con, String sql, InputStream is) throws SQLException, IOException {
+			org.postgresql.PGConnection pgCon = con.unwrap(org.postgresql.PGConnection.class);
+			return pgCon.getCopyAPI().copyIn(sql, is);
+		}
+	}
+
+	/**
+	 * Streams source (an InputStream or Reader with data in the COPY statement format) through a single
+	 * Postgres COPY on one connection.
+	 *
+	 * @return The number of rows loaded
+	 */
+	public long copyStream(Object source) throws SQLException, IOException {
+		Connection con = pool.lease();
+		boolean broken = false;
+		try {
+			long res;
+			if (source instanceof Reader)
+				res = PostgresCopy.copyIn(con, sql, (Reader) source);
+			else
+				res = PostgresCopy.copyIn(con, sql, (InputStream) source);
+			con.commit();
+			rows.addAndGet(res);
+			batches.incrementAndGet();
+			commits.incrementAndGet();
+			return res;
+		} catch (SQLException | IOException e) {
+			try {
+				con.rollback();
+			} catch (SQLException e1) {
+				broken = true;
+			}
+			throw e;
+		} finally {
+			pool.release(con, broken);
+		}
+	}
+
+	/**
+	 * Reads all rows from source, on the current thread, and loads them using the worker threads.
+	 *
+	 * @return The number of rows loaded
+	 * @throws SQLException If any worker fails (rows already committed by other workers remain committed)
+	 */
+	public long load(Object source) throws SQLException, IOException {
+		RowSource rowSource = RowSource.of(source);
+		Thread[] workers = new Thread[threads];
+		for(int i = 0; i < threads; i++) {
+			workers[i] = new Thread(new Worker(), "DB bulk load " + (i + 1));
+			workers[i].setDaemon(true);
+			workers[i].start();
+		}
+
+		try {
+			try {
+				List<Object[]> batch = new ArrayList<Object[]>(batchSize);
+				Object[] row;
+				while(error.get() == null && (row = rowSource.next()) != null) {
+					batch.add(row);
+					if (batch.size() >= batchSize) {
+						put(batch);
+						batch = new ArrayList<Object[]>(batchSize);
+					}
+				}
+				if (!batch.isEmpty() && error.get() == null) put(batch);
+			} catch (SQLException | IOException | RuntimeException e) {
+				fail(e);
+			} finally {
+				for(int i = 0; i < threads; i++) {
+					put(END);
+				}
+				for(Thread worker : workers) {
+					worker.join();
+				}
+				rowSource.close();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			fail(e);
+		}
+
+		Exception e = error.get();
+		if (e != null) {
+			if (e instanceof SQLException) throw (SQLException) e;
+			throw new SQLException("Bulk load into " + url + " failed after " + rows.get() + " rows committed: " + e.getMessage(), e);
+		}
+		return rows.get();
+	}
+
+	public long getRows() { return rows.get(); }
+	public long getBatches() { return batches.get(); }
+	public long getCommits() { return commits.get(); }
+	public int getThreads() { return threads; }
+}
@@ -0,0 +1,244 @@
+package wedo.openaf.core;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Iterator;
+import java.util.Properties;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import wedo.openaf.SimpleLog;
+
+/**
+ * Simple JDBC connection pool used by the core DB plugin
+ *
+ * @author Nuno Aguiar <nuno.aguiar@wedotechnologies.com>
+ *
+ */
+public class DBPool {
+	protected String url;
+	protected Properties props;
+	protected int min, max;
+	protected long idleTimeout, maxWait;
+	protected String validationQuery;
+	protected boolean closed = false;
+
+	protected Semaphore permits;
+	protected LinkedBlockingDeque<Entry> idle = new LinkedBlockingDeque<Entry>();
+	protected AtomicInteger active = new AtomicInteger(0);
+	protected AtomicLong leases = new AtomicLong(0), waits = new AtomicLong(0), waitTime = new AtomicLong(0), maxWaitTime = new AtomicLong(0);
+	protected AtomicLong created = new AtomicLong(0), destroyed = new AtomicLong(0);
+	protected DestroyListener destroyListener;
+
+	/**
+	 * Notified whenever a pooled connection is closed (e.g. to drop resources bound to it)
+	 */
+	public interface DestroyListener {
+		public void destroyed(Connection con);
+	}
+
+	/**
+	 * An idle connection and the time when it was returned to the pool
+	 */
+	protected static class Entry {
+		public final Connection con;
+		public final long lastUsed;
+
+		public Entry(Connection con) {
+			this.con = con;
+			this.lastUsed = System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * Creates a new pool for the JDBC url using the provided connection properties.
+	 *
+	 * @param url The JDBC url
+	 * @param props The connection properties (e.g. user and password)
+	 * @param min The minimum number of connections to keep open
+	 * @param max The maximum number of connections that can be open at the same time
+	 * @param idleTimeout The time, in ms, after which an idle connection (above min) will be closed (0 to never close)
+	 * @param maxWait The maximum time, in ms, to wait for a connection when all are in use (0 to wait forever)
+	 * @param validationQuery A query to validate idle connections before reuse (if null Connection.isValid will be used)
+	 * @throws SQLException
+	 */
+	public DBPool(String url, Properties props, int min, int max, long idleTimeout, long maxWait, String validationQuery) throws SQLException {
+		if (max <= 0) max = 10;
+		if (min < 0) min = 0;
+		if (min > max) min = max;
+
+		this.url = url;
+		this.props = props;
+		this.min = min;
+		this.max = max;
+		this.idleTimeout = idleTimeout;
+		this.maxWait = maxWait;
+		this.validationQuery = validationQuery;
+		this.permits = new Semaphore(max, true);
+
+		for(int i = 0; i < min; i++) {
+			idle.offerLast(new Entry(create()));
+		}
+	}
+
+	protected Connection create() throws SQLException {
+		Connection con = DriverManager.getConnection(url, props);
+		con.setAutoCommit(false);
+		created.incrementAndGet();
+		return con;
+	}
+
+	protected void destroy(Connection con) {
+		destroyed.incrementAndGet();
+		if (destroyListener != null) destroyListener.destroyed(con);
+		try {
+			con.close();
+		} catch (SQLException e) {
+			SimpleLog.log(SimpleLog.logtype.DEBUG, "Error closing pooled connection to " + url + ": " + e.getMessage(), e);
+		}
+	}
+
+	protected boolean isValid(Connection con) {
+		try {
+			if (validationQuery == null) return con.isValid(5);
+
+			Statement st = con.createStatement();
+			try {
+				st.execute(validationQuery);
+			} finally {
+				st.close();
+			}
+			con.rollback();
+			return true;
+		} catch (SQLException e) {
+			SimpleLog.log(SimpleLog.logtype.DEBUG, "Pooled connection to " + url + " failed validation: " + e.getMessage(), e);
+			return false;
+		}
+	}
+
+	protected boolean isExpired(Entry entry, long now) {
+		return idleTimeout > 0 && (now - entry.lastUsed) > idleTimeout && (idle.size() + active.get()) > min;
+	}
+
+	/**
+	 * Closes idle connections that weren't used for more than idleTimeout keeping at least min connections.
+	 */
+	public void evict() {
+		long now = System.currentTimeMillis();
+		Iterator<Entry> it = idle.descendingIterator();
+		while(it.hasNext()) {
+			Entry entry = it.next();
+			if (isExpired(entry, now) && idle.remove(entry)) destroy(entry.con);
+		}
+	}
+
+	/**
+	 * Leases a connection from the pool waiting, up to maxWait, if all connections are in use. The connection
+	 * must be returned with release.
+	 *
+	 * @return A connection with auto commit off
+	 * @throws SQLException
+	 */
+	public Connection lease() throws SQLException {
+		if (closed) throw new SQLException("Connection pool for " + url + " is closed.");
+
+		long start = System.nanoTime();
+		if (!permits.tryAcquire()) {
+			waits.incrementAndGet();
+			try {
+				if (maxWait > 0) {
+					if (!permits.tryAcquire(maxWait, TimeUnit.MILLISECONDS))
+						throw new SQLException("Timeout waiting " + maxWait + "ms for a connection to " + url + " (max = " + max + ")");
+				} else {
+					permits.acquire();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new SQLException("Interrupted while waiting for a connection to " + url, e);
+			}
+
+			long w = (System.nanoTime() - start) / 1000000;
+			waitTime.addAndGet(w);
+			if (w > maxWaitTime.get()) maxWaitTime.set(w);
+		}
+
+		try {
+			Connection con = null;
+			long now = System.currentTimeMillis();
+			while(con == null) {
+				Entry entry = idle.pollFirst();
+				if (entry == null) {
+					con = create();
+				} else {
+					if (isExpired(entry, now) || !isValid(entry.con)) {
+						destroy(entry.con);
+					} else {
+						con = entry.con;
+					}
+				}
+			}
+
+			active.incrementAndGet();
+			leases.incrementAndGet();
+			return con;
+		} catch (SQLException e) {
+			permits.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * Returns a leased connection to the pool. If the connection is broken (or the pool closed) it will
+	 * be closed instead of reused.
+	 *
+	 * @param con The connection previously obtained with lease
+	 * @param broken If true the connection will be closed
+	 */
+	public void release(Connection con, boolean broken) {
+		active.decrementAndGet();
+		try {
+			if (closed || broken || con.isClosed()) {
+				destroy(con);
+			} else {
+				idle.offerFirst(new Entry(con));
+			}
+		} catch (SQLException e) {
+			destroy(con);
+		} finally {
+			permits.release();
+		}
+
+		evict();
+	}
+
+	/**
+	 * Closes all idle connections. Connections currently leased will be closed when released.
+	 */
+	public void close() {
+		closed = true;
+		Entry entry;
+		while((entry = idle.pollFirst()) != null) {
+			destroy(entry.con);
+		}
+	}
+
+	public void setDestroyListener(DestroyListener listener) {
+		this.destroyListener = listener;
+	}
+
+	public int getMin() { return min; }
+	public int getMax() { return max; }
+	public int getActive() { return active.get(); }
+	public int getIdle() { return idle.size(); }
+	public long getLeases() { return leases.get(); }
+	public long getWaits() { return waits.get(); }
+	public long getWaitTime() { return waitTime.get(); }
+	public long getMaxWaitTime() { return maxWaitTime.get(); }
+	public long getCreated() { return created.get(); }
+	public long getDestroyed() { return destroyed.get(); }
+}
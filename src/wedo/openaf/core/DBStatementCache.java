@@ -0,0 +1,143 @@
+package wedo.openaf.core;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import wedo.openaf.SimpleLog;
+
+/**
+ * Size and idle time bounded LRU cache of prepared statements for a single connection.
+ * Statements are removed from the cache while in use (acquire) and returned afterwards (release)
+ * so that the same statement is never used by two calls at the same time nor closed while in use.
+ *
+ * @author Nuno Aguiar <nuno.aguiar@wedotechnologies.com>
+ *
+ */
+public class DBStatementCache {
+	protected int maxSize;
+	protected long maxIdle;
+	protected long hits = 0, misses = 0, evictions = 0;
+	protected LinkedHashMap<String, Entry> statements = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+	protected static class Entry {
+		public final PreparedStatement ps;
+		public final long lastUsed;
+
+		public Entry(PreparedStatement ps) {
+			this.ps = ps;
+			this.lastUsed = System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * Creates a new statement cache.
+	 *
+	 * @param maxSize The maximum number of statements to keep open (0 to disable caching)
+	 * @param maxIdle The time, in ms, after which an unused statement will be closed (0 to never close)
+	 */
+	public DBStatementCache(int maxSize, long maxIdle) {
+		this.maxSize = maxSize;
+		this.maxIdle = maxIdle;
+	}
+
+	protected void close(PreparedStatement ps) {
+		try {
+			ps.close();
+		} catch (SQLException e) {
+			SimpleLog.log(SimpleLog.logtype.DEBUG, "Error closing cached statement: " + e.getMessage(), e);
+		}
+	}
+
+	protected void evict() {
+		long now = System.currentTimeMillis();
+		Iterator<Map.Entry<String, Entry>> it = statements.entrySet().iterator();
+		while(it.hasNext()) {
+			Entry entry = it.next().getValue();
+			if (statements.size() > maxSize || (maxIdle > 0 && (now - entry.lastUsed) > maxIdle)) {
+				it.remove();
+				close(entry.ps);
+				evictions++;
+			} else {
+				// The remaining entries were used more recently
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Obtains, and removes from the cache while in use, the statement previously prepared for sql.
+	 *
+	 * @param sql The statement SQL
+	 * @return The cached prepared statement or null if none is available
+	 */
+	public synchronized PreparedStatement acquire(String sql) {
+		evict();
+		Entry entry = statements.remove(sql);
+		if (entry != null) {
+			hits++;
+			return entry.ps;
+		}
+		misses++;
+		return null;
+	}
+
+	/**
+	 * Returns a statement to the cache after use (closing it if the cache is disabled or another
+	 * statement for the same sql is already cached).
+	 *
+	 * @param sql The statement SQL
+	 * @param ps The prepared statement
+	 */
+	public synchronized void release(String sql, PreparedStatement ps) {
+		if (maxSize <= 0 || statements.containsKey(sql)) {
+			close(ps);
+			return;
+		}
+		statements.put(sql, new Entry(ps));
+		evict();
+	}
+
+	/**
+	 * Closes and removes the cached statement for sql.
+	 *
+	 * @return true if a statement was removed
+	 */
+	public synchronized boolean remove(String sql) {
+		Entry entry = statements.remove(sql);
+		if (entry != null) close(entry.ps);
+		return entry != null;
+	}
+
+	/**
+	 * Closes and removes all cached statements.
+	 */
+	public synchronized void clear() {
+		for(Entry entry : statements.values()) {
+			close(entry.ps);
+		}
+		statements.clear();
+	}
+
+	/**
+	 * Changes the cache limits evicting statements if needed.
+	 */
+	public synchronized void setLimits(int maxSize, long maxIdle) {
+		this.maxSize = maxSize;
+		this.maxIdle = maxIdle;
+		evict();
+	}
+
+	public synchronized List<String> getStatements() {
+		return new ArrayList<String>(statements.keySet());
+	}
+
+	public synchronized int getSize() { return statements.size(); }
+	public synchronized long getHits() { return hits; }
+	public synchronized long getMisses() { return misses; }
+	public synchronized long getEvictions() { return evictions; }
+}
@@ -0,0 +1,203 @@
+package wedo.openaf.core;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import wedo.openaf.SimpleLog;
+
+/**
+ * Query metrics of a DB object instance: totals and, for each normalised SQL statement, the number of calls,
+ * errors, rows, execution and fetch time and a latency histogram. Calls slower than a threshold are logged.
+ *
+ * @author Nuno Aguiar <nuno.aguiar@wedotechnologies.com>
+ *
+ */
+public class DBStats implements DBStatsMBean {
+	/**
+	 * Upper bounds, in ms, of the latency histogram buckets (the last bucket has no bound)
+	 */
+	public static final long[] BUCKETS = { 1, 10, 100, 1000, 10000 };
+	protected static final int MAX_STATEMENTS = 1000;
+	protected static final String OTHER = "(other)";
+
+	protected String url;
+	protected volatile long slowThreshold = 0;
+	protected AtomicLong calls = new AtomicLong(0), errors = new AtomicLong(0), rows = new AtomicLong(0);
+	protected AtomicLong execTime = new AtomicLong(0), fetchTime = new AtomicLong(0), slowCalls = new AtomicLong(0);
+	protected ConcurrentHashMap<String, Statement> statements = new ConcurrentHashMap<String, Statement>();
+	protected ConcurrentHashMap<String, String> normalized = new ConcurrentHashMap<String, String>();
+
+	/**
+	 * Metrics of a single normalised statement (times in ns)
+	 */
+	public static class Statement {
+		public final String sql;
+		public final AtomicLong count = new AtomicLong(0), errors = new AtomicLong(0), rows = new AtomicLong(0);
+		public final AtomicLong execTime = new AtomicLong(0), fetchTime = new AtomicLong(0), maxTime = new AtomicLong(0);
+		public final AtomicLongArray histogram = new AtomicLongArray(BUCKETS.length + 1);
+
+		public Statement(String sql) {
+			this.sql = sql;
+		}
+
+		public long getTotalTime() {
+			return execTime.get() + fetchTime.get();
+		}
+	}
+
+	public DBStats(String url) {
+		this.url = url;
+	}
+
+	/**
+	 * Normalises sql so that statements only differing on literal values (strings and numbers) or
+	 * whitespace are accounted together (e.g. "select * from a where b = 'x' and c=1" becomes
+	 * "select * from a where b = ? and c=?").
+	 */
+	public static String normalize(String sql) {
+		StringBuilder sb = new StringBuilder(sql.length());
+		int len = sql.length();
+		boolean space = false;
+		for(int i = 0; i < len; i++) {
+			char c = sql.charAt(i);
+			if (Character.isWhitespace(c)) {
+				space = true;
+				continue;
+			}
+			if (space) {
+				if (sb.length() > 0) sb.append(' ');
+				space = false;
+			}
+
+			if (c == '\'') {
+				// String literal (with '' escapes)
+				i++;
+				while(i < len) {
+					if (sql.charAt(i) == '\'') {
+						if (i + 1 < len && sql.charAt(i + 1) == '\'') i++; else break;
+					}
+					i++;
+				}
+				sb.append('?');
+			} else if (Character.isDigit(c) && (sb.length() == 0 || !isIdentifierPart(sb.charAt(sb.length() - 1)))) {
+				// Numeric literal
+				while(i + 1 < len && (Character.isDigit(sql.charAt(i + 1)) || sql.charAt(i + 1) == '.')) i++;
+				sb.append('?');
+			} else {
+				sb.append(c);
+			}
+		}
+		return sb.toString();
+	}
+
+	protected static boolean isIdentifierPart(char c) {
+		return Character.isLetterOrDigit(c) || c == '_' || c == '$' || c == '#' || c == '?';
+	}
+
+	protected Statement getStatement(String sql) {
+		String key = normalized.get(sql);
+		if (key == null) {
+			key = normalize(sql);
+			if (normalized.size() >= MAX_STATEMENTS * 4) normalized.clear();
+			normalized.put(sql, key);
+		}
+
+		Statement st = statements.get(key);
+		if (st == null) {
+			if (statements.size() >= MAX_STATEMENTS) key = OTHER;
+			Statement newSt = new Statement(key);
+			st = statements.putIfAbsent(key, newSt);
+			if (st == null) st = newSt;
+		}
+		return st;
+	}
+
+	/**
+	 * Records a call.
+	 *
+	 * @param sql The SQL executed
+	 * @param execNanos The time, in ns, executing the statement
+	 * @param fetchNanos The time, in ns, fetching results
+	 * @param nRows The number of rows returned or affected
+	 * @param error If the call failed
+	 */
+	public void record(String sql, long execNanos, long fetchNanos, long nRows, boolean error) {
+		Statement st = getStatement(sql);
+		long total = execNanos + fetchNanos;
+		long ms = total / 1000000;
+
+		st.count.incrementAndGet();
+		st.execTime.addAndGet(execNanos);
+		st.fetchTime.addAndGet(fetchNanos);
+		if (nRows > 0) st.rows.addAndGet(nRows);
+		if (error) st.errors.incrementAndGet();
+		long max;
+		while(total > (max = st.maxTime.get()) && !st.maxTime.compareAndSet(max, total));
+
+		int b = 0;
+		while(b < BUCKETS.length && ms >= BUCKETS[b]) b++;
+		st.histogram.incrementAndGet(b);
+
+		calls.incrementAndGet();
+		execTime.addAndGet(execNanos);
+		fetchTime.addAndGet(fetchNanos);
+		if (nRows > 0) rows.addAndGet(nRows);
+		if (error) errors.incrementAndGet();
+
+		long threshold = slowThreshold;
+		if (threshold > 0 && ms >= threshold) {
+			slowCalls.incrementAndGet();
+			SimpleLog.log(SimpleLog.logtype.INFO, "Slow query on " + url + " (" + ms + "ms, exec " + (execNanos / 1000000) +
+					"ms, fetch " + (fetchNanos / 1000000) + "ms, " + nRows + " rows" + ((error) ? ", failed" : "") + "): " + sql, null);
+		}
+	}
+
+	/**
+	 * Returns the statements sorted by descending total time.
+	 */
+	public List<Statement> getStatements() {
+		ArrayList<Statement> list = new ArrayList<Statement>(statements.values());
+		Collections.sort(list, new Comparator<Statement>() {
+			public int compare(Statement a, Statement b) {
+				long ta = a.getTotalTime(), tb = b.getTotalTime();
+				return (ta < tb) ? 1 : ((ta > tb) ? -1 : 0);
+			}
+		});
+		return list;
+	}
+
+	public long getCalls() { return calls.get(); }
+	public long getErrors() { return errors.get(); }
+	public long getRows() { return rows.get(); }
+	public long getExecTime() { return execTime.get() / 1000000; }
+	public long getFetchTime() { return fetchTime.get() / 1000000; }
+	public long getSlowCalls() { return slowCalls.get(); }
+	public long getSlowThreshold() { return slowThreshold; }
+	public void setSlowThreshold(long ms) { slowThreshold = ms; }
+	public int getStatementCount() { return statements.size(); }
+
+	public String[] getTopStatements() {
+		List<Statement> list = getStatements();
+		String[] res = new String[Math.min(10, list.size())];
+		for(int i = 0; i < res.length; i++) {
+			Statement st = list.get(i);
+			res[i] = st.count.get() + " calls, " + (st.getTotalTime() / 1000000) + "ms, " + st.rows.get() + " rows: " + st.sql;
+		}
+		return res;
+	}
+
+	public void reset() {
+		statements.clear();
+		calls.set(0);
+		errors.set(0);
+		rows.set(0);
+		execTime.set(0);
+		fetchTime.set(0);
+		slowCalls.set(0);
+	}
+}
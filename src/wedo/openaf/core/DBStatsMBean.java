@@ -0,0 +1,21 @@
+package wedo.openaf.core;
+
+/**
+ * JMX view of the query metrics of a DB object instance (see DBStats)
+ * 
+ * @author Nuno Aguiar <nuno.aguiar@wedotechnologies.com>
+ *
+ */
+public interface DBStatsMBean {
+	public long getCalls();
+	public long getErrors();
+	public long getRows();
+	public long getExecTime();
+	public long getFetchTime();
+	public long getSlowCalls();
+	public long getSlowThreshold();
+	public void setSlowThreshold(long ms);
+	public int getStatementCount();
+	public String[] getTopStatements();
+	public void reset();
+}
@@ -0,0 +1,213 @@
+package wedo.openaf.core;
+
+import java.io.IOException;
+
+/**
+ * Fast block compression used by io.compressFast/io.decompressFast. Pure java implementation of the LZ4 block
+ * format (greedy matching with a single hash table and accelerated skipping over incompressible data) favoring
+ * CPU per operation over compression ratio. The compressed data is the uncompressed length (4 bytes, little
+ * endian) followed by a single LZ4 block.
+ *
+ * @author Nuno Aguiar <nuno.aguiar@wedotechnologies.com>
+ *
+ */
+public class FastCompression {
+	protected static final int MIN_MATCH = 4;
+	protected static final int HASH_LOG = 14;
+	protected static final int MAX_DISTANCE = 65535;
+	protected static final int LAST_LITERALS = 5;
+	protected static final int MF_LIMIT = 12;
+	protected static final int SKIP_STRENGTH = 6;
+	protected static final int RUN_MASK = 15;
+	protected static final int HEADER = 4;
+
+	/**
+	 * Returns the maximum size of compressing len bytes.
+	 */
+	public static int maxCompressedLength(int len) {
+		return HEADER + len + len / 255 + 16;
+	}
+
+	protected static int readInt(byte[] b, int i) {
+		return (b[i] & 0xff) | ((b[i + 1] & 0xff) << 8) | ((b[i + 2] & 0xff) << 16) | ((b[i + 3] & 0xff) << 24);
+	}
+
+	protected static int hash(int v) {
+		return (v * -1640531535) >>> (32 - HASH_LOG);
+	}
+
+	protected static int writeLength(byte[] dst, int op, int len) {
+		while (len >= 255) {
+			dst[op++] = (byte) 255;
+			len -= 255;
+		}
+		dst[op++] = (byte) len;
+		return op;
+	}
+
+	protected static int writeLiterals(byte[] src, int anchor, int litLen, byte[] dst, int op) {
+		int token = op++;
+		if (litLen >= RUN_MASK) {
+			dst[token] = (byte) (RUN_MASK << 4);
+			op = writeLength(dst, op, litLen - RUN_MASK);
+		} else {
+			dst[token] = (byte) (litLen << 4);
+		}
+		System.arraycopy(src, anchor, dst, op, litLen);
+		return op + litLen;
+	}
+
+	/**
+	 * Compresses data.
+	 */
+	public static byte[] compress(byte[] src) {
+		int srcLen = src.length;
+		byte[] dst = new byte[maxCompressedLength(srcLen)];
+		dst[0] = (byte) srcLen;
+		dst[1] = (byte) (srcLen >>> 8);
+		dst[2] = (byte) (srcLen >>> 16);
+		dst[3] = (byte) (srcLen >>> 24);
+
+		int op = HEADER, anchor = 0;
+		if (srcLen > MF_LIMIT) {
+			int[] table = new int[1 << HASH_LOG];
+			int mfLimit = srcLen - MF_LIMIT, matchLimit = srcLen - LAST_LITERALS;
+			int ip = 1;
+
+			search:
+			while (true) {
+				// Find a match, skipping faster the longer no match is found
+				int ref, searchMatchNb = 1 << SKIP_STRENGTH;
+				while (true) {
+					// Matches must start at least MF_LIMIT bytes before the end
+					if (ip > mfLimit) break search;
+					int h = hash(readInt(src, ip));
+					ref = table[h];
+					table[h] = ip;
+					if (ip - ref <= MAX_DISTANCE && ref < ip && readInt(src, ref) == readInt(src, ip)) break;
+					ip += searchMatchNb++ >>> SKIP_STRENGTH;
+				}
+
+				// Extend backwards
+				while (ip > anchor && ref > 0 && src[ip - 1] == src[ref - 1]) {
+					ip--;
+					ref--;
+				}
+
+				int token = op;
+				op = writeLiterals(src, anchor, ip - anchor, dst, op);
+
+				while (true) {
+					dst[op++] = (byte) (ip - ref);
+					dst[op++] = (byte) ((ip - ref) >>> 8);
+
+					ip += MIN_MATCH;
+					ref += MIN_MATCH;
+					int start = ip;
+					while (ip < matchLimit && src[ip] == src[ref]) {
+						ip++;
+						ref++;
+					}
+					int matchLen = ip - start;
+					if (matchLen >= RUN_MASK) {
+						dst[token] |= RUN_MASK;
+						op = writeLength(dst, op, matchLen - RUN_MASK);
+					} else {
+						dst[token] |= matchLen;
+					}
+					anchor = ip;
+					if (ip > mfLimit) break search;
+
+					table[hash(readInt(src, ip - 2))] = ip - 2;
+
+					// Try an immediate match without literals
+					int h = hash(readInt(src, ip));
+					ref = table[h];
+					table[h] = ip;
+					if (ip - ref <= MAX_DISTANCE && ref < ip && readInt(src, ref) == readInt(src, ip)) {
+						token = op++;
+						dst[token] = 0;
+						continue;
+					}
+					break;
+				}
+				ip++;
+			}
+		}
+
+		op = writeLiterals(src, anchor, srcLen - anchor, dst, op);
+		byte[] res = new byte[op];
+		System.arraycopy(dst, 0, res, 0, op);
+		return res;
+	}
+
+	/**
+	 * Returns the uncompressed length recorded on data.
+	 */
+	public static int uncompressedLength(byte[] data) throws IOException {
+		if (data.length < HEADER + 1) throw new IOException("Invalid fast compressed data (too short)");
+		int len = readInt(data, 0);
+		if (len < 0) throw new IOException("Invalid fast compressed data (negative length)");
+		return len;
+	}
+
+	/**
+	 * Uncompresses data produced by compress.
+	 */
+	public static byte[] decompress(byte[] src) throws IOException {
+		int dstLen = uncompressedLength(src);
+		byte[] dst = new byte[dstLen];
+		int ip = HEADER, op = 0, srcLen = src.length;
+
+		try {
+			while (true) {
+				int token = src[ip++] & 0xff;
+
+				int litLen = token >>> 4;
+				if (litLen == RUN_MASK) {
+					int b;
+					do {
+						b = src[ip++] & 0xff;
+						litLen += b;
+					} while (b == 255);
+				}
+				if (litLen > dstLen - op || litLen > srcLen - ip) throw new IOException("Invalid fast compressed data (literals out of bounds)");
+				System.arraycopy(src, ip, dst, op, litLen);
+				ip += litLen;
+				op += litLen;
+
+				// The last sequence only has literals
+				if (ip >= srcLen) break;
+
+				int offset = (src[ip] & 0xff) | ((src[ip + 1] & 0xff) << 8);
+				ip += 2;
+				int ref = op - offset;
+				if (offset == 0 || ref < 0) throw new IOException("Invalid fast compressed data (bad match offset)");
+
+				int matchLen = token & RUN_MASK;
+				if (matchLen == RUN_MASK) {
+					int b;
+					do {
+						b = src[ip++] & 0xff;
+						matchLen += b;
+					} while (b == 255);
+				}
+				matchLen += MIN_MATCH;
+				if (matchLen > dstLen - op) throw new IOException("Invalid fast compressed data (match out of bounds)");
+
+				if (offset >= matchLen) {
+					System.arraycopy(dst, ref, dst, op, matchLen);
+					op += matchLen;
+				} else {
+					// Overlapping copy (repeating pattern)
+					for (int end = op + matchLen; op < end;) dst[op++] = dst[ref++];
+				}
+			}
+		} catch (ArrayIndexOutOfBoundsException e) {
+			throw new IOException("Invalid fast compressed data (truncated)");
+		}
+
+		if (op != dstLen) throw new IOException("Invalid fast compressed data (expected " + dstLen + " bytes, got " + op + ")");
+		return dst;
+	}
+}
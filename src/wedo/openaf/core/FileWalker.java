@@ -0,0 +1,257 @@
+package wedo.openaf.core;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import wedo.openaf.SimpleLog;
+
+/**
+ * Directory tree walker used by io.walk. Each directory is listed with a DirectoryStream and all the attributes
+ * of each entry are read with a single readAttributes call. Directories can be listed by the workers of a
+ * fork/join pool (useful on high latency file systems like NFS) but entries are always handed to the handler on
+ * the calling thread.
+ *
+ * @author Nuno Aguiar <nuno.aguiar@wedotechnologies.com>
+ *
+ */
+public class FileWalker {
+	protected static final int QUEUE_SIZE = 16384;
+
+	protected Path root;
+	protected int maxDepth = Integer.MAX_VALUE, parallelism = 1;
+	protected PathMatcher glob;
+	protected Pattern regex;
+	protected long minSize = -1, modifiedSince = -1;
+	protected boolean posix = false;
+	protected volatile boolean stopped = false;
+
+	/**
+	 * A directory entry found.
+	 */
+	public static class Entry {
+		public Path path;
+		public BasicFileAttributes attrs;
+		public int depth;
+
+		public Entry(Path path, BasicFileAttributes attrs, int depth) {
+			this.path = path;
+			this.attrs = attrs;
+			this.depth = depth;
+		}
+	}
+
+	/**
+	 * Receives each entry (always on the thread calling walk).
+	 */
+	public interface EntryHandler {
+		/**
+		 * @return false to stop walking
+		 */
+		public boolean handle(Entry entry) throws Exception;
+	}
+
+	public FileWalker(String root) {
+		this.root = Paths.get(root);
+	}
+
+	/**
+	 * Sets the maximum depth to walk (1 means only the entries of root).
+	 */
+	public void setMaxDepth(int maxDepth) {
+		this.maxDepth = (maxDepth <= 0) ? Integer.MAX_VALUE : maxDepth;
+	}
+
+	/**
+	 * Only entries whose file name matches the glob pattern are handled.
+	 */
+	public void setGlob(String glob) {
+		this.glob = (glob == null) ? null : FileSystems.getDefault().getPathMatcher("glob:" + glob);
+	}
+
+	/**
+	 * Only entries whose path contains a match of the regular expression are handled.
+	 */
+	public void setRegex(String regex) {
+		this.regex = (regex == null) ? null : Pattern.compile(regex);
+	}
+
+	/**
+	 * Only files with at least minSize bytes are handled.
+	 */
+	public void setMinSize(long minSize) {
+		this.minSize = minSize;
+	}
+
+	/**
+	 * Only entries modified after modifiedSince (ms since epoch) are handled.
+	 */
+	public void setModifiedSince(long modifiedSince) {
+		this.modifiedSince = modifiedSince;
+	}
+
+	/**
+	 * Sets the number of threads listing directories (if 1 everything runs on the calling thread).
+	 */
+	public void setParallelism(int parallelism) {
+		this.parallelism = (parallelism <= 0) ? Runtime.getRuntime().availableProcessors() : parallelism;
+	}
+
+	/**
+	 * If true posix attributes (owner, group and permissions) are read (if supported by the file system).
+	 */
+	public void setPosix(boolean posix) {
+		this.posix = posix;
+	}
+
+	protected boolean accept(Entry entry) {
+		if (glob != null && (entry.path.getFileName() == null || !glob.matches(entry.path.getFileName()))) return false;
+		if (regex != null && !regex.matcher(entry.path.toString()).find()) return false;
+		if (minSize >= 0 && (!entry.attrs.isRegularFile() || entry.attrs.size() < minSize)) return false;
+		if (modifiedSince >= 0 && entry.attrs.lastModifiedTime().toMillis() < modifiedSince) return false;
+		return true;
+	}
+
+	protected BasicFileAttributes readAttributes(Path path) throws IOException {
+		if (posix) {
+			try {
+				return Files.readAttributes(path, PosixFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+			} catch (UnsupportedOperationException e) {
+				posix = false;
+			}
+		}
+		return Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+	}
+
+	/**
+	 * Lists dir adding the accepted entries to found and returning the sub directories to walk.
+	 */
+	protected List<Entry> list(Path dir, int depth, List<Entry> found) {
+		List<Entry> dirs = new ArrayList<Entry>();
+		try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir)) {
+			for (Path path : ds) {
+				if (stopped) break;
+				Entry entry;
+				try {
+					entry = new Entry(path, readAttributes(path), depth);
+				} catch (IOException e) {
+					SimpleLog.log(SimpleLog.logtype.DEBUG, "Can't read attributes of " + path + ": " + e.getMessage(), e);
+					continue;
+				}
+				if (accept(entry)) found.add(entry);
+				if (entry.attrs.isDirectory() && depth < maxDepth) dirs.add(entry);
+			}
+		} catch (IOException e) {
+			SimpleLog.log(SimpleLog.logtype.DEBUG, "Can't list " + dir + ": " + e.getMessage(), e);
+		}
+		return dirs;
+	}
+
+	/**
+	 * Walks the tree (the root itself isn't handled). Sub directories that can't be listed are skipped.
+	 *
+	 * @return The number of entries handled
+	 * @throws IOException If root doesn't exist, isn't a directory or can't be listed
+	 */
+	public long walk(EntryHandler handler) throws Exception {
+		// Fail on a wrong root instead of walking nothing
+		Files.newDirectoryStream(root).close();
+		stopped = false;
+		if (parallelism <= 1) return walkSequential(handler);
+		return walkParallel(handler);
+	}
+
+	protected long walkSequential(EntryHandler handler) throws Exception {
+		long count = 0;
+		ArrayDeque<Entry> pending = new ArrayDeque<Entry>();
+		List<Entry> found = new ArrayList<Entry>();
+		pending.push(new Entry(root, null, 0));
+
+		while (!pending.isEmpty()) {
+			Entry dir = pending.pop();
+			found.clear();
+			List<Entry> dirs = list(dir.path, dir.depth + 1, found);
+			for (Entry entry : found) {
+				count++;
+				if (!handler.handle(entry)) return count;
+			}
+			// Keep the listing order when walking depth first
+			for (int i = dirs.size() - 1; i >= 0; i--) pending.push(dirs.get(i));
+		}
+		return count;
+	}
+
+	protected class DirTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		protected Entry dir;
+		protected LinkedBlockingQueue<Entry> queue;
+
+		public DirTask(Entry dir, LinkedBlockingQueue<Entry> queue) {
+			this.dir = dir;
+			this.queue = queue;
+		}
+
+		@Override
+		protected void compute() {
+			if (stopped) return;
+			List<Entry> found = new ArrayList<Entry>();
+			List<Entry> dirs = list(dir.path, dir.depth + 1, found);
+			try {
+				for (Entry entry : found) queue.put(entry);
+			} catch (InterruptedException e) {
+				stopped = true;
+				return;
+			}
+
+			List<DirTask> tasks = new ArrayList<DirTask>(dirs.size());
+			for (Entry d : dirs) tasks.add(new DirTask(d, queue));
+			invokeAll(tasks);
+		}
+	}
+
+	protected long walkParallel(EntryHandler handler) throws Exception {
+		long count = 0;
+		LinkedBlockingQueue<Entry> queue = new LinkedBlockingQueue<Entry>(QUEUE_SIZE);
+		ForkJoinPool pool = new ForkJoinPool(parallelism);
+		try {
+			ForkJoinTask<Void> task = pool.submit(new DirTask(new Entry(root, null, 0), queue));
+			List<Entry> rest = new ArrayList<Entry>();
+			while (true) {
+				Entry entry = queue.poll(50, TimeUnit.MILLISECONDS);
+				if (entry == null) {
+					if (!task.isDone()) continue;
+					// Everything was listed, handle what is left
+					queue.drainTo(rest);
+					for (Entry e : rest) {
+						count++;
+						if (!handler.handle(e)) return count;
+					}
+					break;
+				}
+				count++;
+				if (!handler.handle(entry)) return count;
+			}
+			task.get();
+			return count;
+		} finally {
+			stopped = true;
+			pool.shutdownNow();
+		}
+	}
+}
@@ -1,14 +1,25 @@
 package wedo.openaf.core;
 
+import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.PrintWriter;
 import java.io.RandomAccessFile;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
 import java.nio.file.DirectoryStream;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
@@ -18,6 +29,8 @@ import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.PosixFileAttributes;
 import java.nio.file.attribute.PosixFilePermissions;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.zip.Deflater;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 import java.util.zip.ZipEntry;
@@ -26,7 +39,11 @@ import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 import org.mozilla.javascript.Context;
 import org.mozilla.javascript.NativeArray;
+import org.mozilla.javascript.NativeFunction;
+import org.mozilla.javascript.NativeObject;
+import org.mozilla.javascript.Scriptable;
 import org.mozilla.javascript.ScriptableObject;
+import org.mozilla.javascript.Undefined;
 import org.mozilla.javascript.annotations.JSFunction;
 import org.mozilla.universalchardet.UniversalDetector;
 
@@ -169,6 +186,74 @@ public class IO extends ScriptableObject {
         return no.getMap();
 	}
 	
+	/**
+	 * <odoc>
+	 * <key>io.walk(aFilePath, aFunction, aOptions) : Number</key>
+	 * Walks recursively all entries under aFilePath calling aFunction for each one (stopping if it returns false) with a map 
+	 * with filename, filepath, depth, lastModified, createTime, lastAccess, size, isDirectory, isFile and isSymbolicLink 
+	 * (and, with posix, user, group and posixPermissions). All attributes are read with a single call per entry and directories can be 
+	 * listed in parallel, so it's suited for very big trees. aOptions can have:\
+	 * \
+	 *   maxDepth      (maximum depth to walk, 1 means only the entries of aFilePath)\
+	 *   glob          (only entries whose file name matches the glob pattern, e.g. "*.{js,yaml}")\
+	 *   regex         (only entries whose path matches the regular expression)\
+	 *   minSize       (only files with at least minSize bytes)\
+	 *   modifiedSince (only entries modified after a date or a number of ms since epoch)\
+	 *   parallelism   (number of threads listing directories, defaults to 1)\
+	 *   posix         (true to include the posix owner, group and permissions)\
+	 * \
+	 * Filters don't stop the walk into directories and sub directories that can't be listed are skipped. Returns the number
+	 * of entries handled. Throws an exception if aFilePath doesn't exist, isn't a directory or can't be listed.
+	 * </odoc>
+	 */
+	@JSFunction
+	public static long walk(String filepath, final NativeFunction aFunction, Object options) throws Exception {
+		FileWalker walker = new FileWalker(filepath);
+		if (options instanceof NativeObject) {
+			NativeObject opts = (NativeObject) options;
+			if (opts.get("maxDepth") instanceof Number) walker.setMaxDepth(((Number) opts.get("maxDepth")).intValue());
+			if (opts.get("glob") != null && !(opts.get("glob") instanceof Undefined)) walker.setGlob(opts.get("glob").toString());
+			if (opts.get("regex") != null && !(opts.get("regex") instanceof Undefined)) walker.setRegex(opts.get("regex").toString());
+			if (opts.get("minSize") instanceof Number) walker.setMinSize(((Number) opts.get("minSize")).longValue());
+			Object since = opts.get("modifiedSince");
+			if (since instanceof Scriptable && "Date".equals(((Scriptable) since).getClassName())) since = Context.toNumber(since);
+			if (since instanceof Number) walker.setModifiedSince(((Number) since).longValue());
+			if (opts.get("parallelism") instanceof Number) walker.setParallelism(((Number) opts.get("parallelism")).intValue());
+			walker.setPosix(Boolean.TRUE.equals(opts.get("posix")));
+		}
+
+		final Context cx = (Context) AFCmdBase.jse.enterContext();
+		try {
+			final Scriptable scope = (Scriptable) AFCmdBase.jse.getGlobalscope();
+			return walker.walk(new FileWalker.EntryHandler() {
+				public boolean handle(FileWalker.Entry entry) {
+					BasicFileAttributes attr = entry.attrs;
+					JSEngine.JSMap fileMap = AFCmdBase.jse.getNewMap(scope);
+					fileMap.put("isDirectory", attr.isDirectory());
+					fileMap.put("isFile", attr.isRegularFile());
+					fileMap.put("isSymbolicLink", attr.isSymbolicLink());
+					fileMap.put("filename", entry.path.getFileName().toString());
+					fileMap.put("filepath", entry.path.toString());
+					fileMap.put("depth", entry.depth);
+					fileMap.put("lastModified", attr.lastModifiedTime().toMillis());
+					fileMap.put("createTime", attr.creationTime().toMillis());
+					fileMap.put("lastAccess", attr.lastAccessTime().toMillis());
+					fileMap.put("size", attr.size());
+					if (attr instanceof PosixFileAttributes) {
+						fileMap.put("group", ((PosixFileAttributes) attr).group().getName());
+						fileMap.put("user", ((PosixFileAttributes) attr).owner().getName());
+						fileMap.put("posixPermissions", PosixFilePermissions.toString(((PosixFileAttributes) attr).permissions()));
+					}
+
+					Object res = aFunction.call(cx, scope, cx.newObject(scope), new Object[] { fileMap.getMap() });
+					return !(res instanceof Boolean && !((Boolean) res));
+				}
+			});
+		} finally {
+			AFCmdBase.jse.exitContext();
+		}
+	}
+
 	/**
 	 * <odoc>
 	 * <key>io.fileInfo(aFilePath)</key>
@@ -431,6 +516,67 @@ public class IO extends ScriptableObject {
 		}
 	}	
 	
+	/**
+	 * <odoc>
+	 * <key>io.readFileBytesAsync(aFilename) : JavaFuture</key>
+	 * Starts reading aFilename asynchronously returning immediately a java Future whose get() will return the
+	 * array of bytes (or throw the corresponding exception). Use $doFuture to obtain an oPromise. Example:\
+	 * \
+	 * var f1 = io.readFileBytesAsync("a.bin"), f2 = io.readFileBytesAsync("b.bin");\
+	 * $doFuture(f1).then(function(bytes) { ... });\
+	 * \
+	 * </odoc>
+	 */
+	@JSFunction
+	public static Object readFileBytesAsync(String filename) {
+		return AsyncIO.readFileBytes(filename);
+	}
+
+	/**
+	 * <odoc>
+	 * <key>io.writeFileBytesAsync(aFilename, anArrayOfBytes, shouldAppend) : JavaFuture</key>
+	 * Starts writing anArrayOfBytes into aFilename (replacing it or, if shouldAppend = true, appending to it)
+	 * asynchronously returning immediately a java Future whose get() will return the number of bytes written
+	 * (or throw the corresponding exception). Use $doFuture to obtain an oPromise.
+	 * </odoc>
+	 */
+	@JSFunction
+	public static Object writeFileBytesAsync(String filename, Object data, boolean append) {
+		if (data instanceof org.mozilla.javascript.NativeJavaArray) {
+			data = ((org.mozilla.javascript.NativeJavaArray) data).unwrap();
+		}
+		return AsyncIO.writeFileBytes(filename, (byte[]) data, append);
+	}
+
+	/**
+	 * <odoc>
+	 * <key>io.copyAsync(aSourceFilename, aTargetFilename) : JavaFuture</key>
+	 * Starts copying aSourceFilename to aTargetFilename (replacing it and keeping the modified time) asynchronously
+	 * returning immediately a java Future whose get() will return the number of bytes copied (or throw the 
+	 * corresponding exception). Use $doFuture to obtain an oPromise. Example:\
+	 * \
+	 * var fs = io.listFiles("data").files.map(function(f) { return $doFuture(io.copyAsync(f.filepath, "backup/" + f.filename)); });\
+	 * $doWait($doAll(fs));\
+	 * \
+	 * </odoc>
+	 */
+	@JSFunction
+	public static Object copyAsync(String source, String target) {
+		return AsyncIO.copy(source, target);
+	}
+
+	/**
+	 * <odoc>
+	 * <key>io.setAsyncThreads(aNumber)</key>
+	 * Sets the number of threads used by io.readFileBytesAsync, io.writeFileBytesAsync and io.copyAsync (defaults
+	 * to twice the number of processors, minimum 4).
+	 * </odoc>
+	 */
+	@JSFunction
+	public static void setAsyncThreads(int threads) {
+		AsyncIO.setThreads(threads);
+	}
+
 	/**
 	 * <odoc>
 	 * <key>io.writeFileAsArray(aFilename, anArrayOfLines, anEncoding)</key>
@@ -501,8 +647,9 @@ public class IO extends ScriptableObject {
 
 	/**
 	 * <odoc>
-	 * <key>io.gzip(anObject) : anArrayOfBytes</key>
-	 * Compresses an object into an array of bytes.
+	 * <key>io.gzip(anObject, aLevel) : anArrayOfBytes</key>
+	 * Compresses an object into an array of bytes. Optionally you can provide aLevel (0 to 9, "fast", "small" or "default")
+	 * or a map with level, strategy ("default", "filtered" or "huffman") and engine ("jdk", the native zlib, or "jzlib").
 	 * </odoc>
 	 * 
 	 * @param dataIn
@@ -510,27 +657,22 @@ public class IO extends ScriptableObject {
 	 * @throws IOException
 	 */
 	@JSFunction
-	public static Object gzip(Object dataIn) throws IOException {
-		ByteArrayOutputStream baos = new ByteArrayOutputStream();
-		
-		GZIPOutputStream gos = new GZIPOutputStream(baos);
+	public static Object gzip(Object dataIn, Object options) throws IOException {
 		if (dataIn instanceof org.mozilla.javascript.NativeJavaArray) {
 			dataIn = ((org.mozilla.javascript.NativeJavaArray) dataIn).unwrap();
 		}
-		IOUtils.write((byte[]) dataIn, gos);
-		
-		gos.flush();
-		gos.close();
-		baos.flush();
-		baos.close();
-		
-		return baos.toByteArray();
+		if (options instanceof NativeObject) {
+			NativeObject opts = (NativeObject) options;
+			return Compression.gzip((byte[]) dataIn, Compression.parseLevel(opts.get("level")), Compression.parseStrategy(opts.get("strategy")), 
+				Compression.parseEngine(opts.get("engine")));
+		}
+		return Compression.gzip((byte[]) dataIn, Compression.parseLevel(options), Deflater.DEFAULT_STRATEGY, Compression.getDefaultEngine());
 	}
 	
 	/**
 	 * <odoc>
-	 * <key>io.gunzip(anArrayOfBytes) : anObject</key>
-	 * Uncompresses a gziped array of bytes.
+	 * <key>io.gunzip(anArrayOfBytes, anEngine) : anObject</key>
+	 * Uncompresses a gziped array of bytes. Optionally you can choose anEngine ("jdk", the native zlib, or "jzlib").
 	 * </odoc>
 	 * 
 	 * @param dataIn
@@ -538,20 +680,40 @@ public class IO extends ScriptableObject {
 	 * @throws IOException
 	 */
 	@JSFunction
-	public static Object gunzip(Object dataIn) throws IOException {
-		ByteArrayOutputStream baos = new ByteArrayOutputStream();
-		
+	public static Object gunzip(Object dataIn, Object engine) throws IOException {
 		if (dataIn instanceof org.mozilla.javascript.NativeJavaArray) {
 			dataIn = ((org.mozilla.javascript.NativeJavaArray) dataIn).unwrap();
 		}
-		GZIPInputStream gis = new GZIPInputStream(new ByteArrayInputStream((byte[]) dataIn));
-		IOUtils.copy(gis, baos);
-		
-		gis.close();
-		baos.flush();
-		baos.close();
-		
-		return baos.toByteArray();		
+		return Compression.gunzip((byte[]) dataIn, Compression.parseEngine(engine));
+	}
+	
+	/**
+	 * <odoc>
+	 * <key>io.compressFast(anArrayOfBytes) : anArrayOfBytes</key>
+	 * Compresses anArrayOfBytes with a fast (LZ4 block format) compression that uses much less CPU than io.gzip 
+	 * at the expense of a lower compression ratio. To uncompress use io.decompressFast.
+	 * </odoc>
+	 */
+	@JSFunction
+	public static Object compressFast(Object dataIn) {
+		if (dataIn instanceof org.mozilla.javascript.NativeJavaArray) {
+			dataIn = ((org.mozilla.javascript.NativeJavaArray) dataIn).unwrap();
+		}
+		return FastCompression.compress((byte[]) dataIn);
+	}
+
+	/**
+	 * <odoc>
+	 * <key>io.decompressFast(anArrayOfBytes) : anArrayOfBytes</key>
+	 * Uncompresses anArrayOfBytes compressed with io.compressFast.
+	 * </odoc>
+	 */
+	@JSFunction
+	public static Object decompressFast(Object dataIn) throws IOException {
+		if (dataIn instanceof org.mozilla.javascript.NativeJavaArray) {
+			dataIn = ((org.mozilla.javascript.NativeJavaArray) dataIn).unwrap();
+		}
+		return FastCompression.decompress((byte[]) dataIn);
 	}
 	
 	/** 
@@ -643,6 +805,294 @@ public class IO extends ScriptableObject {
 		return FileUtils.openInputStream(new File(filename));
 	}
 
+	/**
+	 * <odoc>
+	 * <key>io.mapFile(aFilename, aMode, aPosition, aLength) : MappedByteBuffer</key>
+	 * Memory maps aFilename and returns the corresponding java MappedByteBuffer, so the file contents can be accessed
+	 * (e.g. buffer.get(i)) without copying them into memory. aMode can be "r" (read only, the default), "rw" (changes 
+	 * are written to the file) or "private" (copy on write). Optionally you can map only aLength bytes starting 
+	 * on aPosition (each mapping is limited to 2GB; with "rw" the file will grow if needed).
+	 * </odoc>
+	 */
+	@JSFunction
+	public static Object mapFile(String filename, String mode, Object position, Object length) throws IOException {
+		FileChannel.MapMode mapMode;
+		if (mode == null || mode.equals("undefined") || mode.equals("r"))
+			mapMode = FileChannel.MapMode.READ_ONLY;
+		else if (mode.equals("rw"))
+			mapMode = FileChannel.MapMode.READ_WRITE;
+		else if (mode.equals("private"))
+			mapMode = FileChannel.MapMode.PRIVATE;
+		else
+			throw new IllegalArgumentException("Unknown map mode '" + mode + "' (expected r, rw or private)");
+
+		RandomAccessFile raf = new RandomAccessFile(filename, (mapMode == FileChannel.MapMode.READ_WRITE) ? "rw" : "r");
+		try {
+			FileChannel fc = raf.getChannel();
+			long pos = (position instanceof Number) ? ((Number) position).longValue() : 0;
+			long len = (length instanceof Number) ? ((Number) length).longValue() : fc.size() - pos;
+			if (len > Integer.MAX_VALUE) throw new IOException("Can't map more than 2GB at once of " + filename + " (use aPosition and aLength)");
+			// The mapping stays valid after the channel is closed
+			return fc.map(mapMode, pos, len);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Receives each line read by IO.readLinesNIO.
+	 */
+	public interface LineHandler {
+		/**
+		 * @return false to stop reading
+		 */
+		public boolean handle(String line, long lineNumber) throws Exception;
+	}
+
+	protected static final int MAP_WINDOW = 64 * 1024 * 1024;
+
+	/**
+	 * Reads each line of filename from memory mapped windows of the file, decoding each line with a single, reused,
+	 * decoder and char buffer. Lines are split on line feed bytes (a previous carriage return is removed) so encoding
+	 * must be ASCII compatible (e.g. UTF-8, ISO-8859-1).
+	 *
+	 * @return The number of lines read
+	 */
+	public static long readLinesMapped(String filename, String encoding, LineHandler handler) throws Exception {
+		Charset charset = Charset.forName((encoding == null) ? "UTF-8" : encoding);
+		ByteBuffer lf = charset.encode("\n");
+		if (lf.remaining() != 1 || lf.get(0) != '\n') throw new IOException("The encoding " + charset.name() + " isn't supported for memory mapped reading.");
+
+		CharsetDecoder decoder = charset.newDecoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+		CharBuffer cb = CharBuffer.allocate(1024);
+		RandomAccessFile raf = new RandomAccessFile(filename, "r");
+		try {
+			FileChannel fc = raf.getChannel();
+			long size = fc.size(), windowStart = 0, count = 0;
+			int windowLimit = MAP_WINDOW;
+			while (windowStart < size) {
+				int windowSize = (int) Math.min(windowLimit, size - windowStart);
+				MappedByteBuffer window = fc.map(FileChannel.MapMode.READ_ONLY, windowStart, windowSize);
+				boolean last = (windowStart + windowSize >= size);
+
+				int lineStart = 0;
+				for (int i = 0; i < windowSize; i++) {
+					if (window.get(i) != '\n') continue;
+
+					int end = (i > lineStart && window.get(i - 1) == '\r') ? i - 1 : i;
+					cb = decodeLine(decoder, window, lineStart, end, cb);
+					count++;
+					if (!handler.handle(cb.toString(), count)) return count;
+					lineStart = i + 1;
+				}
+
+				if (last) {
+					// Last line without line feed
+					if (lineStart < windowSize) {
+						int end = (window.get(windowSize - 1) == '\r') ? windowSize - 1 : windowSize;
+						cb = decodeLine(decoder, window, lineStart, end, cb);
+						count++;
+						handler.handle(cb.toString(), count);
+					}
+					break;
+				}
+
+				if (lineStart == 0) {
+					// A line bigger than the window
+					if (windowLimit == Integer.MAX_VALUE) throw new IOException("Line too long on " + filename + " (at byte " + windowStart + ")");
+					windowLimit = (int) Math.min(Integer.MAX_VALUE, windowLimit * 2L);
+				} else {
+					windowLimit = MAP_WINDOW;
+				}
+				windowStart += lineStart;
+			}
+			return count;
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Decodes the bytes [start, end[ of buffer into cb (replaced by a bigger one if needed).
+	 */
+	protected static CharBuffer decodeLine(CharsetDecoder decoder, ByteBuffer buffer, int start, int end, CharBuffer cb) {
+		buffer.limit(end);
+		buffer.position(start);
+		decoder.reset();
+		cb.clear();
+		try {
+			CoderResult res = decoder.decode(buffer, cb, true);
+			while (res.isOverflow() || (res = decoder.flush(cb)).isOverflow()) {
+				CharBuffer bigger = CharBuffer.allocate(cb.capacity() * 2);
+				cb.flip();
+				bigger.put(cb);
+				cb = bigger;
+				res = decoder.decode(buffer, cb, true);
+			}
+		} finally {
+			buffer.limit(buffer.capacity());
+		}
+		cb.flip();
+		return cb;
+	}
+
+	/**
+	 * <odoc>
+	 * <key>io.readLinesNIO(aFilename, aFunction, anEncoding) : Number</key>
+	 * Reads aFilename, line by line, calling aFunction(aLine, aLineNumber) for each line (stopping if aFunction
+	 * returns false). The file is memory mapped (in windows, so any file size is supported) and each line is decoded 
+	 * directly from the mapped region without intermediate copies, which makes it faster than io.readFileAsArray or 
+	 * ioStreamReadLines for big files. anEncoding (defaults to UTF-8) must be ASCII compatible (e.g. UTF-8, ISO-8859-1).
+	 * Returns the number of lines read.
+	 * </odoc>
+	 */
+	@JSFunction
+	public static long readLinesNIO(String filename, final NativeFunction aFunction, String encoding) throws Exception {
+		if (encoding == null || encoding.equals("undefined")) encoding = "UTF-8";
+		final Context cx = (Context) AFCmdBase.jse.enterContext();
+		try {
+			final Scriptable scope = (Scriptable) AFCmdBase.jse.getGlobalscope();
+			return readLinesMapped(filename, encoding, new LineHandler() {
+				public boolean handle(String line, long lineNumber) {
+					Object res = aFunction.call(cx, scope, cx.newObject(scope), new Object[] { line, lineNumber });
+					return !(res instanceof Boolean && !((Boolean) res));
+				}
+			});
+		} finally {
+			AFCmdBase.jse.exitContext();
+		}
+	}
+
+	/**
+	 * Reads each line of an input stream (closing it at the end) with a BufferedReader using a large buffer.
+	 *
+	 * @return The number of lines read
+	 */
+	public static long readLinesStream(InputStream is, String encoding, LineHandler handler) throws Exception {
+		BufferedReader br;
+		try {
+			br = new BufferedReader(new InputStreamReader(is, (encoding == null) ? "UTF-8" : encoding), LINES_BUFFER);
+		} catch (UnsupportedEncodingException e) {
+			is.close();
+			throw e;
+		}
+		try {
+			long count = 0;
+			String line;
+			while ((line = br.readLine()) != null) {
+				count++;
+				if (!handler.handle(line, count)) break;
+			}
+			return count;
+		} finally {
+			br.close();
+		}
+	}
+
+	/**
+	 * Accumulates lines calling a javascript function with each batch.
+	 */
+	protected static class LinesBatcher implements LineHandler {
+		protected NativeFunction fn;
+		protected Context cx;
+		protected Scriptable scope;
+		protected Object[] batch;
+		protected int n = 0;
+		protected long sent = 0;
+		protected boolean stop = false;
+
+		public LinesBatcher(NativeFunction fn, Context cx, Scriptable scope, int batchSize) {
+			this.fn = fn;
+			this.cx = cx;
+			this.scope = scope;
+			this.batch = new Object[batchSize];
+		}
+
+		public boolean handle(String line, long lineNumber) {
+			batch[n++] = line;
+			return (n < batch.length) || send();
+		}
+
+		protected boolean send() {
+			Object[] lines = (n == batch.length) ? batch.clone() : Arrays.copyOf(batch, n);
+			Object res = fn.call(cx, scope, cx.newObject(scope), new Object[] { cx.newArray(scope, lines), sent + 1 });
+			sent += n;
+			n = 0;
+			stop = (res instanceof Boolean && !((Boolean) res));
+			return !stop;
+		}
+
+		/**
+		 * Sends the remaining lines.
+		 */
+		public void finish() {
+			if (!stop && n > 0) send();
+		}
+	}
+
+	protected static final int LINES_BUFFER = 1024 * 1024;
+	protected static final int DEFAULT_LINES_BATCH = 1000;
+
+	/**
+	 * Opens filename (decompressing it if gzip) closing the file if the gzip header can't be read.
+	 */
+	protected static InputStream openLinesStream(String filename, boolean gzip) throws IOException {
+		FileInputStream fis = new FileInputStream(filename);
+		if (!gzip) return fis;
+		try {
+			return new GZIPInputStream(fis, LINES_BUFFER);
+		} catch (IOException | RuntimeException e) {
+			fis.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * <odoc>
+	 * <key>io.readFileLines(aFilename, aFunction, aOptions) : Number</key>
+	 * Reads aFilename calling aFunction(anArrayOfLines, aFirstLineNumber) for each batch of lines (stopping if aFunction
+	 * returns false). Since each call handles many lines, it's much faster than ioStreamReadLines and, unlike 
+	 * io.readFileAsArray, doesn't keep the whole file in memory. aOptions can have:\
+	 * \
+	 *   batchSize (number of lines per call, defaults to 1000)\
+	 *   encoding  (defaults to UTF-8)\
+	 *   gzip      (true if aFilename is gzip compressed)\
+	 * \
+	 * Returns the number of lines read.
+	 * </odoc>
+	 */
+	@JSFunction
+	public static long readFileLines(String filename, NativeFunction aFunction, Object options) throws Exception {
+		int batchSize = DEFAULT_LINES_BATCH;
+		String encoding = "UTF-8";
+		boolean gzip = false;
+		if (options instanceof NativeObject) {
+			NativeObject opts = (NativeObject) options;
+			if (opts.get("batchSize") instanceof Number) batchSize = Math.max(1, ((Number) opts.get("batchSize")).intValue());
+			if (opts.get("encoding") != null && !(opts.get("encoding") instanceof Undefined)) encoding = opts.get("encoding").toString();
+			gzip = Boolean.TRUE.equals(opts.get("gzip"));
+		}
+
+		Context cx = (Context) AFCmdBase.jse.enterContext();
+		try {
+			Scriptable scope = (Scriptable) AFCmdBase.jse.getGlobalscope();
+			LinesBatcher handler = new LinesBatcher(aFunction, cx, scope, batchSize);
+
+			long count;
+			Charset charset = Charset.forName(encoding);
+			ByteBuffer lf = charset.encode("\n");
+			if (!gzip && lf.remaining() == 1 && lf.get(0) == '\n')
+				count = readLinesMapped(filename, encoding, handler);
+			else
+				count = readLinesStream(openLinesStream(filename, gzip), encoding, handler);
+
+			handler.finish();
+			return count;
+		} finally {
+			AFCmdBase.jse.exitContext();
+		}
+	}
+
 	@Override
 	public String getClassName() {
 		return "IO";
@@ -0,0 +1,119 @@
+package wedo.openaf.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptRuntime;
+import org.mozilla.javascript.Undefined;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import wedo.openaf.AFCmdBase;
+
+/**
+ * Incremental JSON decoding, using jackson-core, directly from an InputStream into javascript objects without
+ * first reading the whole text into a String. A top-level array can also be decoded element by element so only
+ * one element is kept in memory at a time.
+ *
+ * @author Nuno Aguiar <nuno.aguiar@wedotechnologies.com>
+ *
+ */
+public class JSONStream {
+	protected static final JsonFactory factory = new JsonFactory();
+
+	/**
+	 * Receives each element of a top-level array.
+	 */
+	public interface ElementHandler {
+		/**
+		 * @return false to stop decoding
+		 */
+		public boolean handle(Object element, long index) throws Exception;
+	}
+
+	/**
+	 * Decodes the JSON value read from is (undefined if empty). The stream isn't closed.
+	 */
+	public static Object parse(InputStream is) throws IOException {
+		Context cx = (Context) AFCmdBase.jse.enterContext();
+		try {
+			Scriptable scope = (Scriptable) AFCmdBase.jse.getGlobalscope();
+			JsonParser parser = factory.createParser(is);
+			JsonToken t = parser.nextToken();
+			if (t == null) return Undefined.instance;
+			return read(parser, t, cx, scope);
+		} finally {
+			AFCmdBase.jse.exitContext();
+		}
+	}
+
+	/**
+	 * Decodes the JSON read from is calling handler for each element of a top-level array (or once if it isn't an
+	 * array). The stream isn't closed.
+	 *
+	 * @return The number of elements handled
+	 */
+	public static long forEach(InputStream is, ElementHandler handler) throws Exception {
+		Context cx = (Context) AFCmdBase.jse.enterContext();
+		try {
+			Scriptable scope = (Scriptable) AFCmdBase.jse.getGlobalscope();
+			JsonParser parser = factory.createParser(is);
+			JsonToken t = parser.nextToken();
+			if (t == null) return 0;
+			if (t != JsonToken.START_ARRAY) {
+				handler.handle(read(parser, t, cx, scope), 0);
+				return 1;
+			}
+
+			long count = 0;
+			while ((t = parser.nextToken()) != JsonToken.END_ARRAY) {
+				if (t == null) throw new IOException("Unexpected end of JSON array");
+				if (!handler.handle(read(parser, t, cx, scope), count++)) break;
+			}
+			return count;
+		} finally {
+			AFCmdBase.jse.exitContext();
+		}
+	}
+
+	protected static Object read(JsonParser parser, JsonToken t, Context cx, Scriptable scope) throws IOException {
+		switch (t) {
+		case START_OBJECT:
+			Scriptable obj = cx.newObject(scope);
+			while ((t = parser.nextToken()) != JsonToken.END_OBJECT) {
+				if (t == null) throw new IOException("Unexpected end of JSON object");
+				String name = parser.getCurrentName();
+				// Same as obj[name] = value (integer names, like "1", are kept on index slots by Rhino)
+				ScriptRuntime.setObjectElem(obj, name, read(parser, parser.nextToken(), cx, scope), cx);
+			}
+			return obj;
+		case START_ARRAY:
+			ArrayList<Object> list = new ArrayList<Object>();
+			while ((t = parser.nextToken()) != JsonToken.END_ARRAY) {
+				if (t == null) throw new IOException("Unexpected end of JSON array");
+				list.add(read(parser, t, cx, scope));
+			}
+			return cx.newArray(scope, list.toArray());
+		case VALUE_STRING:
+			return parser.getText();
+		case VALUE_NUMBER_INT:
+			if (parser.getNumberType() == JsonParser.NumberType.INT) return parser.getIntValue();
+			return parser.getDoubleValue();
+		case VALUE_NUMBER_FLOAT:
+			return parser.getDoubleValue();
+		case VALUE_TRUE:
+			return Boolean.TRUE;
+		case VALUE_FALSE:
+			return Boolean.FALSE;
+		case VALUE_NULL:
+			return null;
+		default:
+			throw new IOException("Unexpected JSON token: " + t);
+		}
+	}
+}
@@ -16,14 +16,36 @@ import java.net.HttpURLConnection;
 import java.net.PasswordAuthentication;
 import java.net.URI;
 import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
 
 import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.io.IOUtils;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.auth.AuthScope;
+import org.apache.http.auth.UsernamePasswordCredentials;
+import org.apache.http.client.CredentialsProvider;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.entity.DeflateInputStream;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.RequestBuilder;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.client.BasicCookieStore;
+import org.apache.http.impl.client.BasicCredentialsProvider;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.util.EntityUtils;
 import org.eclipse.jetty.websocket.api.Session;
 import org.eclipse.jetty.websocket.api.WebSocketAdapter;
 import org.eclipse.jetty.websocket.client.ClientUpgradeRequest;
@@ -35,15 +57,19 @@ import org.mozilla.javascript.NativeObject;
 import org.mozilla.javascript.Scriptable;
 import org.mozilla.javascript.ScriptableObject;
 import org.mozilla.javascript.Undefined;
+import org.mozilla.javascript.Wrapper;
 import org.mozilla.javascript.annotations.JSConstructor;
 import org.mozilla.javascript.annotations.JSFunction;
 
 import wedo.openaf.AFBase;
 import wedo.openaf.AFCmdBase;
 import wedo.openaf.SimpleLog;
+import wedo.openaf.core.JSONStream;
 
 public class HTTP extends ScriptableObject {
 	protected static CookieManager ckman = new CookieManager(null, CookiePolicy.ACCEPT_ALL);
+	protected static boolean defaultPooled = Boolean.getBoolean("openaf.http.pool");
+	protected static boolean defaultCached = Boolean.getBoolean("openaf.http.cache");
 	protected HTTPResponse output = new HTTPResponse("", -1, null, "");
 	protected Object outputObj = null;
 	protected Object errorObj = null;
@@ -51,6 +77,11 @@ public class HTTP extends ScriptableObject {
 	protected boolean forceBasic = false;
 	protected String l = null;
 	protected String p = null;
+	protected boolean pooled = defaultPooled;
+	protected boolean cached = defaultCached;
+	protected String user = null;
+	protected BasicCookieStore cookieStore = new BasicCookieStore();
+	protected CredentialsProvider credentials = null;
 	
 	/**
 	 * 
@@ -91,6 +122,21 @@ public class HTTP extends ScriptableObject {
 
 	}
 
+	/**
+	 * Thrown by the pooled requests for response codes &gt;= 400 keeping the error response.
+	 */
+	public static class HTTPException extends IOException {
+		private static final long serialVersionUID = 1L;
+		public int responseCode;
+		public String response;
+		
+		public HTTPException(String message, int responseCode, String response) {
+			super(message);
+			this.responseCode = responseCode;
+			this.response = response;
+		}
+	}
+
 	public class EventSocket extends WebSocketAdapter {
 		NativeFunction onConnect, onMsg, onError, onClose;
 		
@@ -208,6 +254,9 @@ public class HTTP extends ScriptableObject {
 			}
 		};
 		//Authenticator.setDefault(authenticator);
+		this.user = user;
+		credentials = new BasicCredentialsProvider();
+		credentials.setCredentials(AuthScope.ANY, new UsernamePasswordCredentials(user, AFCmdBase.afc.dIP(pass)));
 		if (forceBasic) {
 			this.forceBasic = true;
 			l = user;
@@ -223,6 +272,11 @@ public class HTTP extends ScriptableObject {
 	 * aIn body request (or "") and optionally sending aRequestMap headers and optionally specifying 
 	 * if the response isBytes and providing an optional custom HTTP aTimeout. 
 	 * If returnStream = true the response and return value will be in the form of a JavaStream.
+	 * Besides a string or an array of bytes aIn can be a java.io.File (e.g. new java.io.File(aFilename)), a
+	 * java.nio.file.Path, a java InputStream or a java readable channel that will be streamed without being kept 
+	 * in memory (files are sent with their size, streams and channels using chunked transfer encoding and closed 
+	 * once sent). Gzip and deflate compressed responses are requested and decompressed transparently (without the
+	 * connection pool, see HTTP.usePool, only if aRequestMap doesn't include an Accept-Encoding). See also HTTP.execJSON.
 	 * </odoc>
 	 */
 	@JSFunction
@@ -235,9 +289,7 @@ public class HTTP extends ScriptableObject {
 		if (url.equals("undefined") || url == null) {
 			return new HTTPResponse("No URL", -1, null, "");
 		}
-		if (in.equals("undefined") || in == null) {
-			in = "";
-		}
+		in = toBody(in);
 		
 		if (request != null) {
 			for(Object o : request.keySet()) {
@@ -246,26 +298,224 @@ public class HTTP extends ScriptableObject {
 		}
 		
 		output = request(url, requestType, in, requestProps, bytes, stream, timeout);
-		Context cx = (Context) AFCmdBase.jse.enterContext();
-		Scriptable no = cx.newObject((Scriptable) AFCmdBase.jse.getGlobalscope());
-		AFCmdBase.jse.exitContext();
-
-		no.put("responseCode", no, output.responseCode);
-		no.put("contentType", no, output.contentType);
 		
 		if (stream) {
 			return output.responseStream;
 		}
 		
+		outputObj = toResult(output, bytes);
+	
+		return outputObj;
+	}
+	
+	/**
+	 * <odoc>
+	 * <key>HTTP.execJSON(aUrl, aRequestType, aIn, aRequestMap, aTimeout, aFunction) : Object</key>
+	 * Executes the same request as HTTP.exec but decodes the JSON response incrementally while it's being received
+	 * (without keeping the response text in memory) returning the corresponding javascript object. If aFunction is
+	 * provided and the response is an array, aFunction(anElement, anIndex) will be called for each element as it's 
+	 * decoded (only one element is kept in memory at a time) and the number of elements will be returned (if 
+	 * aFunction returns false the remaining elements will be ignored). Example:\
+	 * \
+	 * var h = new HTTP();\
+	 * h.execJSON("http://some.host/bigArray", "GET", undefined, undefined, undefined, function(e, i) { $ch("a").set(e, e); });\
+	 * \
+	 * </odoc>
+	 */
+	@JSFunction
+	public Object execJSON(String url, String requestType, Object in, NativeObject request, int timeout, Object callback) throws Exception {
+		Object res = exec(url, requestType, in, request, true, timeout, true);
+		if (!(res instanceof InputStream)) return res;
+		
+		InputStream is = (InputStream) res;
+		try {
+			if (callback instanceof NativeFunction) {
+				final NativeFunction fn = (NativeFunction) callback;
+				final Scriptable scope = (Scriptable) AFCmdBase.jse.getGlobalscope();
+				return JSONStream.forEach(is, new JSONStream.ElementHandler() {
+					public boolean handle(Object element, long index) throws Exception {
+						Context cx = (Context) AFCmdBase.jse.enterContext();
+						try {
+							Object r = fn.call(cx, scope, cx.newObject(scope), new Object[] { element, index });
+							return !(r instanceof Boolean && !((Boolean) r));
+						} finally {
+							AFCmdBase.jse.exitContext();
+						}
+					}
+				});
+			}
+			return JSONStream.parse(is);
+		} finally {
+			is.close();
+		}
+	}
+	
+	/**
+	 * Converts the javascript request body into a String, an array of bytes or a streamed body (see HTTPBody).
+	 */
+	protected static Object toBody(Object in) {
+		if (in instanceof Wrapper) in = ((Wrapper) in).unwrap();
+		if (in == null || in instanceof Undefined) return "";
+		if (in instanceof CharSequence) return in.toString();
+		return in;
+	}
+	
+	/**
+	 * Converts a response into the javascript map returned by exec.
+	 */
+	protected Scriptable toResult(HTTPResponse r, boolean bytes) {
+		Context cx = (Context) AFCmdBase.jse.enterContext();
+		Scriptable no = cx.newObject((Scriptable) AFCmdBase.jse.getGlobalscope());
+		AFCmdBase.jse.exitContext();
+
+		no.put("responseCode", no, r.responseCode);
+		no.put("contentType", no, r.contentType);
+		
 		if (bytes) {
-			no.put("responseBytes", no, output.responseBytes);
+			no.put("responseBytes", no, r.responseBytes);
 		} else {
-			no.put("response", no, output.response);	
+			no.put("response", no, r.response);	
+		}
+		return no;
+	}
+	
+	/**
+	 * <odoc>
+	 * <key>HTTP.execAsync(aUrl, aRequestType, aIn, aRequestMap, isBytes, aTimeout, aCallback) : JavaFuture</key>
+	 * Submits the same request as HTTP.exec (always using the shared connection pool, see HTTP.usePool) returning
+	 * immediately a java Future whose get() will return the same map as HTTP.exec (or throw the corresponding exception).
+	 * Requests are executed by a shared set of threads keeping, at most, a maximum number of requests in flight per
+	 * host (see HTTP.setAsync). Optionally aCallback(aResponse, anError) will be called (on the executing thread) once
+	 * the request finishes (on an error aResponse will be undefined). Use $doFuture to obtain an oPromise. Example:\
+	 * \
+	 * var h = new HTTP();\
+	 * var fs = [];\
+	 * for(var ii in urls) fs.push($doFuture(h.execAsync(urls[ii])));\
+	 * $doWait($doAll(fs));\
+	 * \
+	 * </odoc>
+	 */
+	@JSFunction
+	public Object execAsync(String url, String requestType, Object in, NativeObject request, boolean bytes, int timeout, Object callback) throws IOException {
+		return submitAsync(url, requestType, in, request, bytes, timeout, callback, null);
+	}
+	
+	/**
+	 * Submits an asynchronous request calling callback(response, error[, index]) once finished.
+	 */
+	protected Future<Object> submitAsync(final String url, String requestType, Object in, NativeObject request, final boolean bytes, final int timeout, final Object callback, final Integer index) throws IOException {
+		if (url == null || url.equals("undefined")) throw new IOException("No URL");
+		final String method = (requestType == null || requestType.equals("undefined")) ? "GET" : requestType;
+		final Object body = toBody(in);
+		final Properties requestProps = new Properties();
+		if (request != null) {
+			for(Object o : request.keySet()) {
+				requestProps.put(o, request.get(o));
+			}
+		}
+		
+		return HTTPClientPool.submit(HTTPClientPool.hostKey(url), new Callable<Object>() {
+			public Object call() throws Exception {
+				Object res = null;
+				Exception err = null;
+				try {
+					if (cached && HTTPCache.isCacheable(method, body, requestProps))
+						res = toResult(requestCached(url, method, requestProps, bytes, timeout, true), bytes);
+					else
+						res = toResult(execPooled(url, method, body, requestProps, bytes, false, timeout), bytes);
+				} catch (Exception e) {
+					err = e;
+				}
+				
+				if (callback instanceof NativeFunction) {
+					Context cx = (Context) AFCmdBase.jse.enterContext();
+					try {
+						Scriptable scope = (Scriptable) AFCmdBase.jse.getGlobalscope();
+						Object[] args = new Object[] { (res == null) ? Undefined.instance : res, (err == null) ? Undefined.instance : err };
+						if (index != null) args = new Object[] { args[0], args[1], index };
+						((NativeFunction) callback).call(cx, scope, cx.newObject(scope), args);
+					} finally {
+						AFCmdBase.jse.exitContext();
+					}
+				}
+				
+				if (err != null) throw err;
+				return res;
+			}
+		});
+	}
+	
+	/**
+	 * <odoc>
+	 * <key>HTTP.batch(anArrayOfRequests, aCallback) : Array</key>
+	 * Executes all anArrayOfRequests asynchronously (see HTTP.execAsync) waiting for all to finish and returning an
+	 * array, in the same order, with the same map as HTTP.exec for each request. Each request is a map with url, 
+	 * and optionally method (defaults to GET), in (the body), requestMap (the headers), isBytes and timeout. A failed 
+	 * request will be represented by a map with error (the message), responseCode and errorResponse (if the server 
+	 * replied). Optionally aCallback(aResponse, anError, aIndex) will be called as each request finishes. Example:\
+	 * \
+	 * var res = (new HTTP()).batch([ { url: "http://host1/a" }, { url: "http://host2/b", method: "POST", in: "x=1" } ]);\
+	 * \
+	 * </odoc>
+	 */
+	@JSFunction
+	public Object batch(Object requests, Object callback) throws Exception {
+		if (!(requests instanceof List)) throw new IOException("Expecting an array of requests.");
+		List<?> reqs = (List<?>) requests;
+		List<Future<?>> futures = new ArrayList<Future<?>>(reqs.size());
+		
+		for(int i = 0; i < reqs.size(); i++) {
+			Object o = reqs.get(i);
+			if (!(o instanceof NativeObject)) throw new IOException("Expecting a map for request " + i + ".");
+			NativeObject req = (NativeObject) o;
+			
+			Object timeout = req.get("timeout");
+			futures.add(submitAsync(String.valueOf(req.get("url")),
+				(req.get("method") == null) ? "GET" : String.valueOf(req.get("method")),
+				req.get("in"),
+				(req.get("requestMap") instanceof NativeObject) ? (NativeObject) req.get("requestMap") : null,
+				Boolean.TRUE.equals(req.get("isBytes")),
+				(timeout instanceof Number) ? ((Number) timeout).intValue() : 0,
+				callback, i));
 		}
 		
-		outputObj = no;
+		Context cx = (Context) AFCmdBase.jse.enterContext();
+		Scriptable scope = (Scriptable) AFCmdBase.jse.getGlobalscope();
+		Object[] res = new Object[futures.size()];
+		try {
+			for(int i = 0; i < res.length; i++) {
+				try {
+					res[i] = futures.get(i).get();
+				} catch (ExecutionException e) {
+					Throwable t = e.getCause();
+					Scriptable no = cx.newObject(scope);
+					no.put("error", no, String.valueOf(t.getMessage()));
+					if (t instanceof HTTPException) {
+						no.put("responseCode", no, ((HTTPException) t).responseCode);
+						no.put("errorResponse", no, ((HTTPException) t).response);
+					} else {
+						no.put("responseCode", no, -1);
+					}
+					res[i] = no;
+				}
+			}
+			return cx.newArray(scope, res);
+		} finally {
+			AFCmdBase.jse.exitContext();
+		}
+	}
 	
-		return outputObj;
+	/**
+	 * <odoc>
+	 * <key>HTTP.setAsync(aNumberOfThreads, aMaxPerHost)</key>
+	 * Sets the number of threads executing asynchronous requests (see HTTP.execAsync, defaults to 32) and the maximum
+	 * number of asynchronous requests in flight per host (defaults to 20). Requests over the limit wait, queued, without
+	 * holding a thread. Keep aMaxPerHost equal or lower than the pool limits (see HTTP.setPoolLimits).
+	 * </odoc>
+	 */
+	@JSFunction
+	public void setAsync(int aNumberOfThreads, int aMaxPerHost) {
+		HTTPClientPool.setAsync(aNumberOfThreads, aMaxPerHost);
 	}
 	
 	/**
@@ -454,6 +704,169 @@ public class HTTP extends ScriptableObject {
 		} 
 	}
 	
+	/**
+	 * <odoc>
+	 * <key>HTTP.usePool(shouldUse)</key>
+	 * If shouldUse = true (or undefined) the following requests of this HTTP object will use connections from a pool
+	 * shared by all HTTP objects. Connections are kept alive and reused across requests to the same host avoiding a
+	 * new TCP/SSL handshake per request. Cookies and credentials (see HTTP.login) are kept per HTTP object.
+	 * If shouldUse = false the default java HTTP connection is used. See also HTTP.setPoolDefault.
+	 * </odoc>
+	 */
+	@JSFunction
+	public void usePool(Object shouldUse) {
+		pooled = (shouldUse instanceof Undefined) || Context.toBoolean(shouldUse);
+	}
+	
+	/**
+	 * <odoc>
+	 * <key>HTTP.setPoolDefault(shouldUse)</key>
+	 * Sets if new HTTP objects should use, by default, the shared connection pool (see HTTP.usePool). It can also be 
+	 * enabled by starting the JVM with -Dopenaf.http.pool=true.
+	 * </odoc>
+	 */
+	@JSFunction
+	public void setPoolDefault(boolean shouldUse) {
+		defaultPooled = shouldUse;
+	}
+	
+	/**
+	 * <odoc>
+	 * <key>HTTP.setPoolLimits(aMaxTotal, aMaxPerRoute)</key>
+	 * Sets the maximum number of connections of the shared connection pool in total (defaults to 200) and per
+	 * route (scheme, host and port, defaults to 20). Use HTTP.setPoolRouteLimit for specific hosts.
+	 * </odoc>
+	 */
+	@JSFunction
+	public void setPoolLimits(int aMaxTotal, int aMaxPerRoute) {
+		HTTPClientPool.setLimits(aMaxTotal, aMaxPerRoute);
+	}
+	
+	/**
+	 * <odoc>
+	 * <key>HTTP.setPoolRouteLimit(aURL, aMax)</key>
+	 * Sets the maximum number of connections of the shared connection pool to the host (scheme, host and port) 
+	 * of aURL (e.g. "https://some.host:8443").
+	 * </odoc>
+	 */
+	@JSFunction
+	public void setPoolRouteLimit(String aURL, int aMax) {
+		HTTPClientPool.setRouteLimit(aURL, aMax);
+	}
+	
+	/**
+	 * <odoc>
+	 * <key>HTTP.getPoolStats() : Map</key>
+	 * Returns a map with the current number of leased, available (idle and kept alive) and pending connections 
+	 * of the shared connection pool and the maximum number of connections.
+	 * </odoc>
+	 */
+	@JSFunction
+	public Object getPoolStats() {
+		PoolStats ps = HTTPClientPool.getStats();
+		Scriptable scope = (Scriptable) AFCmdBase.jse.getGlobalscope();
+		Context cx = (Context) AFCmdBase.jse.enterContext();
+		Scriptable no = cx.newObject(scope);
+		AFCmdBase.jse.exitContext();
+		
+		no.put("leased", no, ps.getLeased());
+		no.put("available", no, ps.getAvailable());
+		no.put("pending", no, ps.getPending());
+		no.put("max", no, ps.getMax());
+		return no;
+	}
+	
+	/**
+	 * <odoc>
+	 * <key>HTTP.clearCookies()</key>
+	 * Removes all the cookies kept by this HTTP object when using the shared connection pool (see HTTP.usePool).
+	 * </odoc>
+	 */
+	@JSFunction
+	public void clearCookies() {
+		cookieStore.clear();
+	}
+	
+	/**
+	 * <odoc>
+	 * <key>HTTP.useCache(shouldUse)</key>
+	 * If shouldUse = true (or undefined) the following GET requests of this HTTP object (without returnStream) will 
+	 * use an in memory response cache shared by all HTTP objects. Responses are kept as allowed by the server 
+	 * Cache-Control (or Expires) headers and are reused, without any request, while fresh. Stale responses with an 
+	 * ETag and/or Last-Modified header are revalidated with a conditional request so unchanged resources only cost a 
+	 * 304 reply. Use a Cache-Control: no-cache request header to force revalidation or no-store to skip the cache. 
+	 * Private responses are never kept and requests with credentials (login, Authorization, Cookie or kept cookies) 
+	 * only share responses marked as public. See also HTTP.setCacheDefault, HTTP.setCacheLimit and HTTP.getCacheStats.
+	 * </odoc>
+	 */
+	@JSFunction
+	public void useCache(Object shouldUse) {
+		cached = (shouldUse instanceof Undefined) || Context.toBoolean(shouldUse);
+	}
+	
+	/**
+	 * <odoc>
+	 * <key>HTTP.setCacheDefault(shouldUse)</key>
+	 * Sets if new HTTP objects should use, by default, the shared response cache (see HTTP.useCache). It can also be 
+	 * enabled by starting the JVM with -Dopenaf.http.cache=true.
+	 * </odoc>
+	 */
+	@JSFunction
+	public void setCacheDefault(boolean shouldUse) {
+		defaultCached = shouldUse;
+	}
+	
+	/**
+	 * <odoc>
+	 * <key>HTTP.setCacheLimit(aMaxBytes)</key>
+	 * Sets the maximum number of bytes kept by the shared response cache (defaults to 32MB) evicting the least recently
+	 * used responses if needed.
+	 * </odoc>
+	 */
+	@JSFunction
+	public void setCacheLimit(double aMaxBytes) {
+		HTTPCache.getCache().setMaxBytes((long) aMaxBytes);
+	}
+	
+	/**
+	 * <odoc>
+	 * <key>HTTP.getCacheStats(shouldReset) : Map</key>
+	 * Returns a map with the shared response cache hits (responses reused without any request), revalidations 
+	 * (responses reused after a 304 reply), misses, evictions, entries, bytes and maxBytes. If shouldReset = true the
+	 * hits, revalidations, misses and evictions counters will be reset.
+	 * </odoc>
+	 */
+	@JSFunction
+	public Object getCacheStats(boolean shouldReset) {
+		long[] stats = HTTPCache.getCache().getStats();
+		if (shouldReset) HTTPCache.getCache().resetStats();
+		
+		Scriptable scope = (Scriptable) AFCmdBase.jse.getGlobalscope();
+		Context cx = (Context) AFCmdBase.jse.enterContext();
+		Scriptable no = cx.newObject(scope);
+		AFCmdBase.jse.exitContext();
+		
+		no.put("hits", no, stats[0]);
+		no.put("revalidations", no, stats[1]);
+		no.put("misses", no, stats[2]);
+		no.put("evictions", no, stats[3]);
+		no.put("entries", no, stats[4]);
+		no.put("bytes", no, stats[5]);
+		no.put("maxBytes", no, stats[6]);
+		return no;
+	}
+	
+	/**
+	 * <odoc>
+	 * <key>HTTP.clearCache()</key>
+	 * Removes all the responses kept by the shared response cache (see HTTP.useCache).
+	 * </odoc>
+	 */
+	@JSFunction
+	public void clearCache() {
+		HTTPCache.getCache().clear();
+	}
+	
 	/**
 	 * <odoc>
 	 * 
@@ -478,6 +891,97 @@ public class HTTP extends ScriptableObject {
 	 * @throws IOException
 	 */
 	protected HTTPResponse request(String aURL, String method, Object in, Properties request, boolean bytes, boolean stream, int timeout) throws IOException {
+		if (cached && !stream && HTTPCache.isCacheable(method, in, request)) return requestCached(aURL, method, request, bytes, timeout, false);
+		return requestDirect(aURL, method, in, request, bytes, stream, timeout);
+	}
+	
+	/**
+	 * Executes a GET request using the shared response cache (see HTTPCache) revalidating stale responses with a
+	 * conditional request. If concurrent the object state isn't changed (see execPooled).
+	 */
+	protected HTTPResponse requestCached(String aURL, String method, Properties request, boolean bytes, int timeout, boolean concurrent) throws IOException {
+		HTTPCache cache = HTTPCache.getCache();
+		String base = HTTPCache.baseKey(aURL, request, user);
+		String key = cache.key(base, request);
+		HTTPCache.Entry e = cache.get(key);
+		// Requests with credentials only share responses marked as public
+		boolean credentials = sendsCredentials(aURL, request, concurrent || pooled);
+		if (e != null && credentials && !e.shared) e = null;
+		
+		if (e != null && e.isFresh(System.currentTimeMillis()) && !HTTPCache.mustRevalidate(request)) {
+			cache.hit();
+			return fromEntry(e, bytes);
+		}
+		
+		Properties req = new Properties();
+		if (request != null) req.putAll(request);
+		if (e != null) {
+			if (e.etag != null) req.put("If-None-Match", e.etag);
+			if (e.lastModified != null) req.put("If-Modified-Since", e.lastModified);
+		}
+		
+		HTTPResponse r = concurrent ? execPooled(aURL, method, "", req, true, false, timeout) : requestDirect(aURL, method, "", req, true, false, timeout);
+		long now = System.currentTimeMillis();
+		if (e != null && r.responseCode == 304) {
+			cache.refresh(e, r.responseHeaders, now);
+			cache.revalidated();
+			return fromEntry(e, bytes);
+		}
+		
+		cache.miss();
+		HTTPCache.Entry ne = HTTPCache.toEntry(r, now);
+		if (ne != null && (!credentials || ne.shared)) 
+			cache.store(base, request, ne);
+		else if (!credentials) 
+			cache.remove(key);
+		
+		if (bytes) return r;
+		return new HTTPResponse(new String(r.responseBytes, charset(r.contentType)), r.responseCode, r.responseHeaders, r.contentType);
+	}
+	
+	/**
+	 * Returns true if the request to aURL sends credentials (login, Authorization or Cookie headers or cookies kept 
+	 * for aURL).
+	 */
+	protected boolean sendsCredentials(String aURL, Properties request, boolean pooledCookies) {
+		if (user != null || HTTPCache.header(request, "Authorization") != null || HTTPCache.header(request, "Cookie") != null) return true;
+		if (pooledCookies) return !cookieStore.getCookies().isEmpty();
+		try {
+			return !ckman.getCookieStore().get(URI.create(aURL)).isEmpty();
+		} catch (IllegalArgumentException e) {
+			return true;
+		}
+	}
+	
+	/**
+	 * Builds a response from a cached entry.
+	 */
+	protected static HTTPResponse fromEntry(HTTPCache.Entry e, boolean bytes) {
+		if (bytes) return new HTTPResponse(e.body.clone(), e.responseCode, e.headers, e.contentType);
+		return new HTTPResponse(new String(e.body, charset(e.contentType)), e.responseCode, e.headers, e.contentType);
+	}
+	
+	/**
+	 * Returns the charset of a content type (or the default charset).
+	 */
+	protected static Charset charset(String contentType) {
+		if (contentType != null) {
+			try {
+				Charset c = ContentType.parse(contentType).getCharset();
+				if (c != null) return c;
+			} catch (Exception e) {
+				SimpleLog.log(SimpleLog.logtype.DEBUG, "Can't parse content type " + contentType + ": " + e.getMessage(), e);
+			}
+		}
+		return Charset.defaultCharset();
+	}
+	
+	/**
+	 * Executes the request (without the response cache) using the shared connection pool or a java HTTP connection.
+	 */
+	protected HTTPResponse requestDirect(String aURL, String method, Object in, Properties request, boolean bytes, boolean stream, int timeout) throws IOException {
+		if (pooled) return requestPooled(aURL, method, in, request, bytes, stream, timeout);
+		
 		if (this.authenticator != null) Authenticator.setDefault(this.authenticator);
 		CookieHandler.setDefault(ckman);
 		
@@ -496,6 +1000,13 @@ public class HTTP extends ScriptableObject {
 			}
 		}
 		
+		// Only decompresses transparently if the caller didn't ask for specific encodings
+		boolean decompress = false;
+		if (con.getRequestProperty("Accept-Encoding") == null) {
+			con.addRequestProperty("Accept-Encoding", "gzip, deflate");
+			decompress = true;
+		}
+		
 		if (forceBasic) {
 			con.addRequestProperty("Authorization", "Basic " + new String(Base64.encodeBase64(new String(l + ":" + p).getBytes())));
 		}
@@ -508,16 +1019,31 @@ public class HTTP extends ScriptableObject {
 		if (!(in instanceof org.mozilla.javascript.Undefined))
 			if (in instanceof String) {
 				if (!in.equals("")) {
+					byte[] data = ((String) in).getBytes();
 					con.setDoOutput(true);
-					con.addRequestProperty("content-length", String.valueOf(((String) in).length()));
+					con.addRequestProperty("content-length", String.valueOf(data.length));
 					OutputStream os = con.getOutputStream();
-					IOUtils.write((String) in, os);
+					IOUtils.write(data, os);
 					os.flush();
 					os.close();
 					is = con.getInputStream();
 					//con.setDoInput(true);
 					//IOUtils.closeQuietly(con.getOutputStream());
 				}
+			} else if (HTTPBody.isStream(in)) {
+				// Stream the body (with its length if known, otherwise chunked) instead of buffering it
+				con.setDoOutput(true);
+				if (con.getRequestProperty("Content-Type") == null) con.setRequestProperty("Content-Type", "application/octet-stream");
+				long len = HTTPBody.length(in);
+				if (len >= 0) 
+					con.setFixedLengthStreamingMode(len);
+				else
+					con.setChunkedStreamingMode(HTTPBody.CHUNK);
+				OutputStream os = con.getOutputStream();
+				HTTPBody.writeTo(in, os);
+				os.flush();
+				os.close();
+				is = con.getInputStream();
 			} else {
 				con.setDoOutput(true);
 				con.addRequestProperty("content-length", String.valueOf(((byte[]) in).length));
@@ -535,6 +1061,8 @@ public class HTTP extends ScriptableObject {
 			con.setDoInput(true);
 			is = con.getInputStream();
 		}
+		// Replies without a body (e.g. 304) might still have a content encoding
+		if (decompress && con.getResponseCode() != 304 && con.getResponseCode() != 204) is = decompress(is, con.getContentEncoding());
 		
 		//con.connect(); 
 		try {
@@ -566,7 +1094,7 @@ public class HTTP extends ScriptableObject {
 			return r;
 		} catch(Exception e) {
 			if (con.getErrorStream() != null) {
-				errorObj = IOUtils.toString(con.getErrorStream());
+				errorObj = IOUtils.toString(decompress ? decompress(con.getErrorStream(), con.getContentEncoding()) : con.getErrorStream());
 				SimpleLog.log(SimpleLog.logtype.DEBUG, "Response = " + IOUtils.toString(con.getErrorStream()), e);
 			} else {
 				errorObj = IOUtils.toString(con.getInputStream());
@@ -575,4 +1103,121 @@ public class HTTP extends ScriptableObject {
 			throw e;
 		}
 	}
+
+	/**
+	 * Wraps is to decode the content encoding (gzip or deflate) of a response.
+	 */
+	protected static InputStream decompress(InputStream is, String encoding) throws IOException {
+		if (encoding == null || is == null) return is;
+		encoding = encoding.trim().toLowerCase();
+		if (encoding.equals("gzip") || encoding.equals("x-gzip")) return new GZIPInputStream(is, HTTPBody.CHUNK);
+		// Handles both zlib wrapped and raw deflate data
+		if (encoding.equals("deflate")) return new DeflateInputStream(is);
+		return is;
+	}
+	
+	/**
+	 * Executes the request using a connection from the shared pool keeping the error response (see execPooled).
+	 */
+	protected HTTPResponse requestPooled(String aURL, String method, Object in, Properties request, boolean bytes, boolean stream, int timeout) throws IOException {
+		try {
+			return execPooled(aURL, method, in, request, bytes, stream, timeout);
+		} catch (HTTPException e) {
+			errorObj = e.response;
+			throw e;
+		}
+	}
+	
+	/**
+	 * Executes the request using a connection from the shared pool (see HTTPClientPool) keeping the same
+	 * behaviour of request (throwing an HTTPException for response codes &gt;= 400). It doesn't change the
+	 * object state so it can be called concurrently.
+	 */
+	protected HTTPResponse execPooled(String aURL, String method, Object in, Properties request, boolean bytes, boolean stream, int timeout) throws IOException {
+		RequestBuilder rb = RequestBuilder.create(method).setUri(aURL);
+		
+		boolean hasAccept = false, hasContentType = false;
+		if (request != null) {
+			for(Object key : request.keySet()) {
+				String k = (String) key;
+				if (k.equalsIgnoreCase("accept")) hasAccept = true;
+				if (k.equalsIgnoreCase("content-type")) hasContentType = true;
+				rb.addHeader(k, (String) request.get(key));
+			}
+		}
+		if (!hasAccept) rb.addHeader("Accept", "*/*");
+		
+		if (forceBasic) {
+			rb.addHeader("Authorization", "Basic " + new String(Base64.encodeBase64(new String(l + ":" + p).getBytes())));
+		}
+		
+		if (timeout > 0) {
+			rb.setConfig(RequestConfig.custom()
+				.setConnectTimeout(timeout)
+				.setSocketTimeout(timeout)
+				.setConnectionRequestTimeout(timeout)
+				.build());
+		}
+		
+		if (HTTPBody.isStream(in)) {
+			if (!hasContentType) rb.addHeader("Content-Type", "application/octet-stream");
+			rb.setEntity(new HTTPBody.Entity(in));
+		} else {
+			byte[] body = null;
+			if (in instanceof byte[]) {
+				body = (byte[]) in;
+			} else if (in != null && !(in instanceof Undefined)) {
+				if (!in.toString().equals("")) body = in.toString().getBytes();
+			}
+			if (body != null) {
+				// Same default content type as HttpURLConnection
+				if (!hasContentType) rb.addHeader("Content-Type", "application/x-www-form-urlencoded");
+				rb.setEntity(new ByteArrayEntity(body));
+			}
+		}
+		
+		HttpClientContext context = HttpClientContext.create();
+		context.setCookieStore(cookieStore);
+		if (credentials != null) context.setCredentialsProvider(credentials);
+		
+		CloseableHttpResponse res = HTTPClientPool.getClient().execute(rb.build(), context);
+		boolean release = true;
+		try {
+			int responseCode = res.getStatusLine().getStatusCode();
+			SimpleLog.log(SimpleLog.logtype.DEBUG, "URL = " + aURL + "; method = " + method + "; responsecode = " + responseCode + "; cookiesize = " + cookieStore.getCookies().size(), null);
+			
+			Map<String, List<String>> headerFields = new LinkedHashMap<String, List<String>>();
+			for(Header h : res.getAllHeaders()) {
+				List<String> values = headerFields.get(h.getName());
+				if (values == null) {
+					values = new ArrayList<String>();
+					headerFields.put(h.getName(), values);
+				}
+				values.add(h.getValue());
+			}
+			
+			HttpEntity entity = res.getEntity();
+			String contentType = (entity != null && entity.getContentType() != null) ? entity.getContentType().getValue() : null;
+			
+			if (responseCode >= 400) {
+				String error = (entity == null) ? "" : EntityUtils.toString(entity, Charset.defaultCharset());
+				SimpleLog.log(SimpleLog.logtype.DEBUG, "Response = " + error, null);
+				throw new HTTPException("Server returned HTTP response code: " + responseCode + " for URL: " + aURL, responseCode, error);
+			}
+			
+			if (stream) {
+				// The connection returns to the pool once the stream is consumed or closed
+				release = false;
+				InputStream is = (entity == null) ? new java.io.ByteArrayInputStream(new byte[0]) : entity.getContent();
+				return new HTTPResponse(is, responseCode, headerFields, contentType);
+			}
+			
+			if (bytes) 
+				return new HTTPResponse((entity == null) ? new byte[0] : EntityUtils.toByteArray(entity), responseCode, headerFields, contentType);
+			else
+				return new HTTPResponse((entity == null) ? "" : EntityUtils.toString(entity, Charset.defaultCharset()), responseCode, headerFields, contentType);
+		} finally {
+			if (release) res.close();
+		}
+	}
 }
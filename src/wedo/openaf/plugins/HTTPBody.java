@@ -0,0 +1,144 @@
+package wedo.openaf.plugins;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.http.entity.AbstractHttpEntity;
+
+/**
+ * Streamed request bodies for the HTTP plugin: files (java.io.File or java.nio.file.Path), InputStreams and
+ * readable channels are written to the connection chunk by chunk without ever holding the payload in memory.
+ * Files are transferred directly from a FileChannel and sent with their length; streams and channels (unknown
+ * length) are sent with chunked transfer encoding. Streams and channels are closed once sent.
+ *
+ * @author Nuno Aguiar <nuno.aguiar@wedotechnologies.com>
+ *
+ */
+public class HTTPBody {
+	public static final int CHUNK = 64 * 1024;
+
+	/**
+	 * Returns true if in is a body that should be streamed.
+	 */
+	public static boolean isStream(Object in) {
+		return in instanceof File || in instanceof Path || in instanceof InputStream || in instanceof ReadableByteChannel;
+	}
+
+	protected static Path toPath(Object in) {
+		return (in instanceof File) ? ((File) in).toPath() : (Path) in;
+	}
+
+	/**
+	 * Returns the number of bytes of in or -1 if unknown.
+	 */
+	public static long length(Object in) throws IOException {
+		if (in instanceof File || in instanceof Path) return Files.size(toPath(in));
+		if (in instanceof FileChannel) {
+			FileChannel fc = (FileChannel) in;
+			return fc.size() - fc.position();
+		}
+		return -1;
+	}
+
+	/**
+	 * Writes all the bytes of in to os.
+	 *
+	 * @return The number of bytes written
+	 */
+	public static long writeTo(Object in, OutputStream os) throws IOException {
+		WritableByteChannel out = Channels.newChannel(os);
+		if (in instanceof File || in instanceof Path) {
+			try (FileChannel fc = FileChannel.open(toPath(in), StandardOpenOption.READ)) {
+				return transfer(fc, 0, fc.size(), out);
+			}
+		}
+		if (in instanceof FileChannel) {
+			FileChannel fc = (FileChannel) in;
+			try {
+				return transfer(fc, fc.position(), fc.size() - fc.position(), out);
+			} finally {
+				fc.close();
+			}
+		}
+		if (in instanceof ReadableByteChannel) {
+			ReadableByteChannel ch = (ReadableByteChannel) in;
+			try {
+				ByteBuffer buf = ByteBuffer.allocate(CHUNK);
+				long count = 0;
+				while (ch.read(buf) >= 0) {
+					buf.flip();
+					while (buf.hasRemaining()) count += out.write(buf);
+					buf.clear();
+				}
+				return count;
+			} finally {
+				ch.close();
+			}
+		}
+		if (in instanceof InputStream) {
+			try {
+				return IOUtils.copyLarge((InputStream) in, os, new byte[CHUNK]);
+			} finally {
+				IOUtils.closeQuietly((InputStream) in);
+			}
+		}
+		throw new IOException("Unsupported HTTP body: " + ((in == null) ? "null" : in.getClass().getName()));
+	}
+
+	protected static long transfer(FileChannel fc, long position, long count, WritableByteChannel out) throws IOException {
+		long done = 0;
+		while (done < count) {
+			long n = fc.transferTo(position + done, count - done, out);
+			if (n <= 0) break;
+			done += n;
+		}
+		return done;
+	}
+
+	/**
+	 * A httpclient entity writing a streamed body.
+	 */
+	public static class Entity extends AbstractHttpEntity {
+		protected Object in;
+		protected long length;
+
+		public Entity(Object in) throws IOException {
+			this.in = in;
+			this.length = length(in);
+			setChunked(length < 0);
+		}
+
+		public boolean isRepeatable() {
+			return in instanceof File || in instanceof Path;
+		}
+
+		public long getContentLength() {
+			return length;
+		}
+
+		public InputStream getContent() throws IOException {
+			if (in instanceof File || in instanceof Path) return Files.newInputStream(toPath(in));
+			if (in instanceof ReadableByteChannel) return Channels.newInputStream((ReadableByteChannel) in);
+			return (InputStream) in;
+		}
+
+		public void writeTo(OutputStream os) throws IOException {
+			HTTPBody.writeTo(in, os);
+		}
+
+		public boolean isStreaming() {
+			return !isRepeatable();
+		}
+	}
+}
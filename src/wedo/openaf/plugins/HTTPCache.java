@@ -0,0 +1,303 @@
+package wedo.openaf.plugins;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.http.client.utils.DateUtils;
+
+/**
+ * In memory HTTP response cache shared by all the HTTP plugin objects using it. Only successful GET responses
+ * allowed by Cache-Control (or Expires) or with validators (ETag and/or Last-Modified) are kept, up to a maximum
+ * number of bytes, evicting the least recently used entries. Fresh entries are returned without any request and
+ * stale entries with validators are revalidated with a conditional request (If-None-Match/If-Modified-Since) so an
+ * unchanged resource only costs a 304 reply. Responses are kept per URL, credentials (login user and Authorization 
+ * header) and the values of the request headers named by the response Vary header. Responses marked as private are 
+ * never kept and responses to requests with credentials (including cookies) are only kept, and used, if marked as
+ * public.
+ *
+ * @author Nuno Aguiar <nuno.aguiar@wedotechnologies.com>
+ *
+ */
+public class HTTPCache {
+	protected static final long DEFAULT_MAX_BYTES = 32 * 1024 * 1024;
+
+	protected static HTTPCache cache = new HTTPCache(DEFAULT_MAX_BYTES);
+
+	protected LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(64, 0.75f, true);
+	protected HashMap<String, String[]> varies = new HashMap<String, String[]>();
+	protected long bytes = 0, maxBytes;
+	protected long hits = 0, revalidations = 0, misses = 0, evictions = 0;
+
+	/**
+	 * A cached response.
+	 */
+	public static class Entry {
+		public byte[] body;
+		public int responseCode;
+		public Map<String, List<String>> headers;
+		public String contentType, etag, lastModified;
+		public long expires;
+		public boolean shared;
+
+		/**
+		 * Returns true if the entry can be used without revalidation.
+		 */
+		public boolean isFresh(long now) {
+			return now < expires;
+		}
+
+		/**
+		 * Returns true if the entry can be revalidated with a conditional request.
+		 */
+		public boolean hasValidators() {
+			return etag != null || lastModified != null;
+		}
+
+		public long size() {
+			return body.length + 256;
+		}
+	}
+
+	public HTTPCache(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Returns the shared cache.
+	 */
+	public static HTTPCache getCache() {
+		return cache;
+	}
+
+	/**
+	 * Returns the first value of a header (ignoring case) or null.
+	 */
+	public static String header(Map<String, List<String>> headers, String name) {
+		if (headers == null) return null;
+		for (Map.Entry<String, List<String>> h : headers.entrySet()) {
+			if (h.getKey() != null && h.getKey().equalsIgnoreCase(name) && h.getValue() != null && !h.getValue().isEmpty())
+				return h.getValue().get(0);
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the request header (ignoring case) or null.
+	 */
+	public static String header(Properties request, String name) {
+		if (request == null) return null;
+		for (Object key : request.keySet()) {
+			if (String.valueOf(key).equalsIgnoreCase(name)) return String.valueOf(request.get(key));
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the key of the responses to url for the request headers and the login user (independent of Vary).
+	 */
+	public static String baseKey(String url, Properties request, String user) {
+		String auth = header(request, "Authorization");
+		return url + "\n" + header(request, "Accept") + "\n" + ((user == null) ? "" : user) + "\n" + ((auth == null) ? "" : DigestUtils.sha256Hex(auth));
+	}
+
+	/**
+	 * Returns the key of the response variant, for baseKey, matching the request headers named by the last Vary 
+	 * header received.
+	 */
+	public synchronized String key(String baseKey, Properties request) {
+		String[] names = varies.get(baseKey);
+		if (names == null) return baseKey;
+		StringBuilder sb = new StringBuilder(baseKey);
+		for (String name : names) {
+			String v = header(request, name);
+			sb.append('\n').append(name).append('=').append((v == null) ? "" : v);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Keeps the entry of a response received for baseKey and request (returns the key used).
+	 */
+	public synchronized String store(String baseKey, Properties request, Entry e) {
+		String vary = header(e.headers, "Vary");
+		if (vary == null || vary.trim().length() == 0) {
+			varies.remove(baseKey);
+		} else {
+			String[] names = vary.toLowerCase().split(",");
+			for (int i = 0; i < names.length; i++) names[i] = names[i].trim();
+			Arrays.sort(names);
+			varies.put(baseKey, names);
+		}
+		String key = key(baseKey, request);
+		put(key, e);
+		return key;
+	}
+
+	/**
+	 * Returns true if a request can use the cache.
+	 */
+	public static boolean isCacheable(String method, Object in, Properties request) {
+		if (!"GET".equalsIgnoreCase(method)) return false;
+		if (in instanceof byte[] || (in != null && !in.toString().equals(""))) return false;
+		String cc = header(request, "Cache-Control");
+		return cc == null || cc.toLowerCase().indexOf("no-store") < 0;
+	}
+
+	/**
+	 * Returns true if the request asks for the cached response to be revalidated.
+	 */
+	public static boolean mustRevalidate(Properties request) {
+		String cc = header(request, "Cache-Control"), pragma = header(request, "Pragma");
+		return (cc != null && (cc.toLowerCase().indexOf("no-cache") >= 0 || cc.toLowerCase().indexOf("max-age=0") >= 0)) ||
+			(pragma != null && pragma.toLowerCase().indexOf("no-cache") >= 0);
+	}
+
+	/**
+	 * Returns the time until which a response with headers can be used without revalidation, 0 if it must always be
+	 * revalidated or -1 if it can't be stored.
+	 */
+	public static long expires(Map<String, List<String>> headers, long now) {
+		String vary = header(headers, "Vary");
+		if (vary != null && vary.trim().equals("*")) return -1;
+
+		String cc = header(headers, "Cache-Control");
+		if (cc != null) {
+			long maxAge = -1;
+			boolean noCache = false;
+			for (String d : cc.toLowerCase().split(",")) {
+				d = d.trim();
+				if (d.equals("no-store") || d.equals("private") || d.startsWith("private=")) return -1;
+				if (d.startsWith("no-cache")) noCache = true;
+				if (d.startsWith("max-age=")) {
+					try {
+						maxAge = Long.parseLong(d.substring(8).replace("\"", "").trim());
+					} catch (NumberFormatException e) {
+						maxAge = 0;
+					}
+				}
+			}
+			if (noCache) return 0;
+			if (maxAge >= 0) return now + maxAge * 1000;
+		}
+
+		String exp = header(headers, "Expires");
+		if (exp != null) {
+			Date d = DateUtils.parseDate(exp);
+			return (d == null) ? 0 : Math.max(0, d.getTime());
+		}
+		return 0;
+	}
+
+	/**
+	 * Returns true if the response is marked as public (can be used for requests with credentials).
+	 */
+	public static boolean isPublic(Map<String, List<String>> headers) {
+		String cc = header(headers, "Cache-Control");
+		if (cc == null) return false;
+		for (String d : cc.toLowerCase().split(",")) {
+			if (d.trim().equals("public")) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Builds an entry for a response (received with a full body) or returns null if it can't be stored.
+	 */
+	public static Entry toEntry(HTTP.HTTPResponse r, long now) {
+		if (r.responseCode != 200 || r.responseBytes == null) return null;
+		Entry e = new Entry();
+		e.expires = expires(r.responseHeaders, now);
+		e.etag = header(r.responseHeaders, "ETag");
+		e.lastModified = header(r.responseHeaders, "Last-Modified");
+		if (e.expires < 0 || (e.expires <= now && !e.hasValidators())) return null;
+
+		e.body = r.responseBytes;
+		e.responseCode = r.responseCode;
+		e.headers = r.responseHeaders;
+		e.contentType = r.contentType;
+		e.shared = isPublic(r.responseHeaders);
+		return e;
+	}
+
+	/**
+	 * Updates the entry freshness from the headers of a 304 reply.
+	 */
+	public synchronized void refresh(Entry e, Map<String, List<String>> headers, long now) {
+		long exp = expires(headers, now);
+		e.expires = (exp < 0) ? 0 : exp;
+		String etag = header(headers, "ETag");
+		if (etag != null) e.etag = etag;
+		String lastModified = header(headers, "Last-Modified");
+		if (lastModified != null) e.lastModified = lastModified;
+	}
+
+	public synchronized Entry get(String key) {
+		return entries.get(key);
+	}
+
+	public synchronized void put(String key, Entry e) {
+		remove(key);
+		if (e.size() > maxBytes) return;
+		entries.put(key, e);
+		bytes += e.size();
+		evict();
+	}
+
+	public synchronized void remove(String key) {
+		Entry old = entries.remove(key);
+		if (old != null) bytes -= old.size();
+	}
+
+	protected void evict() {
+		Iterator<Entry> it = entries.values().iterator();
+		while (bytes > maxBytes && it.hasNext()) {
+			bytes -= it.next().size();
+			it.remove();
+			evictions++;
+		}
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+		varies.clear();
+		bytes = 0;
+	}
+
+	/**
+	 * Sets the maximum number of bytes kept (evicting the least recently used entries if needed).
+	 */
+	public synchronized void setMaxBytes(long maxBytes) {
+		this.maxBytes = (maxBytes <= 0) ? DEFAULT_MAX_BYTES : maxBytes;
+		evict();
+	}
+
+	public synchronized void hit() {
+		hits++;
+	}
+
+	public synchronized void revalidated() {
+		revalidations++;
+	}
+
+	public synchronized void miss() {
+		misses++;
+	}
+
+	/**
+	 * Returns hits, revalidations, misses, evictions, entries, bytes and maxBytes.
+	 */
+	public synchronized long[] getStats() {
+		return new long[] { hits, revalidations, misses, evictions, entries.size(), bytes, maxBytes };
+	}
+
+	public synchronized void resetStats() {
+		hits = revalidations = misses = evictions = 0;
+	}
+}
@@ -0,0 +1,225 @@
+package wedo.openaf.plugins;
+
+import java.net.URI;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.HttpHost;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+
+/**
+ * Connection pool shared by all the HTTP plugin objects using the pooled mode. A single Apache httpclient keeps
+ * the connections alive and reuses them between requests (and HTTP objects) to the same route, so only the first
+ * request to a host pays the TCP/TLS handshake. Cookies and credentials are kept by each HTTP object and passed on
+ * each request context.
+ * Asynchronous requests are queued per host and dispatched to a shared pool of daemon threads keeping, at most,
+ * a given number of requests in flight per host (the others wait on the host queue without holding a thread).
+ *
+ * @author Nuno Aguiar <nuno.aguiar@wedotechnologies.com>
+ *
+ */
+public class HTTPClientPool {
+	protected static final int DEFAULT_MAX_TOTAL = 200;
+	protected static final int DEFAULT_MAX_PER_ROUTE = 20;
+	protected static final int VALIDATE_AFTER_INACTIVITY = 2000;
+	protected static final long MAX_IDLE = 60000;
+	protected static final int DEFAULT_ASYNC_THREADS = 32;
+
+	protected static PoolingHttpClientConnectionManager manager;
+	protected static CloseableHttpClient client;
+	protected static int maxTotal = DEFAULT_MAX_TOTAL, maxPerRoute = DEFAULT_MAX_PER_ROUTE;
+
+	protected static ExecutorService asyncExecutor;
+	protected static int asyncThreads = DEFAULT_ASYNC_THREADS, asyncPerHost = DEFAULT_MAX_PER_ROUTE;
+	protected static final HashMap<String, Host> hosts = new HashMap<String, Host>();
+
+	/**
+	 * The asynchronous requests in flight and waiting for a host.
+	 */
+	protected static class Host {
+		protected int inFlight = 0;
+		protected ArrayDeque<Runnable> queue = new ArrayDeque<Runnable>();
+	}
+
+	protected static synchronized PoolingHttpClientConnectionManager getManager() {
+		if (manager == null) {
+			Registry<ConnectionSocketFactory> registry = RegistryBuilder.<ConnectionSocketFactory>create()
+				.register("http", PlainConnectionSocketFactory.getSocketFactory())
+				.register("https", SSLConnectionSocketFactory.getSystemSocketFactory())
+				.build();
+			manager = new PoolingHttpClientConnectionManager(registry);
+			manager.setMaxTotal(maxTotal);
+			manager.setDefaultMaxPerRoute(maxPerRoute);
+			// Check connections idle for a while before reusing them (the server might have closed them)
+			manager.setValidateAfterInactivity(VALIDATE_AFTER_INACTIVITY);
+		}
+		return manager;
+	}
+
+	/**
+	 * Returns the shared client (created on first use).
+	 */
+	public static synchronized CloseableHttpClient getClient() {
+		if (client == null) {
+			client = HttpClients.custom()
+				.useSystemProperties()
+				.setConnectionManager(getManager())
+				.evictExpiredConnections()
+				.evictIdleConnections(MAX_IDLE, TimeUnit.MILLISECONDS)
+				.build();
+		}
+		return client;
+	}
+
+	/**
+	 * Sets the maximum number of connections in total and per route (values &lt;= 0 keep the current one).
+	 */
+	public static synchronized void setLimits(int total, int perRoute) {
+		if (total > 0) maxTotal = total;
+		if (perRoute > 0) maxPerRoute = perRoute;
+		if (manager != null) {
+			manager.setMaxTotal(maxTotal);
+			manager.setDefaultMaxPerRoute(maxPerRoute);
+		}
+	}
+
+	/**
+	 * Sets the maximum number of connections to the host (scheme, host and port) of url.
+	 */
+	public static void setRouteLimit(String url, int max) {
+		URI uri = URI.create(url);
+		String scheme = (uri.getScheme() == null) ? "http" : uri.getScheme().toLowerCase();
+		int port = uri.getPort();
+		if (port < 0) port = scheme.equals("https") ? 443 : 80;
+		HttpHost host = new HttpHost(uri.getHost(), port, scheme);
+		getManager().setMaxPerRoute(new HttpRoute(host, null, scheme.equals("https")), max);
+	}
+
+	/**
+	 * Returns the total pool statistics.
+	 */
+	public static PoolStats getStats() {
+		return getManager().getTotalStats();
+	}
+
+	/**
+	 * Closes all idle connections.
+	 */
+	public static void closeIdle() {
+		if (manager != null) manager.closeIdleConnections(0, TimeUnit.MILLISECONDS);
+	}
+
+	protected static synchronized ExecutorService getAsyncExecutor() {
+		if (asyncExecutor == null) {
+			asyncExecutor = Executors.newFixedThreadPool(asyncThreads, new ThreadFactory() {
+				protected AtomicInteger count = new AtomicInteger(0);
+
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "HTTP async " + count.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return asyncExecutor;
+	}
+
+	/**
+	 * Sets the number of threads executing asynchronous requests and the maximum number of asynchronous requests
+	 * in flight per host (values &lt;= 0 keep the current one). Requests already dispatched keep the previous threads.
+	 */
+	public static synchronized void setAsync(int threads, int perHost) {
+		if (perHost > 0) asyncPerHost = perHost;
+		if (threads > 0 && threads != asyncThreads) {
+			asyncThreads = threads;
+			if (asyncExecutor != null) {
+				asyncExecutor.shutdown();
+				asyncExecutor = null;
+			}
+		}
+	}
+
+	/**
+	 * Returns the key (scheme, host and port) used to limit the asynchronous requests in flight for url.
+	 */
+	public static String hostKey(String url) {
+		URI uri = URI.create(url);
+		return uri.getScheme() + "://" + uri.getHost() + ":" + uri.getPort();
+	}
+
+	/**
+	 * Submits call to be executed asynchronously once there are less than the maximum number of asynchronous
+	 * requests in flight for host (see hostKey).
+	 */
+	public static <T> Future<T> submit(final String host, Callable<T> call) {
+		final FutureTask<T> task = new FutureTask<T>(call);
+		Runnable run = new Runnable() {
+			public void run() {
+				try {
+					task.run();
+				} finally {
+					next(host);
+				}
+			}
+		};
+
+		boolean dispatch = false;
+		synchronized(hosts) {
+			Host h = hosts.get(host);
+			if (h == null) {
+				h = new Host();
+				hosts.put(host, h);
+			}
+			if (h.inFlight < asyncPerHost) {
+				h.inFlight++;
+				dispatch = true;
+			} else {
+				h.queue.add(run);
+			}
+		}
+		if (dispatch) getAsyncExecutor().execute(run);
+		return task;
+	}
+
+	/**
+	 * Dispatches the next request waiting for host (called when one finishes).
+	 */
+	protected static void next(String host) {
+		Runnable run = null;
+		synchronized(hosts) {
+			Host h = hosts.get(host);
+			if (h == null) return;
+			run = h.queue.poll();
+			if (run == null && --h.inFlight <= 0) hosts.remove(host);
+		}
+		if (run != null) getAsyncExecutor().execute(run);
+	}
+
+	/**
+	 * Returns the number of asynchronous requests waiting to be dispatched.
+	 */
+	public static int getAsyncQueued() {
+		int n = 0;
+		synchronized(hosts) {
+			for (Host h : hosts.values()) n += h.queue.size();
+		}
+		return n;
+	}
+}
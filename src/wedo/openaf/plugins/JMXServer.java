@@ -52,6 +52,7 @@ import org.mozilla.javascript.NativeObject;
 import org.mozilla.javascript.Scriptable;
 import org.mozilla.javascript.ScriptableObject;
 import org.mozilla.javascript.Undefined;
+import org.mozilla.javascript.Wrapper;
 import org.mozilla.javascript.annotations.JSConstructor;
 import org.mozilla.javascript.annotations.JSFunction;
 
@@ -465,4 +466,17 @@ public class JMXServer extends ScriptableObject {
 		}
 	}
 	
+	/**
+	 * <odoc>
+	 * <key>JMXServer.addJavaBean(aObjectName, aJavaMBean)</key>
+	 * Registers an existing java standard MBean object (aJavaMBean; e.g. returned by DB.getStatsBean) with the 
+	 * JMX object name aObjectName. The server must be started before.
+	 * </odoc>
+	 */
+	@JSFunction
+	public void addJavaBean(String name, Object bean) throws JMException {
+		if (bean instanceof Wrapper) bean = ((Wrapper) bean).unwrap();
+		if (mxs != null) mxs.addBean(name, bean);
+	}
+	
 }
\ No newline at end of file
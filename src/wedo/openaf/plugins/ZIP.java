@@ -23,8 +23,7 @@ import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
+import java.util.zip.Deflater;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 import java.util.zip.ZipInputStream;
@@ -47,6 +46,7 @@ import org.mozilla.javascript.annotations.JSFunction;
 import wedo.openaf.AFCmdBase;
 import wedo.openaf.SimpleLog;
 import wedo.openaf.SimpleLog.logtype;
+import wedo.openaf.core.Compression;
 
 /**
  * Core ZIP plugin 
@@ -94,23 +94,14 @@ public class ZIP extends ScriptableObject {
 	
 	/**
 	 * <odoc>
-	 * <key>ZIP.gzip(anObject) : ArrayOfBytes</key>
-	 * Will gzip/compress the contents of the anObject into an array of bytes. To uncompress use ZIP.gunzip.
+	 * <key>ZIP.gzip(anObject, aLevel) : ArrayOfBytes</key>
+	 * Will gzip/compress the contents of the anObject into an array of bytes. To uncompress use ZIP.gunzip. Optionally
+	 * you can provide the compression aLevel (0 to 9, "fast", "small" or "default").
 	 * </odoc>
 	 */
 	@JSFunction
-	public static Object gzip(Object dataIn) throws IOException {
-		ByteArrayOutputStream baos = new ByteArrayOutputStream();
-		
-		GZIPOutputStream gos = new GZIPOutputStream(baos);
-		IOUtils.write((byte[]) dataIn, gos);
-		
-		gos.flush();
-		gos.close();
-		baos.flush();
-		baos.close();
-		
-		return baos.toByteArray();
+	public static Object gzip(Object dataIn, Object level) throws IOException {
+		return Compression.gzip((byte[]) dataIn, Compression.parseLevel(level), Deflater.DEFAULT_STRATEGY, Compression.getDefaultEngine());
 	}
 	
 	/**
@@ -121,16 +112,7 @@ public class ZIP extends ScriptableObject {
 	 */
 	@JSFunction
 	public static Object gunzip(Object dataIn) throws IOException {
-		ByteArrayOutputStream baos = new ByteArrayOutputStream();
-		
-		GZIPInputStream gis = new GZIPInputStream(new ByteArrayInputStream((byte[]) dataIn));
-		IOUtils.copy(gis, baos);
-		
-		gis.close();
-		baos.flush();
-		baos.close();
-		
-		return baos.toByteArray();		
+		return Compression.gunzip((byte[]) dataIn);
 	}
 	
 	/**
@@ -49,4 +49,15 @@
         today = ow.format.fromDate(new Date(), "yyyyMMdd");
         ow.test.assert(ow.ch.utils.getElasticIndex("a test", "yyyyMMdd")(), "a test-" + today, "Problem with getElasticIndex custom format.");
     };
+
+    exports.testFastCompression = function() {
+        $ch("bigFast").create(true, "big", { compression: "fast" });
+        for(var i = 0; i < 100; i++) {
+            $ch("bigFast").set({ k: i }, { k: i, v: "value " + i, d: "çãé" });
+        }
+        ow.test.assert($ch("bigFast").size(), 100, "Channel with fast compression didn't set all values.");
+        ow.test.assert($ch("bigFast").get({ k: 42 }).v, "value 42", "Channel with fast compression didn't return the right value.");
+        ow.test.assert($ch("bigFast").get({ k: 7 }).d, "çãé", "Channel with fast compression didn't keep the encoding.");
+        $ch("bigFast").destroy();
+    };
 })();
\ No newline at end of file
@@ -0,0 +1,307 @@
+(function() {
+    exports.testDBCursor = function() {
+        var db = createDBInMem("testCursor", false);
+        db.u("create table test (c1 number(12), c2 varchar2(255))");
+        var values = [];
+        for(var i = 0; i < 1000; i++) { values.push([i, String(i)]); }
+        db.usArray("insert into test (c1, c2) values (?, ?)", values);
+        db.commit();
+
+        var cur = db.qsCursor("select c1, c2 from test where c1 >= ? order by c1", [ 10 ], 100);
+        var r = cur.next();
+        ow.test.assert(r.C1, 10, "Problem with the first line of DB.qsCursor.");
+        ow.test.assert(r.C2, "10", "Problem with the first line string of DB.qsCursor.");
+
+        var sum = 0;
+        cur.forEach(function(r) { sum += r.C1; });
+        ow.test.assert(cur.getCount(), 990, "Problem with the number of lines read by DB.qsCursor.");
+        ow.test.assert(sum, 499455 - 10, "Problem with the lines read by DB.qsCursor forEach.");
+        ow.test.assert(cur.hasNext(), false, "Problem with DB.qsCursor end of lines.");
+
+        cur = db.qsCursor("select c1 from test order by c1", [], 10);
+        var c = 0;
+        cur.forEach(function(r) { c++; if (c >= 5) return false; });
+        cur.close();
+        ow.test.assert(c, 5, "Problem with stopping DB.qsCursor forEach.");
+
+        db.close();
+    };
+
+    exports.testDBTypes = function() {
+        var db = createDBInMem("testTypes", false);
+        db.u("create table test (n number(12,2), s varchar2(255), c clob, b blob)");
+        db.us("insert into test (n, s) values (?, ?)", [ 1.5, "abc" ]);
+        db.uLob("insert into test (n, c) values (2, ?)", "a clob value");
+        db.uLob("insert into test (n, b) values (3, ?)", af.fromString2Bytes("a blob value"));
+        db.commit();
+
+        var res = db.q("select * from test order by n").results;
+        ow.test.assert(res[0].N, 1.5, "Problem with DB number conversion.");
+        ow.test.assert(res[0].S, "abc", "Problem with DB string conversion.");
+        ow.test.assert(res[0].C, null, "Problem with DB null clob conversion.");
+        ow.test.assert(res[1].C, "a clob value", "Problem with DB clob conversion.");
+        ow.test.assert(res[1].S, null, "Problem with DB null string conversion.");
+        ow.test.assert(af.fromBytes2String(res[2].B), "a blob value", "Problem with DB blob conversion.");
+
+        var res2 = db.qs("select * from test order by n", []).results;
+        ow.test.assert(stringify(res2), stringify(res), "Problem with DB.qs conversion compared with DB.q.");
+
+        db.close();
+    };
+
+    exports.testDBNumericMode = function() {
+        var db = createDBInMem("testNumeric", false);
+        db.u("create table test (i number(12), d number(12,2), f double)");
+        db.us("insert into test (i, d, f) values (?, ?, ?)", [ 123456789012, 1.25, 0.5 ]);
+        db.us("insert into test (i, d, f) values (?, ?, ?)", [ null, null, null ]);
+        db.commit();
+
+        var res = db.q("select * from test order by i").results;
+        ow.test.assert(res[0].I, null, "Problem with DB null integer conversion.");
+        ow.test.assert(res[0].D, null, "Problem with DB null decimal conversion.");
+        ow.test.assert(res[0].F, null, "Problem with DB null double conversion.");
+        ow.test.assert(res[1].I, 123456789012, "Problem with DB integer conversion.");
+        ow.test.assert(res[1].D, 1.25, "Problem with DB decimal conversion.");
+        ow.test.assert(res[1].F, 0.5, "Problem with DB double conversion.");
+
+        ow.test.assert(db.getNumericMode(), "double", "Problem with the default DB numeric mode.");
+        ow.test.assert(String(db.qsColumnar("select i from test where i is not null", []).data.I.getClass().getName()), "[D", "Problem with the default DB numeric mode on integer columns.");
+
+        db.setNumericMode("auto");
+        ow.test.assert(db.qs("select i from test where i is not null", []).results[0].I, 123456789012, "Problem with DB auto numeric mode.");
+        ow.test.assert(String(db.qsColumnar("select i from test where i is not null", []).data.I.getClass().getName()), "[J", "Problem with DB auto numeric mode on integer columns.");
+        ow.test.assert(String(db.qsColumnar("select d from test where d is not null", []).data.D.getClass().getName()), "[D", "Problem with DB auto numeric mode on decimal columns.");
+
+        db.setNumericMode("bigdecimal");
+        ow.test.assert(String(db.q("select d from test where d is not null").results[0].D.toPlainString()), "1.25", "Problem with DB bigdecimal numeric mode.");
+        ow.test.assert(db.getNumericMode(), "bigdecimal", "Problem with DB.getNumericMode.");
+
+        db.close();
+    };
+
+    exports.testDBColumnar = function() {
+        var db = createDBInMem("testColumnar", false);
+        db.u("create table test (i number(12), d number(12,2), s varchar2(255))");
+        db.usArray("insert into test (i, d, s) values (?, ?, ?)", [ [1, 1.5, "a"], [2, null, "b"], [3, 2.5, null] ]);
+        db.commit();
+
+        var res = db.qsColumnar("select i, d, s from test where i > ? order by i", [ 0 ]);
+        ow.test.assert(res.count, 3, "Problem with DB.qsColumnar count.");
+        ow.test.assert(res.columns.join(","), "I,D,S", "Problem with DB.qsColumnar columns.");
+        ow.test.assert(res.data.I[0] + res.data.I[1] + res.data.I[2], 6, "Problem with DB.qsColumnar numeric column.");
+        ow.test.assert(res.data.D[2], 2.5, "Problem with DB.qsColumnar double column.");
+        ow.test.assert(isNaN(res.data.D[1]), true, "Problem with DB.qsColumnar double null value.");
+        ow.test.assert(res.nulls.D[1], true, "Problem with DB.qsColumnar nulls.");
+        ow.test.assert(isUnDef(res.nulls.I), true, "Problem with DB.qsColumnar columns without nulls.");
+        ow.test.assert(res.data.S[1], "b", "Problem with DB.qsColumnar string column.");
+        ow.test.assert(res.data.S[2], null, "Problem with DB.qsColumnar string null value.");
+
+        db.close();
+    };
+
+    exports.testDBPool = function() {
+        var db = new DB("org.h2.Driver", "jdbc:h2:mem:testPool;DB_CLOSE_DELAY=-1", "sa", "sa", { pool: { min: 1, max: 3, validationQuery: "select 1" } });
+        db.u("create table test (c1 number(12))");
+        db.commit();
+        ow.test.assert(db.getPoolStats().active, 0, "Problem with DB pool connection release after commit.");
+
+        plugin("Threads");
+        var t = new Threads();
+        for(var ii = 0; ii < 6; ii++) {
+            t.addThread(function() {
+                for(var i = 0; i < 20; i++) {
+                    db.us("insert into test (c1) values (?)", [ i ]);
+                    db.commit();
+                    db.q("select count(1) from test");
+                }
+            });
+        }
+        t.start();
+
+        var stats = db.getPoolStats();
+        ow.test.assert(Number(db.q("select count(1) as C from test").results[0].C), 120, "Problem with concurrent DB pool usage.");
+        ow.test.assert(stats.active, 0, "Problem with DB pool active connections.");
+        ow.test.assert(stats.created <= 3, true, "Problem with DB pool max connections.");
+        db.close();
+
+        var dbc = new DB("org.h2.Driver", "jdbc:h2:mem:testPool;DB_CLOSE_DELAY=-1", "sa", "sa", { pool: { max: 2, lease: "call" } });
+        dbc.us("insert into test (c1) values (?)", [ 1000 ]);
+        ow.test.assert(dbc.getPoolStats().active, 0, "Problem with DB pool lease per call.");
+        var other = createDBInMem("testPool", false);
+        ow.test.assert(Number(other.q("select count(1) as C from test where c1 = 1000").results[0].C), 1, "Problem with DB pool lease per call commit.");
+        other.close();
+        dbc.close();
+    };
+
+    exports.testDBStatementCache = function() {
+        var db = new DB("org.h2.Driver", "jdbc:h2:mem:testStmtCache", "sa", "sa", { statementCache: { size: 2 } });
+        db.u("create table test (c1 number(12))");
+        for(var i = 0; i < 10; i++) {
+            db.us("insert into test (c1) values (?)", [ i ]);
+        }
+        db.commit();
+
+        var stats = db.getStatementCacheStats();
+        ow.test.assert(stats.misses, 1, "Problem with DB statement cache misses.");
+        ow.test.assert(stats.hits, 9, "Problem with DB statement cache hits.");
+
+        db.qs("select c1 from test where c1 = ?", [ 1 ]);
+        db.qs("select c1 from test where c1 > ?", [ 1 ]);
+        ow.test.assert(db.qs("select c1 from test where c1 = ?", [ 2 ]).results[0].C1, 2, "Problem with DB cached statement reuse.");
+        stats = db.getStatementCacheStats();
+        ow.test.assert(stats.size, 2, "Problem with DB statement cache size.");
+        ow.test.assert(stats.evictions, 1, "Problem with DB statement cache evictions.");
+        ow.test.assert(db.getStatements().indexOf("insert into test (c1) values (?)"), -1, "Problem with DB statement cache LRU eviction.");
+
+        db.closeStatement("select c1 from test where c1 = ?");
+        ow.test.assert(db.getStatements().length, 1, "Problem with DB.closeStatement.");
+        db.closeAllStatements();
+        ow.test.assert(db.getStatementCacheStats().size, 0, "Problem with DB.closeAllStatements.");
+
+        db.close();
+    };
+
+    exports.testDBBulkLoad = function() {
+        var db = new DB("org.h2.Driver", "jdbc:h2:mem:testBulk;DB_CLOSE_DELAY=-1", "sa", "sa");
+        db.u("create table test (c1 number(12), c2 varchar2(255))");
+        db.u("create table copy (c1 number(12), c2 varchar2(255))");
+        db.commit();
+
+        var rows = [];
+        for(var i = 0; i < 2500; i++) { rows.push([ i, "row " + i ]); }
+        var res = db.bulkLoad("insert into test (c1, c2) values (?, ?)", rows, { threads: 3, batchSize: 100, commitEvery: 500 });
+        ow.test.assert(res.rows, 2500, "Problem with DB.bulkLoad rows.");
+        ow.test.assert(res.batches, 25, "Problem with DB.bulkLoad batches.");
+        ow.test.assert(Number(db.q("select count(1) as C, sum(c1) as S from test").results[0].S), 3123750, "Problem with DB.bulkLoad data.");
+        ow.test.assert(db.q("select c2 from test where c1 = 42").results[0].C2, "row 42", "Problem with DB.bulkLoad string values.");
+
+        var cur = db.qsCursor("select c1, c2 from test where c1 < ?", [ 1000 ]);
+        res = db.bulkLoad("insert into copy (c1, c2) values (?, ?)", cur, { threads: 2, batchSize: 64 });
+        ow.test.assert(res.rows, 1000, "Problem with DB.bulkLoad from a cursor.");
+
+        var n = 0;
+        res = db.bulkLoad("insert into copy (c1, c2) values (?, ?)", function() { if (n < 10) return [ n++, null ]; });
+        ow.test.assert(Number(db.q("select count(1) as C from copy where c2 is null").results[0].C), 10, "Problem with DB.bulkLoad from a function.");
+
+        var err;
+        try { db.bulkLoad("insert into test (c1, c2) values (?, ?)", [ [ 1, "a" ], [ "x", "b" ] ]); } catch(e) { err = e; }
+        ow.test.assert(isDef(err), true, "Problem with DB.bulkLoad errors.");
+
+        db.close();
+    };
+
+    exports.testDBLobStream = function() {
+        var db = createDBInMem("testLobStream", false);
+        db.u("create table test (id number(12), c clob, b blob)");
+        db.u("insert into test (id) values (1)");
+
+        var text = "";
+        for(var i = 0; i < 5000; i++) { text += "line " + i + " çã\n"; }
+        io.writeFileString("autoTestAll.DB.lob.txt", text);
+
+        ow.test.assert(db.uLobStream("update test set c = ? where id = ?", "autoTestAll.DB.lob.txt", [ 1 ]), 1, "Problem with DB.uLobStream from a file.");
+        ow.test.assert(db.uLobStream("update test set b = ? where id = ?", new java.io.ByteArrayInputStream(af.fromString2Bytes(text)), [ 1 ]), 1, "Problem with DB.uLobStream from a stream.");
+        db.commit();
+
+        // Explicit LOB types
+        db.u("insert into test (id) values (3)");
+        io.writeFileString("autoTestAll.DB.lob.latin1", text, "ISO-8859-1");
+        ow.test.assert(db.uLobStream("update test set c = ? where id = ?", "autoTestAll.DB.lob.latin1", [ 3 ], "clob:ISO-8859-1"), 1, "Problem with DB.uLobStream with a clob charset.");
+        ow.test.assert(db.uLobStream("update test set b = ? where id = ?", "autoTestAll.DB.lob.latin1", [ 3 ], "blob"), 1, "Problem with DB.uLobStream with the blob type.");
+        db.commit();
+        var r2 = db.q("select c, b from test where id = 3").results[0];
+        ow.test.assert(r2.C, text, "Problem with DB.uLobStream clob charset content.");
+        ow.test.assert(String(new java.lang.String(r2.B, "ISO-8859-1")), text, "Problem with DB.uLobStream blob type content.");
+        var failed = false;
+        try { db.uLobStream("update test set c = ? where id = ?", "autoTestAll.DB.lob.latin1", [ 3 ], "text"); } catch(e) { failed = true; }
+        ow.test.assert(failed, true, "DB.uLobStream didn't fail with an unknown LOB type.");
+        db.u("delete from test where id = 3");
+        db.commit();
+        af.rm("autoTestAll.DB.lob.latin1");
+
+        var n = db.qLobStream("select c from test where id = ?", [ 1 ], "autoTestAll.DB.lob.out");
+        ow.test.assert(Number(n), text.length, "Problem with DB.qLobStream to a file.");
+        ow.test.assert(io.readFileString("autoTestAll.DB.lob.out"), text, "Problem with DB.qLobStream clob content.");
+
+        var os = new java.io.ByteArrayOutputStream();
+        db.qLobStream("select b from test where id = ?", [ 1 ], os);
+        ow.test.assert(String(os.toString("UTF-8")), text, "Problem with DB.qLobStream blob content.");
+
+        var is = db.qLobStream("select b from test where id = ?", [ 1 ]);
+        ow.test.assert(af.fromBytes2String(Packages.org.apache.commons.io.IOUtils.toByteArray(is)), text, "Problem with DB.qLobStream returned stream.");
+        is.close();
+        ow.test.assert(db.qLobStream("select b from test where id = ?", [ 2 ]), null, "Problem with DB.qLobStream without rows.");
+
+        af.rm("autoTestAll.DB.lob.txt");
+        af.rm("autoTestAll.DB.lob.out");
+        db.close();
+    };
+
+    exports.testDBAsync = function() {
+        var db = new DB("org.h2.Driver", "jdbc:h2:mem:testAsync;DB_CLOSE_DELAY=-1", "sa", "sa", { pool: { max: 3 } });
+        db.u("create table test (c1 number(12))");
+        db.commit();
+
+        var fs = [];
+        for(var i = 0; i < 10; i++) { fs.push(db.usAsync("insert into test (c1) values (?)", [ i ])); }
+        var sum = 0;
+        for(var i in fs) { sum += Number(fs[i].get()); }
+        ow.test.assert(sum, 10, "Problem with DB.usAsync.");
+
+        var f = db.qsAsync("select count(1) as C from test where c1 >= ?", [ 0 ]);
+        ow.test.assert(Number(f.get().results[0].C), 10, "Problem with DB.qsAsync.");
+
+        var res, err;
+        $doWait(db.qsPromise("select sum(c1) as S from test", []).then(function(r) { res = r; }));
+        $doWait(db.qsPromise("select * from notthere", []).catch(function(e) { err = e; }));
+        ow.test.assert(Number(res.results[0].S), 45, "Problem with DB.qsPromise.");
+        ow.test.assert(isDef(err), true, "Problem with DB.qsPromise failure.");
+        ow.test.assert(db.getPoolStats().active, 0, "Problem with DB async connection release.");
+
+        // Pending changes of the calling thread aren't committed by async calls
+        db.u("insert into test (c1) values (100)");
+        db.usAsync("insert into test (c1) values (101)", []).get();
+        db.rollback();
+        ow.test.assert(Number(db.q("select count(1) as C from test where c1 >= 100").results[0].C), 1, "Problem with DB.usAsync isolation.");
+
+        // A failed async update is rolled back
+        var failed = false;
+        try { db.usAsync("insert into test (c1) values ('x')", []).get(); } catch(e) { failed = true; }
+        ow.test.assert(failed, true, "Problem with DB.usAsync failure.");
+        ow.test.assert(db.getPoolStats().active, 0, "Problem with DB async connection release after failure.");
+        db.close();
+
+        // Without a pool async calls aren't allowed
+        var db2 = new DB("org.h2.Driver", "jdbc:h2:mem:testAsync2", "sa", "sa");
+        var failed = false;
+        try { db2.qsAsync("select 1 from dual", []); } catch(e) { failed = true; }
+        ow.test.assert(failed, true, "DB.qsAsync didn't fail without a pool.");
+        db2.close();
+    };
+
+    exports.testDBStats = function() {
+        var db = createDBInMem("testStats", false);
+        db.u("create table test (c1 number(12), c2 varchar2(255))");
+        for(var i = 0; i < 5; i++) { db.u("insert into test (c1, c2) values (" + i + ", 'v" + i + "')"); }
+        db.qs("select * from test where c1 > ?", [ 1 ]);
+        try { db.q("select * from notthere"); } catch(e) { }
+
+        var stats = db.getStats();
+        ow.test.assert(stats.calls, 8, "Problem with DB.getStats calls.");
+        ow.test.assert(stats.errors, 1, "Problem with DB.getStats errors.");
+        var ins = $from(stats.statements).equals("sql", "insert into test (c1, c2) values (?, ?)").at(0);
+        ow.test.assert(isDef(ins), true, "Problem with DB.getStats SQL normalisation.");
+        ow.test.assert(ins.calls, 5, "Problem with DB.getStats per statement calls.");
+        ow.test.assert(ins.rows, 5, "Problem with DB.getStats per statement rows.");
+        ow.test.assert($from(stats.statements).equals("sql", "select * from test where c1 > ?").at(0).rows, 3, "Problem with DB.getStats rows returned.");
+
+        var cur = db.qsCursor("select * from test", []);
+        while(cur.hasNext()) cur.next();
+        ow.test.assert(db.getStats().rows, 13, "Problem with DB.getStats for cursors.");
+
+        ow.test.assert(db.getStatsBean().getCalls(), 9, "Problem with DB.getStatsBean.");
+        db.resetStats();
+        ow.test.assert(db.getStats().calls, 0, "Problem with DB.resetStats.");
+        db.close();
+    };
+})();
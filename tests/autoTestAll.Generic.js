@@ -325,4 +325,189 @@
             csv.csv()[0].B != 'a' ||
             csv.csv()[0].C != 'b') throw "Failed CSV generation on toCsv!";    
     };
+
+    exports.testCSVQuoted = function() {
+        var csv = new CSV("A;B;C\n1;\"x;y\";\"multi\nline \"\"quoted\"\"\"\n2;\"\";z\n\n");
+        var res = csv.csv();
+        ow.test.assert(res.length, 2, "Problem with CSV records with embedded line breaks.");
+        ow.test.assert(res[0].B, "x;y", "Problem with CSV quoted separator.");
+        ow.test.assert(res[0].C, "multi\nline \"quoted\"", "Problem with CSV multi-line quoted field.");
+        ow.test.assert(res[1].A, 2, "Problem with CSV numbers.");
+        ow.test.assert(res[1].B, "", "Problem with CSV empty quoted field.");
+
+        var csv2 = new CSV(csv.w());
+        ow.test.assert(csv2.csv()[0].C, res[0].C, "Problem with CSV round trip of quoted fields.");
+    };
+
+    exports.testCSVStream = function() {
+        var file = "autoTestAll.Generic.stream.csv";
+        var lines = [ "ID;NAME" ];
+        for(var i = 1; i <= 1000; i++) { lines.push(i + ";\"name " + i + "\""); }
+        io.writeFileString(file, lines.join("\r\n"));
+
+        var csv = new CSV(), sum = 0, last;
+        var n = csv.readFileStream(file, function(r, l) { sum += r.ID; last = l; });
+        ow.test.assert(Number(n), 1000, "Problem with CSV.readFileStream count.");
+        ow.test.assert(sum, 500500, "Problem with CSV.readFileStream values.");
+        ow.test.assert(last, 1000, "Problem with CSV.readFileStream line numbers.");
+
+        var names = [];
+        n = csv.readStream(io.readFileStream(file), function(r) { names.push(r.NAME); if (names.length >= 3) return false; });
+        ow.test.assert(names.join(","), "name 1,name 2,name 3", "Problem with CSV.readStream stopping.");
+
+        af.rm(file);
+    };
+
+    exports.testCSVParallel = function() {
+        var file = "autoTestAll.Generic.parallel.csv";
+        var lines = [ "ID;NAME;VALUE" ];
+        for(var i = 1; i <= 2000; i++) { lines.push(i + ";\"name\n" + i + "; \"\"q\"\"\";" + (i % 7)); }
+        io.writeFileString(file, lines.join("\r\n") + "\n");
+
+        var csv = new CSV(), sum = 0, count = 0, chunks = [], ok = true;
+        var n = csv.readFileParallel(file, function(rs, c) {
+            chunks.push(c);
+            rs.forEach(function(r) {
+                count++;
+                sum += r.ID;
+                if (r.ID != count || r.NAME != "name\n" + r.ID + "; \"q\"" || r.VALUE != r.ID % 7) ok = false;
+            });
+        }, { threads: 4, chunkSize: 1024 });
+        ow.test.assert(Number(n), 2000, "Problem with CSV.readFileParallel count.");
+        ow.test.assert(count, 2000, "Problem with CSV.readFileParallel records.");
+        ow.test.assert(sum, 2001000, "Problem with CSV.readFileParallel values.");
+        ow.test.assert(ok, true, "Problem with CSV.readFileParallel order or quoted fields.");
+        ow.test.assert(chunks.length > 1, true, "Problem with CSV.readFileParallel chunks.");
+
+        sum = 0;
+        n = csv.readFileParallel(file, function(rs) { rs.forEach(function(r) { sum += r.ID; }); }, { threads: 4, chunkSize: 1024, ordered: false });
+        ow.test.assert(sum, 2001000, "Problem with unordered CSV.readFileParallel.");
+
+        n = csv.readFileParallel(file, { threads: 2, chunkSize: 4096 });
+        var res = csv.csv();
+        ow.test.assert(res.length, 2000, "Problem with CSV.readFileParallel into the internal representation.");
+        ow.test.assert(res[1999].ID, 2000, "Problem with CSV.readFileParallel internal representation order.");
+
+        $ch("__csvParallel").create();
+        n = csv.readFile2Channel(file, "__csvParallel", [ "ID" ], { chunkSize: 2048 });
+        ow.test.assert($ch("__csvParallel").size(), 2000, "Problem with CSV.readFile2Channel.");
+        $ch("__csvParallel").destroy();
+
+        af.rm(file);
+    };
+
+    exports.testCSVSchema = function() {
+        var csv = new CSV();
+        csv.setTypeInference(10, true);
+        csv.fromCsv("ID;AMOUNT;ACTIVE;DAY;NAME;CODE\n1;1.5;true;2017-01-31;\"a\";007\n2;2;false;2017-02-01;\"b\";N/A\n3;;TRUE;;\"a\";9");
+        var schema = csv.getSchema();
+        ow.test.assert(schema.ID, "long", "Problem with CSV long inference.");
+        ow.test.assert(schema.AMOUNT, "double", "Problem with CSV double inference.");
+        ow.test.assert(schema.ACTIVE, "boolean", "Problem with CSV boolean inference.");
+        ow.test.assert(schema.DAY, "date:yyyy-MM-dd", "Problem with CSV date inference.");
+        ow.test.assert(schema.NAME, "string", "Problem with CSV string inference.");
+        ow.test.assert(schema.CODE, "string", "Problem with CSV mixed values inference.");
+
+        var csv2 = new CSV();
+        csv2.setTypeInference(10);
+        csv2.fromCsv("A;B;C;D;E\n007;+1;0.5;-0;0\n00123;2;10.25;1;-3");
+        var schema2 = csv2.getSchema();
+        ow.test.assert(schema2.A, "string", "Problem with CSV inference of numbers with leading zeros.");
+        ow.test.assert(schema2.B, "string", "Problem with CSV inference of numbers with a sign.");
+        ow.test.assert(schema2.C, "double", "Problem with CSV inference of decimals.");
+        ow.test.assert(schema2.D, "string", "Problem with CSV inference of negative zero.");
+        ow.test.assert(schema2.E, "long", "Problem with CSV inference of zero.");
+        ow.test.assert(csv2.getRecord(1).A, "00123", "Problem with CSV values with leading zeros.");
+
+        // Reading and writing back doesn't change the numbers text
+        var text = "A;B;C;D;E\n10.00;1;1e3;2.5;7\n1.50;2;3;0.25;8\n2;3;4;1;9\n3.5;1e2;5;1.50;010";
+        var csv3 = new CSV();
+        csv3.setTypeInference(3);
+        csv3.fromCsv(text);
+        var schema3 = csv3.getSchema();
+        ow.test.assert(schema3.A, "string", "Problem with CSV inference of trailing decimal zeros.");
+        ow.test.assert(schema3.C, "string", "Problem with CSV inference of exponents.");
+        ow.test.assert(schema3.D, "double", "Problem with CSV inference of decimals.");
+        ow.test.assert(csv3.getRecord(3).D, "1.50", "Problem with non canonical values after the inference sample.");
+        ow.test.assert(csv3.getRecord(3).B, "1e2", "Problem with non canonical values after the inference sample.");
+        ow.test.assert(csv3.getRecord(1).D, 0.25, "Problem with canonical values after inference.");
+        ow.test.assert(csv3.w().replace(/\r/g, "").replace(/"/g, "").trim(), text, "Problem with CSV read and write round trip.");
+
+        ow.test.assert(csv.size(), 3, "Problem with CSV.size.");
+        var r = csv.getRecord(0);
+        ow.test.assert(r.ID === 1 && r.AMOUNT === 1.5 && r.ACTIVE === true, true, "Problem with CSV typed values.");
+        ow.test.assert(r.DAY.getFullYear() == 2017 && r.DAY.getMonth() == 0 && r.DAY.getDate() == 31, true, "Problem with CSV date values.");
+        ow.test.assert(r.CODE, "007", "Problem with CSV string values.");
+        ow.test.assert(csv.getRecord(2).AMOUNT, null, "Problem with CSV empty typed values.");
+        ow.test.assert(csv.getColumn("NAME").join(","), "a,b,a", "Problem with CSV.getColumn.");
+        ow.test.assert(csv.w().split("\n")[1].replace(/\r/g, ""), "1;1.5;true;2017-01-31;\"a\";\"007\"", "Problem with writing typed CSV values.");
+
+        var recs = csv.records(), ids = [];
+        ow.test.assert(recs.length, 3, "Problem with CSV.records length.");
+        ow.test.assert(recs[1].NAME, "b", "Problem with CSV.records access.");
+        Array.prototype.forEach.call(recs, function(r) { ids.push(r.ID); });
+        ow.test.assert(ids.join(","), "1,2,3", "Problem with CSV.records iteration.");
+
+        csv.setSchema({ ID: "string", CODE: "long", DAY: { type: "date", format: "yyyy-MM-dd" } });
+        csv.fromCsv("ID;CODE;DAY\n1;10;2017-03-04\n2;N/A;2017-03-05");
+        var res = csv.csv();
+        ow.test.assert(res[0].ID, "1", "Problem with CSV schema string.");
+        ow.test.assert(res[0].CODE, 10, "Problem with CSV schema long.");
+        ow.test.assert(res[1].CODE, "N/A", "Problem with CSV values not matching the schema.");
+        ow.test.assert(res[1].DAY.getDate(), 5, "Problem with CSV schema date.");
+
+        var n = 0;
+        csv.readStream(new java.io.StringReader("ID;CODE\n1;2"), function(r) { if (r.ID === "1" && r.CODE === 2) n++; });
+        ow.test.assert(n, 1, "Problem with CSV schema on streaming.");
+    };
+
+    exports.testCSVWriter = function() {
+        var file = "autoTestAll.Generic.writer.csv";
+        var csv = new CSV();
+        var w = csv.writer(file, [ "ID", "NAME", "OK" ], { flushThreshold: 100, lineSeparator: "\n" });
+        w.write({ ID: 1, NAME: "a \"b\"", OK: true });
+        w.write([ 2, "c;d", false ]);
+        var i = 2;
+        w.writeAll(function() { if (i < 1000) { i++; return { ID: i, NAME: "n" + i }; } });
+        w.close();
+        ow.test.assert(Number(w.getRecords()), 1000, "Problem with CSV.writer number of records.");
+        var lines = io.readFileString(file).split("\n");
+        ow.test.assert(lines[0], "ID;NAME;OK", "Problem with CSV.writer header.");
+        ow.test.assert(lines[1], "1;\"a \"\"b\"\"\";true", "Problem with CSV.writer map record.");
+        ow.test.assert(lines[2], "2;\"c;d\";false", "Problem with CSV.writer array record.");
+        ow.test.assert(lines[1000], "1000;\"n1000\";", "Problem with CSV.writer function source.");
+
+        var db = createDBInMem("testCSVWriter", false);
+        db.u("create table test (c1 number(12), c2 varchar2(255))");
+        var values = [];
+        for(var j = 0; j < 500; j++) { values.push([j, String("v" + j)]); }
+        db.usArray("insert into test (c1, c2) values (?, ?)", values);
+        db.commit();
+
+        w = csv.writer(file + ".gz", { gzip: true });
+        w.writeAll(db.qsCursor("select c1, c2 from test order by c1", []));
+        w.close();
+
+        // Cursor values are converted like DB.q does
+        db.u("create table test2 (c1 number(12), c2 blob, c3 timestamp, c4 number(10,2))");
+        db.u("insert into test2 (c1, c2, c3, c4) values (1, X'616263', TIMESTAMP '2026-10-16 23:45:02.176', 1.5)");
+        db.commit();
+        var r = db.q("select c1, c2, c3, c4 from test2").results[0];
+        w = csv.writer(file, undefined, { lineSeparator: "\n" });
+        w.writeAll(db.qsCursor("select c1, c2, c3, c4 from test2", []));
+        w.close();
+        db.close();
+        lines = io.readFileString(file).split("\n");
+        ow.test.assert(lines[0], "C1;C2;C3;C4", "Problem with CSV.writer DB cursor header.");
+        ow.test.assert(lines[1], "1;YWJj;\"" + r.C3 + "\";" + r.C4, "Problem with CSV.writer DB cursor converted values.");
+        ow.test.assert(lines[1], "1;YWJj;\"2026-10-16 23:45:02.176\";1.5", "Problem with CSV.writer DB cursor blob, timestamp or numeric values.");
+
+        var sum = 0, n = 0;
+        csv.readStream(new java.util.zip.GZIPInputStream(io.readFileStream(file + ".gz")), function(r) { n++; sum += r.C1; if (r.C2 != "v" + r.C1) sum = -1; });
+        ow.test.assert(n, 500, "Problem with CSV.writer from a DB cursor.");
+        ow.test.assert(sum, 124750, "Problem with CSV.writer gzip values.");
+
+        af.rm(file);
+        af.rm(file + ".gz");
+    };
 })();
\ No newline at end of file
@@ -35,4 +35,300 @@
     
         ow.test.assert(output, "Hello World!", "Problem with testing websockets against echo.websocket.org");    
     };
+
+    exports.testHTTPPool = function() {
+        plugin("HTTPServer");
+        var httpd = new HTTPd(12346);
+        httpd.add("/echo", function(aReq) {
+            return httpd.replyOKJSON(stringify({ method: aReq.method, abc: aReq.params.abc }));
+        });
+        httpd.add("/fail", function(aReq) {
+            return httpd.reply("NOTFOUND", "text/plain", 404, {});
+        });
+
+        plugin("HTTP");
+        try {
+            var h = new HTTP();
+            h.usePool();
+            for(var ii = 0; ii < 5; ii++) {
+                var r = h.exec("http://127.0.0.1:12346/echo?abc=" + ii);
+                ow.test.assert(r.responseCode, 200, "Problem with the pooled HTTP response code.");
+                ow.test.assert(jsonParse(r.response).abc, String(ii), "Problem with the pooled HTTP response.");
+            }
+            ow.test.assert(h.responseType().indexOf("application/json") >= 0, true, "Problem with the pooled HTTP content type.");
+            ow.test.assert(isDef(h.responseHeaders()), true, "Problem with the pooled HTTP response headers.");
+
+            var r2 = h.exec("http://127.0.0.1:12346/echo", "POST", "abc=123", { "Content-Type": "application/x-www-form-urlencoded" });
+            ow.test.assert(jsonParse(r2.response).method, "POST", "Problem with the pooled HTTP post.");
+
+            var rb = h.exec("http://127.0.0.1:12346/echo?abc=1", "GET", undefined, undefined, true);
+            ow.test.assert(jsonParse(af.fromBytes2String(rb.responseBytes)).abc, "1", "Problem with the pooled HTTP bytes response.");
+
+            var stats = h.getPoolStats();
+            ow.test.assert(Number(stats.leased), 0, "Pooled HTTP connections weren't released.");
+            ow.test.assert(Number(stats.available) >= 1, true, "Pooled HTTP connections weren't kept alive.");
+
+            var failed = false;
+            try { h.exec("http://127.0.0.1:12346/fail"); } catch(e) { failed = true; }
+            ow.test.assert(failed, true, "Pooled HTTP didn't fail on a 404.");
+            ow.test.assert(String(h.getErrorResponse()), "NOTFOUND", "Problem with the pooled HTTP error response.");
+        } finally {
+            httpd.stop();
+        }
+    };
+
+    exports.testHTTPAsync = function() {
+        plugin("HTTPServer");
+        var httpd = new HTTPd(12347);
+        httpd.add("/echo", function(aReq) {
+            return httpd.replyOKJSON(stringify({ abc: aReq.params.abc }));
+        });
+        httpd.add("/fail", function(aReq) {
+            return httpd.reply("NOTFOUND", "text/plain", 404, {});
+        });
+
+        plugin("HTTP");
+        try {
+            var h = new HTTP(), calls = 0;
+            var fs = [];
+            for(var ii = 0; ii < 10; ii++) {
+                fs.push(h.execAsync("http://127.0.0.1:12347/echo?abc=" + ii, "GET", undefined, undefined, false, undefined, function(r, e) {
+                    sync(function() { calls++; }, h);
+                }));
+            }
+            for(var ii = 0; ii < 10; ii++) {
+                ow.test.assert(jsonParse(fs[ii].get().response).abc, String(ii), "Problem with the async HTTP response.");
+            }
+            ow.test.assert(calls, 10, "Problem with the async HTTP callback.");
+
+            var r;
+            $doWait($doFuture(h.execAsync("http://127.0.0.1:12347/echo?abc=x")).then(function(v) { r = v; }));
+            ow.test.assert(jsonParse(r.response).abc, "x", "Problem with the async HTTP promise.");
+
+            var idxs = [];
+            var res = h.batch([
+                { url: "http://127.0.0.1:12347/echo?abc=1" },
+                { url: "http://127.0.0.1:12347/fail" },
+                { url: "http://127.0.0.1:12347/echo", method: "POST", in: "abc=3" }
+            ], function(r, e, i) { sync(function() { idxs.push(Number(i)); }, idxs); });
+            ow.test.assert(res.length, 3, "Problem with the HTTP batch results.");
+            ow.test.assert(jsonParse(res[0].response).abc, "1", "Problem with the HTTP batch first result.");
+            ow.test.assert(Number(res[1].responseCode), 404, "Problem with the HTTP batch failed result.");
+            ow.test.assert(String(res[1].errorResponse), "NOTFOUND", "Problem with the HTTP batch error response.");
+            ow.test.assert(jsonParse(res[2].response).abc, "3", "Problem with the HTTP batch post result.");
+            ow.test.assert(idxs.sort().join(","), "0,1,2", "Problem with the HTTP batch callback.");
+        } finally {
+            httpd.stop();
+        }
+    };
+
+    exports.testHTTPStreamBody = function() {
+        plugin("HTTPServer");
+        var httpd = new HTTPd(12348);
+        httpd.add("/size", function(aReq) {
+            return httpd.replyOKJSON(stringify({ size: aReq.header["content-length"], encoding: aReq.header["transfer-encoding"] }));
+        });
+
+        var file = "autoTestAll.HTTP.upload.txt";
+        var str = "";
+        for(var ii = 0; ii < 2000; ii++) str += "çãõ line " + ii + "\n";
+        io.writeFileString(file, str);
+        var size = Number(af.fromString2Bytes(str).length);
+
+        plugin("HTTP");
+        try {
+            var engines = [ false, true ];
+            for(var ii in engines) {
+                var h = new HTTP();
+                h.usePool(engines[ii]);
+                var r = jsonParse(h.exec("http://127.0.0.1:12348/size", "POST", str).response);
+                ow.test.assert(Number(r.size), size, "Problem with non-ascii string body (pool = " + engines[ii] + ").");
+                r = jsonParse(h.exec("http://127.0.0.1:12348/size", "POST", new java.io.File(file)).response);
+                ow.test.assert(Number(r.size), size, "Problem with file body (pool = " + engines[ii] + ").");
+                r = jsonParse(h.exec("http://127.0.0.1:12348/size", "PUT", new java.io.FileInputStream(file)).response);
+                ow.test.assert(r.encoding, "chunked", "Problem with stream body (pool = " + engines[ii] + ").");
+            }
+        } finally {
+            httpd.stop();
+            af.rm(file);
+        }
+    };
+
+    exports.testHTTPJSONStream = function() {
+        plugin("HTTPServer");
+        var httpd = new HTTPd(12351);
+        var data = [];
+        for(var ii = 0; ii < 500; ii++) data.push({ id: ii, name: "çã " + ii, ok: (ii % 2 == 0), v: ii / 4, n: null, a: [ ii, "x" ] });
+        httpd.add("/gzip", function(aReq) {
+            // The server compresses the response if the client accepts gzip
+            return httpd.replyOKJSON(stringify(data, undefined, ""));
+        });
+        httpd.add("/obj", function(aReq) {
+            return httpd.replyOKJSON(stringify({ a: 1, b: [ 1, 2, 3 ], c: { d: "e" } }));
+        });
+        httpd.add("/numkeys", function(aReq) {
+            return httpd.replyOKJSON('{ "1": "a", "01": "b", "x": { "200": 2, "-1": 3 } }');
+        });
+
+        plugin("HTTP");
+        try {
+            var engines = [ false, true ];
+            for(var ii in engines) {
+                var h = new HTTP();
+                h.usePool(engines[ii]);
+
+                var r = h.exec("http://127.0.0.1:12351/gzip");
+                ow.test.assert(compare(jsonParse(r.response), data), true, "Problem with gzip decompression (pool = " + engines[ii] + ").");
+                if (!engines[ii]) ow.test.assert(String(h.responseHeaders().get("Content-Encoding")).indexOf("gzip") >= 0, true, "Response wasn't compressed.");
+
+                var o = h.execJSON("http://127.0.0.1:12351/gzip");
+                ow.test.assert(compare(o, data), true, "Problem with streaming JSON decode (pool = " + engines[ii] + ").");
+
+                var elems = [];
+                var c = h.execJSON("http://127.0.0.1:12351/gzip", "GET", undefined, undefined, undefined, function(e, i) {
+                    elems.push(e);
+                    if (i >= 9) return false;
+                });
+                ow.test.assert(Number(c), 10, "Problem with streaming JSON elements count (pool = " + engines[ii] + ").");
+                ow.test.assert(compare(elems, data.slice(0, 10)), true, "Problem with streaming JSON elements (pool = " + engines[ii] + ").");
+
+                o = h.execJSON("http://127.0.0.1:12351/obj");
+                ow.test.assert(compare(o, { a: 1, b: [ 1, 2, 3 ], c: { d: "e" } }), true, "Problem with streaming JSON object (pool = " + engines[ii] + ").");
+
+                o = h.execJSON("http://127.0.0.1:12351/numkeys");
+                ow.test.assert(o[1], "a", "Problem with numeric JSON key (pool = " + engines[ii] + ").");
+                ow.test.assert(o["1"], "a", "Problem with numeric JSON key by name (pool = " + engines[ii] + ").");
+                ow.test.assert(o["01"], "b", "Problem with leading zero JSON key (pool = " + engines[ii] + ").");
+                ow.test.assert(o.x["200"], 2, "Problem with nested numeric JSON key (pool = " + engines[ii] + ").");
+                ow.test.assert(o.x["-1"], 3, "Problem with negative numeric JSON key (pool = " + engines[ii] + ").");
+                ow.test.assert(compare(o, jsonParse('{ "1": "a", "01": "b", "x": { "200": 2, "-1": 3 } }')), true, "Problem with numeric JSON keys (pool = " + engines[ii] + ").");
+            }
+        } finally {
+            httpd.stop();
+        }
+    };
+
+    exports.testHTTPCache = function() {
+        plugin("HTTPServer");
+        var httpd = new HTTPd(12353);
+        var calls = { etag: 0, maxage: 0, nostore: 0 }, version = 1;
+        httpd.add("/etag", function(aReq) {
+            calls.etag++;
+            var etag = "\"v" + version + "\"";
+            if (aReq.header["if-none-match"] == etag) return httpd.reply("", "application/json", 304, { "ETag": etag });
+            return httpd.reply(stringify({ v: version }), "application/json", 200, { "ETag": etag, "Cache-Control": "no-cache" });
+        });
+        httpd.add("/maxage", function(aReq) {
+            calls.maxage++;
+            return httpd.reply(stringify({ c: calls.maxage }), "application/json", 200, { "Cache-Control": "max-age=60" });
+        });
+        httpd.add("/nostore", function(aReq) {
+            calls.nostore++;
+            return httpd.reply(stringify({ c: calls.nostore }), "application/json", 200, { "Cache-Control": "no-store", "ETag": "\"x\"" });
+        });
+        httpd.add("/private", function(aReq) {
+            return httpd.reply(stringify({ a: aReq.header.authorization }), "application/json", 200, { "Cache-Control": "max-age=60" });
+        });
+        httpd.add("/login", function(aReq) {
+            return httpd.reply("{}", "application/json", 200, { "Set-Cookie": "sid=alice; Path=/" });
+        });
+        httpd.add("/me", function(aReq) {
+            var cc = (isDef(aReq.params.cc) ? aReq.params.cc : "private, max-age=60");
+            return httpd.reply(stringify(isDef(aReq.header.cookie) ? { cookie: aReq.header.cookie } : {}, undefined, ""), "application/json", 200, { "Cache-Control": cc });
+        });
+        httpd.add("/vary", function(aReq) {
+            calls.vary = (isDef(calls.vary) ? calls.vary + 1 : 1);
+            return httpd.reply(stringify({ l: aReq.header["x-lang"] }), "application/json", 200, { "Cache-Control": "max-age=60", "Vary": "X-Lang" });
+        });
+
+        // The test server wrongly adds a gzip body to 304 replies when gzip is accepted
+        var rm = { "Accept-Encoding": "identity" };
+
+        plugin("HTTP");
+        try {
+            var engines = [ false, true ];
+            for(var ii in engines) {
+                var h = new HTTP();
+                h.usePool(engines[ii]);
+                h.useCache();
+                h.clearCache();
+                h.getCacheStats(true);
+                calls = { etag: 0, maxage: 0, nostore: 0 }; version = 1;
+
+                // Fresh responses are reused without requests
+                ow.test.assert(jsonParse(h.exec("http://127.0.0.1:12353/maxage", "GET", undefined, rm).response).c, 1, "Problem with the first cached response (pool = " + engines[ii] + ").");
+                ow.test.assert(jsonParse(h.exec("http://127.0.0.1:12353/maxage", "GET", undefined, rm).response).c, 1, "Problem with the fresh cached response (pool = " + engines[ii] + ").");
+                ow.test.assert(calls.maxage, 1, "Fresh cached response wasn't reused (pool = " + engines[ii] + ").");
+                h.exec("http://127.0.0.1:12353/maxage", "GET", undefined, merge(rm, { "Cache-Control": "no-cache" }));
+                ow.test.assert(calls.maxage, 2, "Cache-Control: no-cache request wasn't revalidated (pool = " + engines[ii] + ").");
+
+                // Stale responses are revalidated
+                ow.test.assert(jsonParse(h.exec("http://127.0.0.1:12353/etag", "GET", undefined, rm).response).v, 1, "Problem with the etag response (pool = " + engines[ii] + ").");
+                var r = h.exec("http://127.0.0.1:12353/etag", "GET", undefined, rm);
+                ow.test.assert(r.responseCode, 200, "Problem with the revalidated response code (pool = " + engines[ii] + ").");
+                ow.test.assert(jsonParse(r.response).v, 1, "Problem with the revalidated response (pool = " + engines[ii] + ").");
+                version = 2;
+                ow.test.assert(jsonParse(h.exec("http://127.0.0.1:12353/etag", "GET", undefined, rm).response).v, 2, "Problem with the changed response (pool = " + engines[ii] + ").");
+                ow.test.assert(calls.etag, 3, "Problem with the etag requests (pool = " + engines[ii] + ").");
+
+                // no-store isn't kept
+                h.exec("http://127.0.0.1:12353/nostore", "GET", undefined, rm);
+                h.exec("http://127.0.0.1:12353/nostore", "GET", undefined, rm);
+                ow.test.assert(calls.nostore, 2, "Problem with no-store (pool = " + engines[ii] + ").");
+
+                var stats = h.getCacheStats();
+                ow.test.assert(Number(stats.hits), 1, "Problem with the cache hits (pool = " + engines[ii] + ").");
+                ow.test.assert(Number(stats.revalidations), 1, "Problem with the cache revalidations (pool = " + engines[ii] + ").");
+                ow.test.assert(Number(stats.misses), 6, "Problem with the cache misses (pool = " + engines[ii] + ").");
+                ow.test.assert(Number(stats.entries), 2, "Problem with the cache entries (pool = " + engines[ii] + ").");
+            }
+
+            // LRU byte limit
+            var h = new HTTP();
+            h.useCache();
+            h.clearCache();
+            h.setCacheLimit(600);
+            h.exec("http://127.0.0.1:12353/maxage?a=1", "GET", undefined, rm);
+            h.exec("http://127.0.0.1:12353/maxage?a=2", "GET", undefined, rm);
+            h.exec("http://127.0.0.1:12353/maxage?a=3", "GET", undefined, rm);
+            var stats = h.getCacheStats();
+            ow.test.assert(Number(stats.entries), 2, "Problem with the cache byte limit.");
+            ow.test.assert(Number(stats.bytes) <= 600, true, "Problem with the cache bytes.");
+
+            // Responses aren't shared between credentials or Vary header values
+            h.setCacheLimit(0);
+            h.clearCache();
+            ow.test.assert(jsonParse(h.exec("http://127.0.0.1:12353/private", "GET", undefined, merge(rm, { "Authorization": "Bearer a" })).response).a, "Bearer a", "Problem with the first authorized response.");
+            ow.test.assert(jsonParse(h.exec("http://127.0.0.1:12353/private", "GET", undefined, merge(rm, { "Authorization": "Bearer b" })).response).a, "Bearer b", "Cached response shared between Authorization headers.");
+            ow.test.assert(isUnDef(jsonParse(h.exec("http://127.0.0.1:12353/private", "GET", undefined, rm).response).a), true, "Cached authorized response returned without Authorization.");
+            ow.test.assert(jsonParse(h.exec("http://127.0.0.1:12353/private", "GET", undefined, merge(rm, { "Authorization": "Bearer a" })).response).a, "Bearer a", "Problem with the cached authorized response.");
+
+            calls.vary = 0;
+            ow.test.assert(jsonParse(h.exec("http://127.0.0.1:12353/vary", "GET", undefined, merge(rm, { "X-Lang": "en" })).response).l, "en", "Problem with the first Vary response.");
+            ow.test.assert(jsonParse(h.exec("http://127.0.0.1:12353/vary", "GET", undefined, merge(rm, { "X-Lang": "pt" })).response).l, "pt", "Cached response shared between Vary header values.");
+            ow.test.assert(jsonParse(h.exec("http://127.0.0.1:12353/vary", "GET", undefined, merge(rm, { "X-Lang": "en" })).response).l, "en", "Problem with the cached Vary response (en).");
+            ow.test.assert(jsonParse(h.exec("http://127.0.0.1:12353/vary", "GET", undefined, merge(rm, { "X-Lang": "pt" })).response).l, "pt", "Problem with the cached Vary response (pt).");
+            ow.test.assert(calls.vary, 2, "Vary responses weren't kept per header value.");
+
+            // Private responses and responses to requests with cookies aren't shared between HTTP objects
+            var ha = new HTTP(), hb = new HTTP();
+            ha.usePool(); ha.useCache();
+            hb.usePool(); hb.useCache();
+            h.clearCache();
+            ha.exec("http://127.0.0.1:12353/login", "GET", undefined, rm);
+            ow.test.assert(jsonParse(ha.exec("http://127.0.0.1:12353/me", "GET", undefined, rm).response).cookie, "sid=alice", "Problem with the cookie sent.");
+            ow.test.assert(jsonParse(hb.exec("http://127.0.0.1:12353/me", "GET", undefined, rm).response).cookie, undefined, "Private cached response returned to another HTTP object.");
+            ow.test.assert(jsonParse(ha.exec("http://127.0.0.1:12353/me?cc=max-age%3D60", "GET", undefined, rm).response).cookie, "sid=alice", "Problem with the cookie sent.");
+            ow.test.assert(jsonParse(hb.exec("http://127.0.0.1:12353/me?cc=max-age%3D60", "GET", undefined, rm).response).cookie, undefined, "Cached response to a request with cookies returned to another HTTP object.");
+            ow.test.assert(jsonParse(ha.exec("http://127.0.0.1:12353/me?cc=max-age%3D60", "GET", undefined, rm).response).cookie, "sid=alice", "Cached response without cookies returned to a request with cookies.");
+            ow.test.assert(jsonParse(hb.exec("http://127.0.0.1:12353/me?cc=max-age%3D60", "GET", undefined, merge(rm, { "Cookie": "sid=bob" })).response).cookie, "sid=bob", "Cached response returned to a request with a Cookie header.");
+            ow.test.assert(Number(h.getCacheStats().entries), 1, "Problem with the entries kept for requests with cookies.");
+            ha.exec("http://127.0.0.1:12353/me?cc=public,%20max-age%3D60", "GET", undefined, rm);
+            ow.test.assert(Number(h.getCacheStats().entries), 2, "Public response to a request with cookies wasn't kept.");
+        } finally {
+            (new HTTP()).setCacheLimit(0);
+            (new HTTP()).clearCache();
+            httpd.stop();
+        }
+    };
 })();
\ No newline at end of file
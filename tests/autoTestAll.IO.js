@@ -67,4 +67,183 @@
 
         ow.test.assert(orig.length, s.length, "Problem with gzip native java array to byte array conversion.");
     };
+
+    exports.testIOMapFile = function() {
+        io.writeFileString("autoTestAll.map", "Hello World!");
+
+        var buf = io.mapFile("autoTestAll.map");
+        ow.test.assert(Number(buf.capacity()), 12, "Problem with mapFile size.");
+        ow.test.assert(String.fromCharCode(buf.get(6)), "W", "Problem with mapFile read.");
+
+        buf = io.mapFile("autoTestAll.map", "rw", 0, 5);
+        buf.put(0, 104);
+        buf.force();
+        ow.test.assert(io.readFileString("autoTestAll.map"), "hello World!", "Problem with mapFile write.");
+        af.rm("autoTestAll.map");
+    };
+
+    exports.testIOReadLinesNIO = function() {
+        var lines = [];
+        for(var i = 0; i < 1000; i++) { lines.push("Line " + i + " €áä"); }
+        io.writeFileString("autoTestAll.lines", lines.join("\r\n"));
+
+        var res = [];
+        var c = io.readLinesNIO("autoTestAll.lines", function(l, n) { res.push(String(l)); });
+        ow.test.assert(Number(c), 1000, "Problem with readLinesNIO count.");
+        ow.test.assert(res.join("\n"), lines.join("\n"), "Problem with readLinesNIO lines.");
+
+        var n = 0;
+        io.readLinesNIO("autoTestAll.lines", function(l, i) { n++; if (i >= 10) return false; });
+        ow.test.assert(n, 10, "Problem with readLinesNIO stop.");
+        af.rm("autoTestAll.lines");
+    };
+
+    exports.testIOReadFileLines = function() {
+        var lines = [];
+        for(var i = 0; i < 2500; i++) { lines.push("Line " + i + " €áä"); }
+        io.writeFileString("autoTestAll.lines", lines.join("\n"));
+        io.writeFileBytes("autoTestAll.lines.gz", io.gzip(af.fromString2Bytes(lines.join("\n"))));
+
+        var res = [], calls = 0, first = [];
+        var c = io.readFileLines("autoTestAll.lines", function(ls, n) { calls++; first.push(Number(n)); for(var j in ls) res.push(String(ls[j])); });
+        ow.test.assert(Number(c), 2500, "Problem with readFileLines count.");
+        ow.test.assert(calls, 3, "Problem with readFileLines default batch size.");
+        ow.test.assert(first.join(","), "1,1001,2001", "Problem with readFileLines line numbers.");
+        ow.test.assert(res.join("\n"), lines.join("\n"), "Problem with readFileLines lines.");
+
+        res = [];
+        io.readFileLines("autoTestAll.lines.gz", function(ls) { for(var j in ls) res.push(String(ls[j])); }, { gzip: true, batchSize: 100 });
+        ow.test.assert(res.join("\n"), lines.join("\n"), "Problem with readFileLines gzip.");
+
+        calls = 0;
+        io.readFileLines("autoTestAll.lines", function(ls) { calls++; return false; }, { batchSize: 10 });
+        ow.test.assert(calls, 1, "Problem with readFileLines stop.");
+
+        // A file that isn't gzip fails without keeping it open
+        var openFiles = function() { return (io.fileExists("/proc/self/fd") ? io.listFilenames("/proc/self/fd").length : 0); };
+        var before = openFiles(), failed = 0;
+        for(var i = 0; i < 10; i++) {
+            try { io.readFileLines("autoTestAll.lines", function(ls) { }, { gzip: true }); } catch(e) { failed++; }
+        }
+        ow.test.assert(failed, 10, "Problem with readFileLines gzip of a non gzip file.");
+        ow.test.assert(openFiles() < before + 10, true, "readFileLines keeps the file open on a gzip error.");
+
+        af.rm("autoTestAll.lines");
+        af.rm("autoTestAll.lines.gz");
+    };
+
+    exports.testIOWalk = function() {
+        af.mkdir("autoTestAll.walk/a/b");
+        af.mkdir("autoTestAll.walk/c");
+        io.writeFileString("autoTestAll.walk/1.txt", "1");
+        io.writeFileString("autoTestAll.walk/a/2.txt", "12");
+        io.writeFileString("autoTestAll.walk/a/b/3.txt", "123");
+        io.writeFileString("autoTestAll.walk/a/b/4.json", "1234");
+        io.writeFileString("autoTestAll.walk/c/5.txt", "12345");
+
+        var names = function(aOptions) {
+            var res = [];
+            io.walk("autoTestAll.walk", function(f) { res.push(String(f.filename)); }, aOptions);
+            return res.sort().join(",");
+        };
+
+        ow.test.assert(names(), "1.txt,2.txt,3.txt,4.json,5.txt,a,b,c", "Problem with walk.");
+        ow.test.assert(names({ parallelism: 4 }), "1.txt,2.txt,3.txt,4.json,5.txt,a,b,c", "Problem with parallel walk.");
+        ow.test.assert(names({ maxDepth: 1 }), "1.txt,a,c", "Problem with walk maxDepth.");
+        ow.test.assert(names({ glob: "*.txt", parallelism: 2 }), "1.txt,2.txt,3.txt,5.txt", "Problem with walk glob.");
+        ow.test.assert(names({ regex: "b.+\\.json$" }), "4.json", "Problem with walk regex.");
+        ow.test.assert(names({ minSize: 3 }), "3.txt,4.json,5.txt", "Problem with walk minSize.");
+        ow.test.assert(names({ modifiedSince: new Date(now() + 60000) }), "", "Problem with walk modifiedSince.");
+
+        var c = 0;
+        io.walk("autoTestAll.walk", function(f) { c++; return false; }, { parallelism: 2 });
+        ow.test.assert(c, 1, "Problem with walk stop.");
+
+        var err;
+        try { io.walk("autoTestAll.walk/nonExisting", function(f) { }); } catch(e) { err = e; }
+        ow.test.assert(isDef(err), true, "Problem with walk of a non existing directory.");
+        err = undefined;
+        try { io.walk("autoTestAll.walk/1.txt", function(f) { }, { parallelism: 2 }); } catch(e) { err = e; }
+        ow.test.assert(isDef(err), true, "Problem with walk of a file.");
+
+        af.rm("autoTestAll.walk");
+    };
+
+    exports.testIOGzipOptions = function() {
+        var orig = io.readFileBytes(getOpenAFPath() + "/js/openaf.js");
+
+        var fast  = io.gzip(orig, "fast");
+        var small = io.gzip(orig, "small");
+        ow.test.assert(small.length < fast.length, true, "Problem with gzip levels.");
+
+        var engines = [ "jdk", "jzlib" ];
+        for(var e in engines) {
+            for(var f in engines) {
+                var c = io.gzip(orig, { level: 6, strategy: "filtered", engine: engines[e] });
+                ow.test.assert(sha1(af.fromBytes2String(io.gunzip(c, engines[f]))), sha1(af.fromBytes2String(orig)), "Problem with gzip " + engines[e] + " / gunzip " + engines[f] + ".");
+            }
+        }
+
+        // Compatible with the java streams and with concatenated gzip members
+        var gis = new java.util.zip.GZIPInputStream(new java.io.ByteArrayInputStream(io.gzip(orig, "small")));
+        ow.test.assert(Number(Packages.org.apache.commons.io.IOUtils.toByteArray(gis).length), Number(orig.length), "Problem with gzip java stream compatibility.");
+        var baos = new java.io.ByteArrayOutputStream();
+        baos.write(io.gzip(af.fromString2Bytes("Hello ")));
+        baos.write(io.gzip(af.fromString2Bytes("World!"), 9));
+        ow.test.assert(af.fromBytes2String(io.gunzip(baos.toByteArray())), "Hello World!", "Problem with gunzip of concatenated members.");
+
+        ow.test.assert(uncompress(compress({ a: 1, b: "é" }, "fast")).b, "é", "Problem with compress level.");
+    };
+
+    exports.testIOCompressFast = function() {
+        var orig = io.readFileBytes(getOpenAFPath() + "/js/openaf.js");
+        var c = io.compressFast(orig);
+        ow.test.assert(c.length < orig.length, true, "Problem with compressFast ratio.");
+        ow.test.assert(sha1(af.fromBytes2String(io.decompressFast(c))), sha1(af.fromBytes2String(orig)), "Problem with compressFast/decompressFast.");
+
+        var s = ["", "a", "aaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaa", "Hello World! €áä Hello World! €áä Hello World!"];
+        for(var i in s) {
+            ow.test.assert(af.fromBytes2String(io.decompressFast(io.compressFast(af.fromString2Bytes(s[i])))), s[i], "Problem with compressFast of '" + s[i] + "'.");
+        }
+
+        var err;
+        try { io.decompressFast(java.util.Arrays.copyOf(c, 100)); } catch(e) { err = e; }
+        ow.test.assert(isDef(err), true, "Problem with decompressFast of truncated data.");
+    };
+
+    exports.testIOAsync = function() {
+        var data = af.fromString2Bytes("Hello World! €áä");
+
+        ow.test.assert(Number(io.writeFileBytesAsync("autoTestAll.async/a.bin", data).get()), data.length, "Problem with writeFileBytesAsync.");
+        io.writeFileBytesAsync("autoTestAll.async/a.bin", af.fromString2Bytes("!!"), true).get();
+        ow.test.assert(af.fromBytes2String(io.readFileBytesAsync("autoTestAll.async/a.bin").get()), "Hello World! €áä!!", "Problem with readFileBytesAsync or append.");
+
+        var fs = [];
+        for(var i = 0; i < 5; i++) fs.push($doFuture(io.copyAsync(getOpenAFJar(), "autoTestAll.async/" + i + ".jar")));
+        $doWait($doAll(fs));
+        var s0 = io.readFileStream(getOpenAFJar());
+        var h = sha1(s0);
+        s0.close();
+        for(var i = 0; i < 5; i++) {
+            var s = io.readFileStream("autoTestAll.async/" + i + ".jar");
+            ow.test.assert(sha1(s), h, "Problem with copyAsync.");
+            s.close();
+        }
+
+        // Changing the number of threads doesn't affect operations in flight
+        var jfs = [];
+        for(var i = 0; i < 5; i++) jfs.push(io.copyAsync(getOpenAFJar(), "autoTestAll.async/t" + i + ".jar"));
+        io.setAsyncThreads(2);
+        for(var i = 0; i < 5; i++) {
+            ow.test.assert(Number(jfs[i].get(60, java.util.concurrent.TimeUnit.SECONDS)), Number(io.fileInfo(getOpenAFJar()).size), "Problem with copyAsync while changing the number of threads.");
+        }
+        ow.test.assert(af.fromBytes2String(io.readFileBytesAsync("autoTestAll.async/a.bin").get(60, java.util.concurrent.TimeUnit.SECONDS)), "Hello World! €áä!!", "Problem with readFileBytesAsync after changing the number of threads.");
+        io.setAsyncThreads(0);
+
+        var err;
+        $doWait($doFuture(io.readFileBytesAsync("autoTestAll.async/nonExisting")).catch(function(e) { err = e; }));
+        ow.test.assert(isDef(err), true, "Problem with readFileBytesAsync of a non existing file.");
+
+        af.rm("autoTestAll.async");
+    };
 })();
\ No newline at end of file